@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.api.bankaccount.command;
+
+import lombok.Value;
+import org.axonframework.commandhandling.TargetAggregateIdentifier;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+/**
+ * Applies a list of deposits and withdrawals to one bank account in a single unit of work. Each movement is handled
+ * as if it were sent as its own {@link DepositMoneyCommand} or {@link WithdrawMoneyCommand}.
+ */
+@Value
+public class BatchMoneyMovementCommand {
+
+    @TargetAggregateIdentifier
+    private String bankAccountId;
+    @NotNull
+    @Size(min = 1, message = "A batch must contain at least one money movement")
+    private List<MoneyMovement> movements;
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.api.bankaccount.command;
+
+import lombok.Value;
+
+/**
+ * A single deposit or withdrawal within a {@link BatchMoneyMovementCommand}.
+ */
+@Value
+public class MoneyMovement {
+
+    private Type type;
+    private long amountOfMoney;
+
+    public static MoneyMovement deposit(long amountOfMoney) {
+        return new MoneyMovement(Type.DEPOSIT, amountOfMoney);
+    }
+
+    public static MoneyMovement withdrawal(long amountOfMoney) {
+        return new MoneyMovement(Type.WITHDRAWAL, amountOfMoney);
+    }
+
+    public enum Type {
+        DEPOSIT, WITHDRAWAL
+    }
+}
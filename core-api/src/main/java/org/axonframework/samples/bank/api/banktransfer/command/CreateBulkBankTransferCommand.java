@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.api.banktransfer.command;
+
+import lombok.Value;
+import org.axonframework.commandhandling.TargetAggregateIdentifier;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+/**
+ * Transfers money from one source bank account to many destination bank accounts. The source is debited once for
+ * the total amount of all legs.
+ */
+@Value
+public class CreateBulkBankTransferCommand {
+
+    @TargetAggregateIdentifier
+    private String bulkTransferId;
+    private String sourceBankAccountId;
+    @Valid
+    @NotNull
+    @Size(min = 1, message = "A bulk transfer must contain at least one leg")
+    private List<BulkTransferLeg> legs;
+}
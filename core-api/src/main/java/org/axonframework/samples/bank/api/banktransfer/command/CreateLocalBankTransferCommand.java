@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.api.banktransfer.command;
+
+import lombok.Value;
+import org.axonframework.commandhandling.TargetAggregateIdentifier;
+
+/**
+ * Transfers money between two bank accounts handled by this node in a single unit of work, without a saga.
+ */
+@Value
+public class CreateLocalBankTransferCommand {
+
+    @TargetAggregateIdentifier
+    private String bankTransferId;
+    private String sourceBankAccountId;
+    private String destinationBankAccountId;
+    private long amount;
+}
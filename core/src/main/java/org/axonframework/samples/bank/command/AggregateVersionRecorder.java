@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.messaging.MessageDispatchInterceptor;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+/**
+ * Event bus interceptor recording, for a command, the version each aggregate reached while handling it: the sequence
+ * number of the last event it published. Only commands between {@link #start(String)} and {@link #finish(String)} are
+ * recorded. Events are matched to the command through the root unit of work they are published in, so commands
+ * handled on another node record nothing.
+ */
+public class AggregateVersionRecorder implements MessageDispatchInterceptor<EventMessage<?>> {
+
+    private final ConcurrentMap<String, Map<String, Long>> versionsPerCommand = new ConcurrentHashMap<>();
+
+    /**
+     * Starts recording the versions for the command with the given message identifier.
+     */
+    public void start(String commandIdentifier) {
+        versionsPerCommand.put(commandIdentifier, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Stops recording for the command with the given message identifier.
+     *
+     * @return the version of each aggregate that published events while the command was handled
+     */
+    public Map<String, Long> finish(String commandIdentifier) {
+        Map<String, Long> versions = versionsPerCommand.remove(commandIdentifier);
+        return versions == null ? Collections.emptyMap() : versions;
+    }
+
+    @Override
+    public BiFunction<Integer, EventMessage<?>, EventMessage<?>> handle(List<EventMessage<?>> messages) {
+        if (CurrentUnitOfWork.isStarted()) {
+            Map<String, Long> versions =
+                    versionsPerCommand.get(CurrentUnitOfWork.get().root().getMessage().getIdentifier());
+            if (versions != null) {
+                for (EventMessage<?> message : messages) {
+                    if (message instanceof DomainEventMessage) {
+                        DomainEventMessage<?> event = (DomainEventMessage<?>) message;
+                        versions.merge(event.getAggregateIdentifier(), event.getSequenceNumber(), Math::max);
+                    }
+                }
+            }
+        }
+        return (index, message) -> message;
+    }
+}
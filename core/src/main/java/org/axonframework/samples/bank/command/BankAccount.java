@@ -19,16 +19,21 @@ package org.axonframework.samples.bank.command;
 import org.axonframework.commandhandling.CommandHandler;
 import org.axonframework.commandhandling.model.AggregateIdentifier;
 import org.axonframework.eventsourcing.EventSourcingHandler;
+import org.axonframework.samples.bank.api.bankaccount.command.BatchMoneyMovementCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.MoneyMovement;
 import org.axonframework.samples.bank.api.bankaccount.command.ReturnMoneyOfFailedBankTransferCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.WithdrawMoneyCommand;
 import org.axonframework.samples.bank.api.bankaccount.event.*;
 import org.axonframework.spring.stereotype.Aggregate;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import static org.axonframework.commandhandling.model.AggregateLifecycle.apply;
 
-@Aggregate
+@Aggregate(repository = "bankAccountEventSourcingRepository")
 public class BankAccount {
 
     @AggregateIdentifier
@@ -44,6 +49,11 @@ public class BankAccount {
      */
     private long balanceInCents;
 
+    /**
+     * Bank transfers that timed out before this bank account was debited or credited for them
+     */
+    private Set<String> cancelledBankTransferIds = new HashSet<>();
+
     @SuppressWarnings("unused")
     private BankAccount() {
     }
@@ -58,7 +68,7 @@ public class BankAccount {
      */
     @CommandHandler
     public void deposit(DepositMoneyCommand command) {
-        apply(new MoneyDepositedEvent(id, command.getAmountOfMoney()));
+        deposit(command.getAmountOfMoney());
     }
 
     /**
@@ -66,8 +76,35 @@ public class BankAccount {
      */
     @CommandHandler
     public void withdraw(WithdrawMoneyCommand command) {
-        if (command.getAmountOfMoney() <= balanceInCents + overdraftLimit) {
-            apply(new MoneyWithdrawnEvent(id, command.getAmountOfMoney()));
+        withdraw(command.getAmountOfMoney());
+    }
+
+    /**
+     * 批量存款和冲账，每一笔都在前一笔之后的余额上校验
+     */
+    @CommandHandler
+    public void moveMoney(BatchMoneyMovementCommand command) {
+        for (MoneyMovement movement : command.getMovements()) {
+            switch (movement.getType()) {
+                case DEPOSIT:
+                    deposit(movement.getAmountOfMoney());
+                    break;
+                case WITHDRAWAL:
+                    withdraw(movement.getAmountOfMoney());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown money movement type: " + movement.getType());
+            }
+        }
+    }
+
+    private void deposit(long amount) {
+        apply(new MoneyDepositedEvent(id, amount));
+    }
+
+    private void withdraw(long amount) {
+        if (amount <= balanceInCents + overdraftLimit) {
+            apply(new MoneyWithdrawnEvent(id, amount));
         }
     }
 
@@ -77,21 +114,32 @@ public class BankAccount {
      *
      * 记入 借记 ,消费金额
      */
-    public void debit(long amount, String bankTransferId) {
+    public boolean debit(long amount, String bankTransferId) {
+        if (cancelledBankTransferIds.contains(bankTransferId)) {
+            return false;
+        }
         if (amount <= balanceInCents + overdraftLimit) {
             apply(new SourceBankAccountDebitedEvent(id, amount, bankTransferId));
-        } else {
-            apply(new SourceBankAccountDebitRejectedEvent(bankTransferId));
+            return true;
         }
+        apply(new SourceBankAccountDebitRejectedEvent(bankTransferId));
+        return false;
     }
 
     /**
      * 赊购;赊欠;借款;贷款
      */
     public void credit(long amount, String bankTransferId) {
+        if (cancelledBankTransferIds.contains(bankTransferId)) {
+            return;
+        }
         apply(new DestinationBankAccountCreditedEvent(id, amount, bankTransferId));
     }
 
+    public void creditBulkTransferLeg(long amount, String bulkTransferId, int legIndex) {
+        apply(new BulkTransferLegCreditedEvent(id, amount, bulkTransferId, legIndex));
+    }
+
     /**
      * 退款
      */
@@ -100,6 +148,13 @@ public class BankAccount {
         apply(new MoneyOfFailedBankTransferReturnedEvent(id, command.getAmount()));
     }
 
+    /**
+     * 撤销转账，之后到达的借记和贷记都被忽略
+     */
+    public void cancelBankTransfer(String bankTransferId) {
+        apply(new BankTransferCancelledEvent(id, bankTransferId));
+    }
+
     @EventSourcingHandler
     public void on(BankAccountCreatedEvent event) {
         this.id = event.getId();
@@ -116,4 +171,9 @@ public class BankAccount {
     public void on(MoneySubtractedEvent event) {
         balanceInCents -= event.getAmount();
     }
+
+    @EventSourcingHandler
+    public void on(BankTransferCancelledEvent event) {
+        cancelledBankTransferIds.add(event.getBankTransferId());
+    }
 }
@@ -21,8 +21,12 @@ import org.axonframework.commandhandling.model.Aggregate;
 import org.axonframework.commandhandling.model.AggregateNotFoundException;
 import org.axonframework.commandhandling.model.Repository;
 import org.axonframework.eventhandling.EventBus;
+import org.axonframework.samples.bank.api.bankaccount.command.CancelBankTransferCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.CreditBulkTransferLegCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.CreditDestinationBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.DebitSourceBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.event.BankTransferCancelledEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.BulkTransferLegDestinationNotFoundEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.DestinationBankAccountNotFoundEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountNotFoundEvent;
 
@@ -32,14 +36,30 @@ public class BankAccountCommandHandler {
 
     private Repository<BankAccount> repository;
     private EventBus eventBus;
+    private BankAccountIndex bankAccountIndex;
 
     public BankAccountCommandHandler(Repository<BankAccount> repository, EventBus eventBus) {
+        this(repository, eventBus, null);
+    }
+
+    /**
+     * Commands for bank accounts missing from the given index are rejected without loading the bank account. Bank
+     * accounts that are in the index but turn out not to exist are still handled by catching the
+     * {@link AggregateNotFoundException}.
+     */
+    public BankAccountCommandHandler(Repository<BankAccount> repository, EventBus eventBus,
+                                     BankAccountIndex bankAccountIndex) {
         this.repository = repository;
         this.eventBus = eventBus;
+        this.bankAccountIndex = bankAccountIndex;
     }
 
     @CommandHandler
     public void handle(DebitSourceBankAccountCommand command) {
+        if (isUnknown(command.getBankAccountId())) {
+            eventBus.publish(asEventMessage(new SourceBankAccountNotFoundEvent(command.getBankTransferId())));
+            return;
+        }
         try {
             Aggregate<BankAccount> bankAccountAggregate = repository.load(command.getBankAccountId());
             bankAccountAggregate.execute(bankAccount -> bankAccount
@@ -51,6 +71,10 @@ public class BankAccountCommandHandler {
 
     @CommandHandler
     public void handle(CreditDestinationBankAccountCommand command) {
+        if (isUnknown(command.getBankAccountId())) {
+            eventBus.publish(asEventMessage(new DestinationBankAccountNotFoundEvent(command.getBankTransferId())));
+            return;
+        }
         try {
             Aggregate<BankAccount> bankAccountAggregate = repository.load(command.getBankAccountId());
             bankAccountAggregate.execute(bankAccount -> bankAccount
@@ -59,4 +83,44 @@ public class BankAccountCommandHandler {
             eventBus.publish(asEventMessage(new DestinationBankAccountNotFoundEvent(command.getBankTransferId())));
         }
     }
+
+    /**
+     * A bank account that does not exist will never be debited or credited, so the cancellation is confirmed anyway.
+     */
+    @CommandHandler
+    public void handle(CancelBankTransferCommand command) {
+        BankTransferCancelledEvent cancelledEvent = new BankTransferCancelledEvent(command.getBankAccountId(),
+                                                                                   command.getBankTransferId());
+        if (isUnknown(command.getBankAccountId())) {
+            eventBus.publish(asEventMessage(cancelledEvent));
+            return;
+        }
+        try {
+            Aggregate<BankAccount> bankAccountAggregate = repository.load(command.getBankAccountId());
+            bankAccountAggregate.execute(bankAccount -> bankAccount.cancelBankTransfer(command.getBankTransferId()));
+        } catch (AggregateNotFoundException exception) {
+            eventBus.publish(asEventMessage(cancelledEvent));
+        }
+    }
+
+    @CommandHandler
+    public void handle(CreditBulkTransferLegCommand command) {
+        if (isUnknown(command.getBankAccountId())) {
+            eventBus.publish(asEventMessage(new BulkTransferLegDestinationNotFoundEvent(command.getBulkTransferId(),
+                                                                                        command.getLegIndex())));
+            return;
+        }
+        try {
+            Aggregate<BankAccount> bankAccountAggregate = repository.load(command.getBankAccountId());
+            bankAccountAggregate.execute(bankAccount -> bankAccount
+                    .creditBulkTransferLeg(command.getAmount(), command.getBulkTransferId(), command.getLegIndex()));
+        } catch (AggregateNotFoundException exception) {
+            eventBus.publish(asEventMessage(new BulkTransferLegDestinationNotFoundEvent(command.getBulkTransferId(),
+                                                                                        command.getLegIndex())));
+        }
+    }
+
+    private boolean isUnknown(String bankAccountId) {
+        return bankAccountIndex != null && !bankAccountIndex.contains(bankAccountId);
+    }
 }
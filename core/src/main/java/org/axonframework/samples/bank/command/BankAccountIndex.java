@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+/**
+ * In-memory index of the bank accounts that exist, maintained from {@link BankAccountCreatedEvent}s. Lets the
+ * {@link BankAccountCommandHandler} reject commands for unknown bank accounts without reading the event store.
+ * <p>
+ * A Bloom filter sits in front of the exact set of identifiers, so the common lookups for unknown accounts are
+ * answered by a few bit tests without hashing into the set.
+ */
+public class BankAccountIndex {
+
+    private final BloomFilter bloomFilter;
+    private final Set<String> bankAccountIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param expectedBankAccounts number of bank accounts the Bloom filter is sized for
+     * @param falsePositiveRate    rate of unknown accounts the Bloom filter may let through to the exact set
+     */
+    public BankAccountIndex(int expectedBankAccounts, double falsePositiveRate) {
+        this.bloomFilter = new BloomFilter(expectedBankAccounts, falsePositiveRate);
+    }
+
+    @EventHandler
+    public void on(BankAccountCreatedEvent event) {
+        add(event.getId());
+    }
+
+    public void add(String bankAccountId) {
+        bloomFilter.add(bankAccountId);
+        bankAccountIds.add(bankAccountId);
+    }
+
+    public boolean contains(String bankAccountId) {
+        return bloomFilter.mightContain(bankAccountId) && bankAccountIds.contains(bankAccountId);
+    }
+
+    public int size() {
+        return bankAccountIds.size();
+    }
+
+    /**
+     * Adds all bank accounts created in the given storage engine, reading it from the start. Only the payload of
+     * bank account creation events is deserialized.
+     */
+    public void rebuild(EventStorageEngine storageEngine) {
+        try (Stream<? extends TrackedEventMessage<?>> events = storageEngine.readEvents(null, false)) {
+            events.filter(event -> BankAccountCreatedEvent.class.equals(event.getPayloadType()))
+                  .forEach(event -> add(((BankAccountCreatedEvent) event.getPayload()).getId()));
+        }
+    }
+
+    private static class BloomFilter {
+
+        private final AtomicLongArray bits;
+        private final int bitCount;
+        private final int hashCount;
+
+        private BloomFilter(int expectedInsertions, double falsePositiveRate) {
+            if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("Expected insertions must be positive and false positive rate "
+                                                           + "must be between 0 and 1");
+            }
+            long optimalBitCount = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate)
+                                                            / (Math.log(2) * Math.log(2)));
+            this.bitCount = (int) Math.min(Math.max(optimalBitCount, Long.SIZE), Integer.MAX_VALUE - Long.SIZE);
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+            this.bits = new AtomicLongArray((bitCount + Long.SIZE - 1) / Long.SIZE);
+        }
+
+        private void add(String value) {
+            long hash = hash(value);
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+                long mask = 1L << bit;
+                int index = bit / Long.SIZE;
+                long word;
+                do {
+                    word = bits.get(index);
+                } while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask));
+            }
+        }
+
+        private boolean mightContain(String value) {
+            long hash = hash(value);
+            int hash1 = (int) hash;
+            int hash2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashCount; i++) {
+                int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+                if ((bits.get(bit / Long.SIZE) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 64 bit FNV-1a over the characters, finished with the MurmurHash3 mixer to spread both halves.
+         */
+        private static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
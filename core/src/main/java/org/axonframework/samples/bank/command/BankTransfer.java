@@ -19,6 +19,7 @@ package org.axonframework.samples.bank.command;
 import org.axonframework.commandhandling.CommandHandler;
 import org.axonframework.commandhandling.model.AggregateIdentifier;
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.messaging.MetaData;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCompletedEvent;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferFailedEvent;
@@ -32,9 +33,14 @@ import static org.axonframework.commandhandling.model.AggregateLifecycle.apply;
 /**
  * 银行转账
  */
-@Aggregate
+@Aggregate(repository = "bankTransferEventSourcingRepository")
 public class BankTransfer {
 
+    /**
+     * Meta data key set on the {@link BankTransferCreatedEvent} of a bank transfer executed without the saga
+     */
+    public static final String LOCAL_BANK_TRANSFER = "localBankTransfer";
+
     @AggregateIdentifier
     private String bankTransferId;
     private String sourceBankAccountId;
@@ -56,6 +62,15 @@ public class BankTransfer {
                                            command.getAmount()));
     }
 
+    /**
+     * 本地转账，不经过 saga. The created event is marked, so the saga does not start for it.
+     */
+    public BankTransfer(String bankTransferId, String sourceBankAccountId, String destinationBankAccountId,
+                        long amount) {
+        apply(new BankTransferCreatedEvent(bankTransferId, sourceBankAccountId, destinationBankAccountId, amount),
+              MetaData.with(LOCAL_BANK_TRANSFER, true));
+    }
+
     @CommandHandler
     public void handle(MarkBankTransferCompletedCommand command) {
         apply(new BankTransferCompletedEvent(command.getBankTransferId()));
@@ -20,43 +20,79 @@ import org.axonframework.commandhandling.CommandBus;
 import org.axonframework.commandhandling.callbacks.LoggingCallback;
 import org.axonframework.eventhandling.saga.EndSaga;
 import org.axonframework.eventhandling.saga.SagaEventHandler;
+import org.axonframework.eventhandling.saga.SagaLifecycle;
 import org.axonframework.eventhandling.saga.StartSaga;
+import org.axonframework.eventhandling.scheduling.EventScheduler;
+import org.axonframework.eventhandling.scheduling.ScheduleToken;
+import org.axonframework.messaging.annotation.MetaDataValue;
+import org.axonframework.samples.bank.api.bankaccount.command.CancelBankTransferCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.CreditDestinationBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.DebitSourceBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.ReturnMoneyOfFailedBankTransferCommand;
 import org.axonframework.samples.bank.api.bankaccount.event.*;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferTimedOutEvent;
 import org.axonframework.samples.bank.api.banktransfer.command.MarkBankTransferCompletedCommand;
 import org.axonframework.samples.bank.api.banktransfer.command.MarkBankTransferFailedCommand;
 import org.axonframework.spring.stereotype.Saga;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.time.Duration;
 
 import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
 
 @Saga
 public class BankTransferManagementSaga {
 
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(5);
+
     private transient CommandBus commandBus;
+    private transient EventScheduler eventScheduler;
+    private transient Duration timeout = DEFAULT_TIMEOUT;
 
     @Autowired
     public void setCommandBus(CommandBus commandBus) {
         this.commandBus = commandBus;
     }
 
+    @Autowired
+    public void setEventScheduler(EventScheduler eventScheduler) {
+        this.eventScheduler = eventScheduler;
+    }
+
+    /**
+     * Time a transfer may take before it is compensated and marked failed. Only used when the saga starts.
+     */
+    @Value("${axonbank.bank-transfer.timeout-seconds:300}")
+    public void setTimeoutSeconds(long timeoutSeconds) {
+        this.timeout = Duration.ofSeconds(timeoutSeconds);
+    }
+
     private String sourceBankAccountId;
     private String destinationBankAccountId;
     private long amount;
+    private boolean sourceBankAccountDebited;
+    private boolean timingOut;
+    private ScheduleToken timeoutToken;
 
     /**
-     * 转账开始
+     * 转账开始. A bank transfer executed by the {@link LocalBankTransferCommandHandler} is already done, so the saga
+     * ends right away.
      * @param event
      */
     @StartSaga
     @SagaEventHandler(associationProperty = "bankTransferId")
-    public void on(BankTransferCreatedEvent event) {
+    public void on(BankTransferCreatedEvent event,
+                   @MetaDataValue(BankTransfer.LOCAL_BANK_TRANSFER) Boolean localBankTransfer) {
+        if (Boolean.TRUE.equals(localBankTransfer)) {
+            SagaLifecycle.end();
+            return;
+        }
         this.sourceBankAccountId = event.getSourceBankAccountId();
         this.destinationBankAccountId = event.getDestinationBankAccountId();
         this.amount = event.getAmount();
+        this.timeoutToken = eventScheduler.schedule(timeout, new BankTransferTimedOutEvent(event.getBankTransferId()));
 
         DebitSourceBankAccountCommand command = new DebitSourceBankAccountCommand(event.getSourceBankAccountId(),
                         event.getBankTransferId(),
@@ -67,6 +103,7 @@ public class BankTransferManagementSaga {
     @EndSaga
     @SagaEventHandler(associationProperty = "bankTransferId")
     public void on(SourceBankAccountNotFoundEvent event) {
+        cancelTimeout();
         MarkBankTransferFailedCommand markFailedCommand = new MarkBankTransferFailedCommand(event.getBankTransferId());
         commandBus.dispatch(asCommandMessage(markFailedCommand), LoggingCallback.INSTANCE);
     }
@@ -74,35 +111,90 @@ public class BankTransferManagementSaga {
     @EndSaga
     @SagaEventHandler(associationProperty = "bankTransferId")
     public void on(SourceBankAccountDebitRejectedEvent event) {
+        cancelTimeout();
         MarkBankTransferFailedCommand markFailedCommand = new MarkBankTransferFailedCommand(event.getBankTransferId());
         commandBus.dispatch(asCommandMessage(markFailedCommand), LoggingCallback.INSTANCE);
     }
 
+    /**
+     * A debit that lands while timing out was applied before the cancellation, so it is returned right away.
+     */
     @SagaEventHandler(associationProperty = "bankTransferId")
     public void on(SourceBankAccountDebitedEvent event) {
+        this.sourceBankAccountDebited = true;
+        if (timingOut) {
+            failAndReturnMoney(event.getBankTransferId());
+            return;
+        }
         CreditDestinationBankAccountCommand command = new CreditDestinationBankAccountCommand(destinationBankAccountId,
                 event.getBankTransferId(),
                 event.getAmount());
         commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
     }
 
-    @EndSaga
     @SagaEventHandler(associationProperty = "bankTransferId")
     public void on(DestinationBankAccountNotFoundEvent event) {
+        failAndReturnMoney(event.getBankTransferId());
+    }
+
+    @EndSaga
+    @SagaEventHandler(associationProperty = "bankTransferId")
+    public void on(DestinationBankAccountCreditedEvent event) {
+        cancelTimeout();
+        MarkBankTransferCompletedCommand command = new MarkBankTransferCompletedCommand(event.getBankTransferId());
+        commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+    }
+
+    /**
+     * 转账超时: a debit or credit command got lost, or is still on its way. The bank account it was sent to is asked
+     * to cancel the bank transfer, after which it refuses that command. The saga carries on until the bank account
+     * confirms, or the debit or credit turns out to have landed first. Until then the timeout repeats, so a lost
+     * cancellation is sent again.
+     */
+    @SagaEventHandler(associationProperty = "bankTransferId")
+    public void on(BankTransferTimedOutEvent event) {
+        this.timingOut = true;
+        String bankAccountId = sourceBankAccountDebited ? destinationBankAccountId : sourceBankAccountId;
+        CancelBankTransferCommand command = new CancelBankTransferCommand(bankAccountId, event.getBankTransferId());
+        commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+        cancelTimeout();
+        this.timeoutToken = eventScheduler.schedule(timeout, new BankTransferTimedOutEvent(event.getBankTransferId()));
+    }
+
+    /**
+     * The debit or credit the saga is waiting for will not happen any more.
+     */
+    @SagaEventHandler(associationProperty = "bankTransferId")
+    public void on(BankTransferCancelledEvent event) {
+        if (sourceBankAccountDebited) {
+            failAndReturnMoney(event.getBankTransferId());
+        } else {
+            cancelTimeout();
+            MarkBankTransferFailedCommand markFailedCommand = new MarkBankTransferFailedCommand(
+                    event.getBankTransferId());
+            commandBus.dispatch(asCommandMessage(markFailedCommand), LoggingCallback.INSTANCE);
+            SagaLifecycle.end();
+        }
+    }
+
+    private void failAndReturnMoney(String bankTransferId) {
+        cancelTimeout();
         ReturnMoneyOfFailedBankTransferCommand returnMoneyCommand = new ReturnMoneyOfFailedBankTransferCommand(
                 sourceBankAccountId,
                 amount);
         commandBus.dispatch(asCommandMessage(returnMoneyCommand), LoggingCallback.INSTANCE);
 
-        MarkBankTransferFailedCommand markFailedCommand = new MarkBankTransferFailedCommand(
-                event.getBankTransferId());
+        MarkBankTransferFailedCommand markFailedCommand = new MarkBankTransferFailedCommand(bankTransferId);
         commandBus.dispatch(asCommandMessage(markFailedCommand), LoggingCallback.INSTANCE);
+        SagaLifecycle.end();
     }
 
-    @EndSaga
-    @SagaEventHandler(associationProperty = "bankTransferId")
-    public void on(DestinationBankAccountCreditedEvent event) {
-        MarkBankTransferCompletedCommand command = new MarkBankTransferCompletedCommand(event.getBankTransferId());
-        commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+    /**
+     * Sagas started before timeouts were introduced have no token; the sweeper takes care of those.
+     */
+    private void cancelTimeout() {
+        if (timeoutToken != null) {
+            eventScheduler.cancelSchedule(timeoutToken);
+        }
     }
 }
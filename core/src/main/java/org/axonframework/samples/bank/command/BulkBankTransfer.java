@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.CommandHandler;
+import org.axonframework.commandhandling.model.AggregateIdentifier;
+import org.axonframework.eventsourcing.EventSourcingHandler;
+import org.axonframework.samples.bank.api.banktransfer.command.BulkTransferLeg;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateBulkBankTransferCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferCompletedCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferFailedCommand;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCompletedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCreatedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferFailedEvent;
+import org.axonframework.spring.stereotype.Aggregate;
+
+import static org.axonframework.commandhandling.model.AggregateLifecycle.apply;
+
+/**
+ * 批量转账，一个源账户转给多个目标账户
+ */
+@Aggregate(repository = "bulkBankTransferEventSourcingRepository")
+public class BulkBankTransfer {
+
+    @AggregateIdentifier
+    private String bulkTransferId;
+    private Status status;
+
+    @SuppressWarnings("unused")
+    protected BulkBankTransfer() {
+    }
+
+    @CommandHandler
+    public BulkBankTransfer(CreateBulkBankTransferCommand command) {
+        long totalAmount = 0;
+        for (BulkTransferLeg leg : command.getLegs()) {
+            if (leg.getAmount() <= 0) {
+                throw new IllegalArgumentException("Amount of a bulk transfer leg must be positive");
+            }
+            totalAmount += leg.getAmount();
+        }
+        apply(new BulkBankTransferCreatedEvent(command.getBulkTransferId(),
+                                               command.getSourceBankAccountId(),
+                                               command.getLegs(),
+                                               totalAmount));
+    }
+
+    @CommandHandler
+    public void handle(MarkBulkBankTransferCompletedCommand command) {
+        apply(new BulkBankTransferCompletedEvent(command.getBulkTransferId(), command.getFailedLegCount()));
+    }
+
+    @CommandHandler
+    public void handle(MarkBulkBankTransferFailedCommand command) {
+        apply(new BulkBankTransferFailedEvent(command.getBulkTransferId()));
+    }
+
+    @EventSourcingHandler
+    public void on(BulkBankTransferCreatedEvent event) {
+        this.bulkTransferId = event.getBulkTransferId();
+        this.status = Status.STARTED;
+    }
+
+    @EventSourcingHandler
+    public void on(BulkBankTransferCompletedEvent event) {
+        this.status = Status.COMPLETED;
+    }
+
+    @EventSourcingHandler
+    public void on(BulkBankTransferFailedEvent event) {
+        this.status = Status.FAILED;
+    }
+
+    private enum Status {
+        STARTED,
+        FAILED,
+        COMPLETED
+    }
+}
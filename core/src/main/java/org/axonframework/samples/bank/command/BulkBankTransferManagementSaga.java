@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.CommandBus;
+import org.axonframework.commandhandling.callbacks.LoggingCallback;
+import org.axonframework.eventhandling.saga.EndSaga;
+import org.axonframework.eventhandling.saga.SagaEventHandler;
+import org.axonframework.eventhandling.saga.SagaLifecycle;
+import org.axonframework.eventhandling.saga.StartSaga;
+import org.axonframework.samples.bank.api.bankaccount.command.CreditBulkTransferLegCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DebitSourceBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.ReturnMoneyOfFailedBankTransferCommand;
+import org.axonframework.samples.bank.api.bankaccount.event.*;
+import org.axonframework.samples.bank.api.banktransfer.command.BulkTransferLeg;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferCompletedCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferFailedCommand;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCreatedEvent;
+import org.axonframework.spring.stereotype.Saga;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.List;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+
+/**
+ * Manages a whole bulk bank transfer with a single saga instance, associated by the bulk transfer id only. The source
+ * bank account is debited once for the total amount, after which all legs are credited without waiting for each
+ * other. The money of legs whose destination does not exist is returned to the source in one go when the last leg
+ * has been handled.
+ */
+@Saga
+public class BulkBankTransferManagementSaga {
+
+    private transient CommandBus commandBus;
+
+    @Autowired
+    public void setCommandBus(CommandBus commandBus) {
+        this.commandBus = commandBus;
+    }
+
+    private String sourceBankAccountId;
+    private List<BulkTransferLeg> legs;
+    private int pendingLegCount;
+    private int failedLegCount;
+    private long failedAmount;
+
+    @StartSaga
+    @SagaEventHandler(associationProperty = "bulkTransferId")
+    public void on(BulkBankTransferCreatedEvent event) {
+        this.sourceBankAccountId = event.getSourceBankAccountId();
+        this.legs = event.getLegs();
+        this.pendingLegCount = legs.size();
+
+        DebitSourceBankAccountCommand command = new DebitSourceBankAccountCommand(event.getSourceBankAccountId(),
+                                                                                  event.getBulkTransferId(),
+                                                                                  event.getTotalAmount());
+        commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+    }
+
+    @EndSaga
+    @SagaEventHandler(associationProperty = "bankTransferId", keyName = "bulkTransferId")
+    public void on(SourceBankAccountNotFoundEvent event) {
+        markFailed(event.getBankTransferId());
+    }
+
+    @EndSaga
+    @SagaEventHandler(associationProperty = "bankTransferId", keyName = "bulkTransferId")
+    public void on(SourceBankAccountDebitRejectedEvent event) {
+        markFailed(event.getBankTransferId());
+    }
+
+    @SagaEventHandler(associationProperty = "bankTransferId", keyName = "bulkTransferId")
+    public void on(SourceBankAccountDebitedEvent event) {
+        for (int legIndex = 0; legIndex < legs.size(); legIndex++) {
+            BulkTransferLeg leg = legs.get(legIndex);
+            CreditBulkTransferLegCommand command = new CreditBulkTransferLegCommand(leg.getDestinationBankAccountId(),
+                                                                                    event.getBankTransferId(),
+                                                                                    legIndex,
+                                                                                    leg.getAmount());
+            commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+        }
+    }
+
+    @SagaEventHandler(associationProperty = "bulkTransferId")
+    public void on(BulkTransferLegCreditedEvent event) {
+        legHandled(event.getBulkTransferId());
+    }
+
+    @SagaEventHandler(associationProperty = "bulkTransferId")
+    public void on(BulkTransferLegDestinationNotFoundEvent event) {
+        failedLegCount++;
+        failedAmount += legs.get(event.getLegIndex()).getAmount();
+        legHandled(event.getBulkTransferId());
+    }
+
+    private void legHandled(String bulkTransferId) {
+        if (--pendingLegCount > 0) {
+            return;
+        }
+        if (failedAmount > 0) {
+            ReturnMoneyOfFailedBankTransferCommand returnMoneyCommand = new ReturnMoneyOfFailedBankTransferCommand(
+                    sourceBankAccountId,
+                    failedAmount);
+            commandBus.dispatch(asCommandMessage(returnMoneyCommand), LoggingCallback.INSTANCE);
+        }
+        MarkBulkBankTransferCompletedCommand command = new MarkBulkBankTransferCompletedCommand(bulkTransferId,
+                                                                                                failedLegCount);
+        commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+        SagaLifecycle.end();
+    }
+
+    private void markFailed(String bulkTransferId) {
+        MarkBulkBankTransferFailedCommand command = new MarkBulkBankTransferFailedCommand(bulkTransferId);
+        commandBus.dispatch(asCommandMessage(command), LoggingCallback.INSTANCE);
+    }
+}
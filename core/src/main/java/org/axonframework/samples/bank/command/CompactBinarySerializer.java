@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.scheduling.java.SimpleScheduleToken;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.serialization.Converter;
+import org.axonframework.serialization.Revision;
+import org.axonframework.serialization.RevisionResolver;
+import org.axonframework.serialization.SerializationException;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.SerializedType;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.SimpleSerializedObject;
+import org.axonframework.serialization.SimpleSerializedType;
+import org.axonframework.serialization.UnknownSerializedTypeException;
+import org.springframework.objenesis.Objenesis;
+import org.springframework.objenesis.SpringObjenesis;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serializer writing the Axon Bank commands, events, aggregates and sagas in a compact binary format, and delegating
+ * everything else (tracking tokens, command results, framework types) to another serializer, typically XStream.
+ * <p>
+ * The format starts with a marker byte and a format version, followed by one tagged value. Objects are written as
+ * the values of their non-transient fields, superclass fields included, sorted by field name. The first time a class
+ * occurs its field names are written in front of the values, later occurrences refer back to them. Fields are read
+ * back by name, so fields may be added, removed or reordered anywhere in a class or its superclasses: unknown fields
+ * are skipped and missing ones keep their default. Only objects that are not of the declared type of their field, like
+ * list elements, carry their class name, and only the first time the class occurs. Renaming a field or changing its
+ * type needs an upcaster; serialized types carry the {@link Revision} of their class, {@value #DEFAULT_REVISION} when
+ * it has none, for the upcaster to match on.
+ * <p>
+ * Data in format version 1, which wrote the fields by position in declaration order, can still be read.
+ * <p>
+ * Data that does not start with the marker is handed to the delegate, so events and sagas stored as XML before
+ * switching to this serializer can still be read.
+ */
+public class CompactBinarySerializer implements Serializer {
+
+    static final byte MARKER = (byte) 0xCB;
+    static final byte FORMAT_VERSION = 2;
+    static final byte POSITIONAL_FORMAT_VERSION = 1;
+    static final String DEFAULT_REVISION = "1";
+
+    private static final String BANK_PACKAGE = "org.axonframework.samples.bank.";
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte ENUM = 7;
+    private static final byte LIST = 8;
+    private static final byte SET = 9;
+    private static final byte MAP = 10;
+    private static final byte OBJECT = 11;
+    private static final byte OBJECT_OF_DECLARED_TYPE = 12;
+
+    private final Serializer delegate;
+    private final ClassLoader classLoader;
+    private final Objenesis objenesis = new SpringObjenesis();
+    private final Map<Class<?>, RecordSchema> schemaPerClass = new ConcurrentHashMap<>();
+    private final RevisionResolver revisionResolver;
+
+    public CompactBinarySerializer(Serializer delegate) {
+        this(delegate, CompactBinarySerializer.class.getClassLoader());
+    }
+
+    public CompactBinarySerializer(Serializer delegate, ClassLoader classLoader) {
+        this(delegate, classLoader, type -> {
+            Revision revision = type.getAnnotation(Revision.class);
+            return revision == null ? DEFAULT_REVISION : revision.value();
+        });
+    }
+
+    public CompactBinarySerializer(Serializer delegate, ClassLoader classLoader, RevisionResolver revisionResolver) {
+        this.delegate = delegate;
+        this.classLoader = classLoader;
+        this.revisionResolver = revisionResolver;
+    }
+
+    @Override
+    public <T> SerializedObject<T> serialize(Object object, Class<T> expectedRepresentation) {
+        if (object == null || !isCompactType(object.getClass())) {
+            return delegate.serialize(object, expectedRepresentation);
+        }
+        byte[] bytes;
+        try {
+            Output output = new Output();
+            output.write(MARKER);
+            output.write(FORMAT_VERSION);
+            writeValue(output, object, object.getClass());
+            bytes = output.toByteArray();
+        } catch (UnsupportedValueException e) {
+            return delegate.serialize(object, expectedRepresentation);
+        }
+        T data = getConverter().convert(bytes, byte[].class, expectedRepresentation);
+        return new SimpleSerializedObject<>(data, expectedRepresentation, typeOf(object.getClass()));
+    }
+
+    @Override
+    public <T> boolean canSerializeTo(Class<T> expectedRepresentation) {
+        return delegate.canSerializeTo(expectedRepresentation)
+                && getConverter().canConvert(byte[].class, expectedRepresentation);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <S, T> T deserialize(SerializedObject<S> serializedObject) {
+        if (!getConverter().canConvert(serializedObject.getContentType(), byte[].class)) {
+            return delegate.deserialize(serializedObject);
+        }
+        byte[] bytes = getConverter().convert(serializedObject.getData(), serializedObject.getContentType(),
+                                              byte[].class);
+        if (bytes.length < 2 || bytes[0] != MARKER) {
+            return delegate.deserialize(serializedObject);
+        }
+        if (bytes[1] != FORMAT_VERSION && bytes[1] != POSITIONAL_FORMAT_VERSION) {
+            throw new SerializationException("Unsupported compact binary format version " + bytes[1]);
+        }
+        Class<?> type = classForType(serializedObject.getType());
+        if (!isCompactType(type)) {
+            throw new SerializationException("Type " + type.getName() + " is not written in compact binary format");
+        }
+        Input input = new Input(bytes);
+        try {
+            return (T) readValue(input, type);
+        } catch (RuntimeException e) {
+            throw new SerializationException("Could not deserialize " + type.getName(), e);
+        }
+    }
+
+    @Override
+    public Class<?> classForType(SerializedType type) throws UnknownSerializedTypeException {
+        return delegate.classForType(type);
+    }
+
+    /**
+     * The raw parameter type is the one of {@link Serializer#typeForClass(Class)}.
+     */
+    @SuppressWarnings("rawtypes")
+    @Override
+    public SerializedType typeForClass(Class type) {
+        return isCompactType(type) ? typeOf(type) : delegate.typeForClass(type);
+    }
+
+    private SerializedType typeOf(Class<?> type) {
+        return new SimpleSerializedType(type.getName(), revisionResolver.revisionOf(type));
+    }
+
+    @Override
+    public Converter getConverter() {
+        return delegate.getConverter();
+    }
+
+    private static boolean isCompactType(Class<?> type) {
+        return MetaData.class.equals(type) || isBankType(type);
+    }
+
+    private static boolean isBankType(Class<?> type) {
+        return type.getName().startsWith(BANK_PACKAGE) && !Enum.class.isAssignableFrom(type) && !type.isInterface()
+                && !Modifier.isAbstract(type.getModifiers());
+    }
+
+    /**
+     * Types written as their fields when nested in a compact type. Schedule tokens are held by sagas.
+     */
+    private static boolean isRecordType(Class<?> type) {
+        return isBankType(type) || SimpleScheduleToken.class.equals(type);
+    }
+
+    private void writeValue(Output output, Object value, Class<?> declaredType) {
+        if (value == null) {
+            output.write(NULL);
+        } else if (value instanceof Boolean) {
+            output.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer) {
+            output.write(INT);
+            output.writeVarLong((Integer) value);
+        } else if (value instanceof Long) {
+            output.write(LONG);
+            output.writeVarLong((Long) value);
+        } else if (value instanceof Double) {
+            output.write(DOUBLE);
+            output.writeLong(Double.doubleToLongBits((Double) value));
+        } else if (value instanceof String) {
+            output.write(STRING);
+            output.writeString((String) value);
+        } else if (value instanceof Enum && ((Enum<?>) value).getDeclaringClass().equals(declaredType)) {
+            output.write(ENUM);
+            output.writeString(((Enum<?>) value).name());
+        } else if (value instanceof List) {
+            output.write(LIST);
+            writeElements(output, (List<?>) value);
+        } else if (value instanceof Set) {
+            output.write(SET);
+            writeElements(output, (Set<?>) value);
+        } else if (value instanceof Map) {
+            output.write(MAP);
+            Map<?, ?> map = (Map<?, ?>) value;
+            output.writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(output, entry.getKey(), Object.class);
+                writeValue(output, entry.getValue(), Object.class);
+            }
+        } else if (isRecordType(value.getClass())) {
+            if (value.getClass().equals(declaredType)) {
+                output.write(OBJECT_OF_DECLARED_TYPE);
+            } else {
+                output.write(OBJECT);
+                output.writeClass(value.getClass());
+            }
+            RecordSchema schema = schemaOf(value.getClass());
+            if (schema.fields == null) {
+                throw new UnsupportedValueException();
+            }
+            output.writeSchema(schema);
+            for (Field field : schema.fields) {
+                writeValue(output, getField(field, value), field.getType());
+            }
+        } else {
+            throw new UnsupportedValueException();
+        }
+    }
+
+    private void writeElements(Output output, Collection<?> elements) {
+        output.writeVarLong(elements.size());
+        for (Object element : elements) {
+            writeValue(output, element, Object.class);
+        }
+    }
+
+    private Object readValue(Input input, Class<?> declaredType) {
+        byte tag = input.buffer.get();
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case INT:
+                return (int) readVarLong(input);
+            case LONG:
+                return readVarLong(input);
+            case DOUBLE:
+                return Double.longBitsToDouble(input.buffer.getLong());
+            case STRING:
+                return readString(input);
+            case ENUM:
+                return readEnum(readString(input), declaredType);
+            case LIST:
+                return readElements(input, new ArrayList<>());
+            case SET:
+                return readElements(input, new LinkedHashSet<>());
+            case MAP:
+                int size = (int) readVarLong(input);
+                Map<Object, Object> map = new LinkedHashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(input, Object.class), readValue(input, Object.class));
+                }
+                return MetaData.class.equals(declaredType) ? MetaData.from(castKeys(map)) : map;
+            case OBJECT:
+                return readObject(input, readClass(input));
+            case OBJECT_OF_DECLARED_TYPE:
+                return readObject(input, declaredType);
+            default:
+                throw new SerializationException("Unknown value tag " + tag);
+        }
+    }
+
+    private Object readObject(Input input, Class<?> type) {
+        Object instance = objenesis.newInstance(type);
+        Field[] fields = input.version == POSITIONAL_FORMAT_VERSION
+                ? readFieldCount(input, type)
+                : readSchema(input, type);
+        for (Field field : fields) {
+            if (field != null) {
+                setField(field, instance, readValue(input, field.getType()));
+            } else {
+                readValue(input, Object.class);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the fields of the given type for the field names that were written with the first occurrence of the
+     * type, null for a name the type no longer has.
+     */
+    private Field[] readSchema(Input input, Class<?> type) {
+        int reference = (int) readVarLong(input);
+        if (reference > 0) {
+            return input.schemas.get(reference - 1);
+        }
+        Map<String, Field> fieldsByName = schemaOf(type).fieldsByName;
+        Field[] fields = new Field[(int) readVarLong(input)];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fieldsByName.get(readString(input));
+        }
+        input.schemas.add(fields);
+        return fields;
+    }
+
+    /**
+     * Format version 1 wrote the number of fields, followed by the fields in declaration order.
+     */
+    private Field[] readFieldCount(Input input, Class<?> type) {
+        Field[] declaredFields = schemaOf(type).declaredFields;
+        return Arrays.copyOf(declaredFields, (int) readVarLong(input));
+    }
+
+    private <C extends Collection<Object>> C readElements(Input input, C elements) {
+        int size = (int) readVarLong(input);
+        for (int i = 0; i < size; i++) {
+            elements.add(readValue(input, Object.class));
+        }
+        return elements;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(String name, Class<?> declaredType) {
+        if (!declaredType.isEnum()) {
+            throw new SerializationException("Enum constant " + name + " found for non-enum type " + declaredType);
+        }
+        return Enum.valueOf((Class) declaredType, name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> castKeys(Map<Object, Object> map) {
+        return (Map<String, ?>) (Map<?, ?>) map;
+    }
+
+    private Class<?> readClass(Input input) {
+        int reference = (int) readVarLong(input);
+        if (reference > 0) {
+            return input.classes.get(reference - 1);
+        }
+        Class<?> type = recordClass(readString(input));
+        input.classes.add(type);
+        return type;
+    }
+
+    private Class<?> recordClass(String className) {
+        if (!className.startsWith(BANK_PACKAGE) && !SimpleScheduleToken.class.getName().equals(className)) {
+            throw new SerializationException("Refusing to instantiate " + className);
+        }
+        try {
+            return Class.forName(className, false, classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new SerializationException("Unknown class " + className, e);
+        }
+    }
+
+    private RecordSchema schemaOf(Class<?> type) {
+        return schemaPerClass.computeIfAbsent(type, RecordSchema::new);
+    }
+
+    private static Object getField(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new SerializationException("Could not read field " + field, e);
+        }
+    }
+
+    private static void setField(Field field, Object target, Object value) {
+        if (value == null && field.getType().isPrimitive()) {
+            return;
+        }
+        try {
+            field.set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new SerializationException("Could not write field " + field, e);
+        }
+    }
+
+    private static long readVarLong(Input input) {
+        long zigZag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = input.buffer.get();
+            zigZag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+
+    private static String readString(Input input) {
+        int length = (int) readVarLong(input);
+        ByteBuffer buffer = input.buffer;
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * The non-transient fields of a class and its superclasses, sorted by name for writing. Fields is null when two of
+     * them share a name, such classes are handed to the delegate.
+     */
+    private static class RecordSchema {
+
+        private final Class<?> type;
+        private final Field[] declaredFields;
+        private final Field[] fields;
+        private final String[] names;
+        private final Map<String, Field> fieldsByName = new HashMap<>();
+
+        private RecordSchema(Class<?> type) {
+            this.type = type;
+            Deque<Class<?>> hierarchy = new ArrayDeque<>();
+            for (Class<?> c = type; c != null && !Object.class.equals(c); c = c.getSuperclass()) {
+                hierarchy.push(c);
+            }
+            List<Field> declared = new ArrayList<>();
+            for (Class<?> c : hierarchy) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                        field.setAccessible(true);
+                        declared.add(field);
+                    }
+                }
+            }
+            this.declaredFields = declared.toArray(new Field[declared.size()]);
+            for (Field field : declaredFields) {
+                fieldsByName.put(field.getName(), field);
+            }
+            if (fieldsByName.size() < declaredFields.length) {
+                this.fields = null;
+                this.names = null;
+            } else {
+                this.fields = declaredFields.clone();
+                Arrays.sort(fields, Comparator.comparing(Field::getName));
+                this.names = Arrays.stream(fields).map(Field::getName).toArray(String[]::new);
+            }
+        }
+    }
+
+    private static class Input {
+
+        private final ByteBuffer buffer;
+        private final byte version;
+        private final List<Class<?>> classes = new ArrayList<>();
+        private final List<Field[]> schemas = new ArrayList<>();
+
+        private Input(byte[] bytes) {
+            this.buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 2);
+            this.version = bytes[1];
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        private final Map<Class<?>, Integer> classReferences = new HashMap<>();
+        private final Map<Class<?>, Integer> schemaReferences = new HashMap<>();
+
+        private Output() {
+            super(64);
+        }
+
+        /**
+         * Writes the class name the first time a class occurs, and a reference to that first occurrence after that.
+         */
+        private void writeClass(Class<?> type) {
+            Integer reference = classReferences.get(type);
+            if (reference != null) {
+                writeVarLong(reference);
+            } else {
+                classReferences.put(type, classReferences.size() + 1);
+                writeVarLong(0);
+                writeString(type.getName());
+            }
+        }
+
+        /**
+         * Writes the field names the first time a class occurs, and a reference to that first occurrence after that.
+         */
+        private void writeSchema(RecordSchema schema) {
+            Integer reference = schemaReferences.get(schema.type);
+            if (reference != null) {
+                writeVarLong(reference);
+            } else {
+                schemaReferences.put(schema.type, schemaReferences.size() + 1);
+                writeVarLong(0);
+                writeVarLong(schema.names.length);
+                for (String name : schema.names) {
+                    writeString(name);
+                }
+            }
+        }
+
+        private void writeVarLong(long value) {
+            long zigZag = (value << 1) ^ (value >> 63);
+            while ((zigZag & ~0x7FL) != 0) {
+                write((int) ((zigZag & 0x7F) | 0x80));
+                zigZag >>>= 7;
+            }
+            write((int) zigZag);
+        }
+
+        private void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static class UnsupportedValueException extends RuntimeException {
+
+        private UnsupportedValueException() {
+            super(null, null, false, false);
+        }
+    }
+}
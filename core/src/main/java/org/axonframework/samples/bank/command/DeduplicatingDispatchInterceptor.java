@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.messaging.MessageDispatchInterceptor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Rejects commands carrying an idempotency key in their meta data that was already seen for the same command name
+ * within the deduplication window, by throwing a {@link DuplicateCommandException} on the dispatching thread. Commands
+ * without a key pass unchanged.
+ * <p>
+ * Keys are kept in memory, at most {@code maxSize} of them; when full, the oldest key is forgotten before its window
+ * ends. After {@link #open(Path)} every key taken or released is appended to a file as well, so the window survives a
+ * restart, also one that did not shut down cleanly.
+ */
+public class DeduplicatingDispatchInterceptor implements MessageDispatchInterceptor<CommandMessage<?>> {
+
+    public static final String IDEMPOTENCY_KEY = "idempotencyKey";
+
+    private final int maxSize;
+    private final Duration window;
+    private final Clock clock;
+    private final LinkedHashMap<String, Instant> expiryPerKey;
+    private BufferedWriter journal;
+
+    public DeduplicatingDispatchInterceptor(int maxSize, Duration window) {
+        this(maxSize, window, Clock.systemUTC());
+    }
+
+    public DeduplicatingDispatchInterceptor(int maxSize, Duration window, Clock clock) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.window = window;
+        this.clock = clock;
+        this.expiryPerKey = new LinkedHashMap<String, Instant>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Instant> eldest) {
+                return size() > DeduplicatingDispatchInterceptor.this.maxSize;
+            }
+        };
+    }
+
+    @Override
+    public BiFunction<Integer, CommandMessage<?>, CommandMessage<?>> handle(List<CommandMessage<?>> messages) {
+        return (index, command) -> {
+            String key = keyOf(command);
+            if (key != null && !register(key)) {
+                throw new DuplicateCommandException("Command " + command.getCommandName()
+                                                            + " was already sent with idempotency key "
+                                                            + command.getMetaData().get(IDEMPOTENCY_KEY));
+            }
+            return command;
+        };
+    }
+
+    /**
+     * Forgets the idempotency key of the given command, so it can be sent again. Used when the command failed.
+     *
+     * @throws UncheckedIOException when the release could not be written to the file, the key is forgotten in memory
+     *                              but comes back after a restart
+     */
+    public synchronized void release(CommandMessage<?> command) {
+        String key = keyOf(command);
+        if (key != null && expiryPerKey.remove(key) != null) {
+            append(Instant.EPOCH, key);
+        }
+    }
+
+    public synchronized int size() {
+        removeExpired(clock.instant());
+        return expiryPerKey.size();
+    }
+
+    /**
+     * Loads the keys kept in the given file and from then on appends every key taken or released to it. The file is
+     * compacted to the keys whose window has not ended yet first. Call {@link #close()} to close the file.
+     */
+    public synchronized void open(Path file) throws IOException {
+        load(file);
+        save(file);
+        journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Writes the keys whose window has not ended yet to the given file, one per line.
+     */
+    public synchronized void save(Path file) throws IOException {
+        removeExpired(clock.instant());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Instant> entry : expiryPerKey.entrySet()) {
+                write(writer, entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Adds the keys saved to the given file whose window has not ended yet. Lines are applied in order, so a later
+     * line for a key replaces an earlier one and a line whose window has ended forgets the key. A window longer than
+     * the current one is cut to the current one. A missing file is ignored.
+     */
+    public synchronized void load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        Instant now = clock.instant();
+        Instant latestExpiry = now.plus(window);
+        Map<String, Instant> loaded = new LinkedHashMap<>(expiryPerKey);
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int separator = line.indexOf(' ');
+            if (separator > 0) {
+                String key = line.substring(separator + 1);
+                Instant expiry = Instant.ofEpochMilli(Long.parseLong(line.substring(0, separator)));
+                if (expiry.isAfter(now)) {
+                    loaded.put(key, expiry.isAfter(latestExpiry) ? latestExpiry : expiry);
+                } else {
+                    loaded.remove(key);
+                }
+            }
+        }
+        List<Map.Entry<String, Instant>> entries = new ArrayList<>(loaded.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        expiryPerKey.clear();
+        for (Map.Entry<String, Instant> entry : entries) {
+            expiryPerKey.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * The key is written to the file before it is taken, so a command is never executed with a key the file does
+     * not know about.
+     */
+    private synchronized boolean register(String key) {
+        Instant now = clock.instant();
+        removeExpired(now);
+        if (expiryPerKey.containsKey(key)) {
+            return false;
+        }
+        Instant expiry = now.plus(window);
+        append(expiry, key);
+        expiryPerKey.put(key, expiry);
+        return true;
+    }
+
+    /**
+     * Keys are kept in the order their windows end: a new key ends a full window from now, and {@link #load(Path)}
+     * sorts the loaded keys and cuts their windows to at most that. So expired keys are always at the head.
+     */
+    private void removeExpired(Instant now) {
+        Iterator<Instant> expiries = expiryPerKey.values().iterator();
+        while (expiries.hasNext() && !expiries.next().isAfter(now)) {
+            expiries.remove();
+        }
+    }
+
+    private void append(Instant expiry, String key) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            write(journal, expiry, key);
+            journal.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write idempotency key " + key, e);
+        }
+    }
+
+    private static void write(BufferedWriter writer, Instant expiry, String key) throws IOException {
+        writer.write(expiry.toEpochMilli() + " " + key);
+        writer.newLine();
+    }
+
+    private static String keyOf(CommandMessage<?> command) {
+        Object idempotencyKey = command.getMetaData().get(IDEMPOTENCY_KEY);
+        return idempotencyKey == null ? null : command.getCommandName() + "/" + idempotencyKey;
+    }
+}
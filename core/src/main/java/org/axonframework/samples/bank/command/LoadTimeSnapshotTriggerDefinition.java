@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.SnapshotTrigger;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.Snapshotter;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules a snapshot when sourcing an aggregate from its events took longer than the configured threshold. Unlike
+ * the event count trigger this adapts to the actual cost of a replay, so aggregates with cheap streams are left alone.
+ */
+public class LoadTimeSnapshotTriggerDefinition implements SnapshotTriggerDefinition {
+
+    private final Snapshotter snapshotter;
+    private final long thresholdNanos;
+
+    public LoadTimeSnapshotTriggerDefinition(Snapshotter snapshotter, long threshold, TimeUnit timeUnit) {
+        this.snapshotter = snapshotter;
+        this.thresholdNanos = timeUnit.toNanos(threshold);
+    }
+
+    @Override
+    public SnapshotTrigger prepareTrigger(Class<?> aggregateType) {
+        return new LoadTimeSnapshotTrigger(snapshotter, aggregateType, thresholdNanos);
+    }
+
+    @Override
+    public SnapshotTrigger reconfigure(Class<?> aggregateType, SnapshotTrigger trigger) {
+        if (trigger instanceof LoadTimeSnapshotTrigger) {
+            ((LoadTimeSnapshotTrigger) trigger).setSnapshotter(snapshotter);
+            return trigger;
+        }
+        return new LoadTimeSnapshotTrigger(snapshotter, aggregateType, thresholdNanos);
+    }
+
+    private static class LoadTimeSnapshotTrigger implements SnapshotTrigger, Serializable {
+
+        private final Class<?> aggregateType;
+        private final long thresholdNanos;
+        private transient Snapshotter snapshotter;
+        private transient long replayStart;
+        private String aggregateIdentifier;
+        private boolean initialized;
+
+        public LoadTimeSnapshotTrigger(Snapshotter snapshotter, Class<?> aggregateType, long thresholdNanos) {
+            this.snapshotter = snapshotter;
+            this.aggregateType = aggregateType;
+            this.thresholdNanos = thresholdNanos;
+        }
+
+        @Override
+        public void eventHandled(EventMessage<?> msg) {
+            if (!initialized && replayStart == 0) {
+                replayStart = System.nanoTime();
+            }
+            if (aggregateIdentifier == null && msg instanceof DomainEventMessage) {
+                aggregateIdentifier = ((DomainEventMessage) msg).getAggregateIdentifier();
+            }
+        }
+
+        @Override
+        public void initializationFinished() {
+            initialized = true;
+            if (replayStart == 0 || aggregateIdentifier == null) {
+                return;
+            }
+            long replayTime = System.nanoTime() - replayStart;
+            replayStart = 0;
+            if (replayTime > thresholdNanos) {
+                if (CurrentUnitOfWork.isStarted()) {
+                    CurrentUnitOfWork.get().onPrepareCommit(u -> scheduleSnapshot());
+                } else {
+                    scheduleSnapshot();
+                }
+            }
+        }
+
+        protected void scheduleSnapshot() {
+            snapshotter.scheduleSnapshot(aggregateType, aggregateIdentifier);
+        }
+
+        public void setSnapshotter(Snapshotter snapshotter) {
+            this.snapshotter = snapshotter;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.CommandHandler;
+import org.axonframework.commandhandling.model.Aggregate;
+import org.axonframework.commandhandling.model.AggregateNotFoundException;
+import org.axonframework.commandhandling.model.Repository;
+import org.axonframework.eventhandling.EventBus;
+import org.axonframework.samples.bank.api.bankaccount.event.DestinationBankAccountNotFoundEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountNotFoundEvent;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateLocalBankTransferCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBankTransferCompletedCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBankTransferFailedCommand;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static java.util.Arrays.asList;
+import static org.axonframework.eventhandling.GenericEventMessage.asEventMessage;
+
+/**
+ * Executes a bank transfer between two bank accounts in a single unit of work instead of through the
+ * {@link BankTransferManagementSaga}. The same created, debited, credited and completed events are published, in one
+ * commit, so the query model handles them like any other bank transfer. The created event carries the
+ * {@link BankTransfer#LOCAL_BANK_TRANSFER} meta data, which keeps the saga from starting for it. Only valid when both
+ * bank accounts are handled by this node.
+ */
+public class LocalBankTransferCommandHandler {
+
+    private final Repository<BankAccount> bankAccountRepository;
+    private final Repository<BankTransfer> bankTransferRepository;
+    private final EventBus eventBus;
+
+    public LocalBankTransferCommandHandler(Repository<BankAccount> bankAccountRepository,
+                                           Repository<BankTransfer> bankTransferRepository, EventBus eventBus) {
+        this.bankAccountRepository = bankAccountRepository;
+        this.bankTransferRepository = bankTransferRepository;
+        this.eventBus = eventBus;
+    }
+
+    @CommandHandler
+    public void handle(CreateLocalBankTransferCommand command) throws Exception {
+        String bankTransferId = command.getBankTransferId();
+        Aggregate<BankTransfer> bankTransfer = bankTransferRepository.newInstance(
+                () -> new BankTransfer(bankTransferId,
+                                       command.getSourceBankAccountId(),
+                                       command.getDestinationBankAccountId(),
+                                       command.getAmount()));
+
+        Map<String, Aggregate<BankAccount>> bankAccounts = load(command.getSourceBankAccountId(),
+                                                                command.getDestinationBankAccountId());
+        Aggregate<BankAccount> source = bankAccounts.get(command.getSourceBankAccountId());
+        Aggregate<BankAccount> destination = bankAccounts.get(command.getDestinationBankAccountId());
+        if (source == null) {
+            eventBus.publish(asEventMessage(new SourceBankAccountNotFoundEvent(bankTransferId)));
+            bankTransfer.execute(aggregate -> aggregate.handle(new MarkBankTransferFailedCommand(bankTransferId)));
+        } else if (destination == null) {
+            eventBus.publish(asEventMessage(new DestinationBankAccountNotFoundEvent(bankTransferId)));
+            bankTransfer.execute(aggregate -> aggregate.handle(new MarkBankTransferFailedCommand(bankTransferId)));
+        } else if (!source.invoke(bankAccount -> bankAccount.debit(command.getAmount(), bankTransferId))) {
+            bankTransfer.execute(aggregate -> aggregate.handle(new MarkBankTransferFailedCommand(bankTransferId)));
+        } else {
+            destination.execute(bankAccount -> bankAccount.credit(command.getAmount(), bankTransferId));
+            bankTransfer.execute(aggregate -> aggregate.handle(new MarkBankTransferCompletedCommand(bankTransferId)));
+        }
+    }
+
+    /**
+     * Loads the bank accounts in order of their identifier, so two transfers in opposite directions always lock them
+     * in the same order. Bank accounts that do not exist are left out.
+     */
+    private Map<String, Aggregate<BankAccount>> load(String... bankAccountIds) {
+        Map<String, Aggregate<BankAccount>> bankAccounts = new HashMap<>();
+        for (String bankAccountId : new TreeSet<>(asList(bankAccountIds))) {
+            try {
+                bankAccounts.put(bankAccountId, bankAccountRepository.load(bankAccountId));
+            } catch (AggregateNotFoundException exception) {
+                // reported by the caller
+            }
+        }
+        return bankAccounts;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.common.Registration;
+import org.axonframework.common.caching.Cache;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cache holding at most {@code maxSize} entries. When full, the least recently used entry is evicted and reported to
+ * the registered listeners as expired.
+ */
+public class LruCache implements Cache {
+
+    private final int maxSize;
+    private final Map<Object, Object> entries;
+    private final List<EntryListener> listeners = new CopyOnWriteArrayList<>();
+
+    public LruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                if (size() > LruCache.this.maxSize) {
+                    listeners.forEach(l -> l.onEntryExpired(eldest.getKey()));
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized <K, V> V get(K key) {
+        V value = (V) entries.get(key);
+        if (value != null) {
+            listeners.forEach(l -> l.onEntryRead(key, value));
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized <K, V> void put(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values not supported");
+        }
+        if (entries.put(key, value) == null) {
+            listeners.forEach(l -> l.onEntryCreated(key, value));
+        } else {
+            listeners.forEach(l -> l.onEntryUpdated(key, value));
+        }
+    }
+
+    @Override
+    public synchronized <K, V> boolean putIfAbsent(K key, V value) {
+        if (entries.containsKey(key)) {
+            return false;
+        }
+        put(key, value);
+        return true;
+    }
+
+    @Override
+    public synchronized <K> boolean remove(K key) {
+        if (entries.remove(key) != null) {
+            listeners.forEach(l -> l.onEntryRemoved(key));
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized <K> boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public Registration registerCacheEntryListener(EntryListener cacheEntryListener) {
+        listeners.add(cacheEntryListener);
+        return () -> listeners.remove(cacheEntryListener);
+    }
+}
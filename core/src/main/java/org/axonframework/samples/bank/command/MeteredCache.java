@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.common.Registration;
+import org.axonframework.common.caching.Cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache decorator counting hits, misses and removals of the cache it wraps.
+ */
+public class MeteredCache implements Cache {
+
+    private final Cache delegate;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong removals = new AtomicLong();
+
+    public MeteredCache(Cache delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public <K, V> V get(K key) {
+        V value = delegate.get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    @Override
+    public <K, V> void put(K key, V value) {
+        delegate.put(key, value);
+    }
+
+    @Override
+    public <K, V> boolean putIfAbsent(K key, V value) {
+        return delegate.putIfAbsent(key, value);
+    }
+
+    @Override
+    public <K> boolean remove(K key) {
+        boolean removed = delegate.remove(key);
+        if (removed) {
+            removals.incrementAndGet();
+        }
+        return removed;
+    }
+
+    @Override
+    public <K> boolean containsKey(K key) {
+        return delegate.containsKey(key);
+    }
+
+    @Override
+    public Registration registerCacheEntryListener(EntryListener cacheEntryListener) {
+        return delegate.registerCacheEntryListener(cacheEntryListener);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getRemovalCount() {
+        return removals.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "MeteredCache{hits=" + hits + ", misses=" + misses + ", removals=" + removals + "}";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.AnnotationCommandTargetResolver;
+import org.axonframework.commandhandling.CommandCallback;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.commandhandling.CommandTargetResolver;
+import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.monitoring.MessageMonitor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command bus handling each command on one of a fixed number of single threaded lanes. The lane is chosen by hashing
+ * the identifier of the target aggregate, so commands for the same aggregate are handled one at a time and in the
+ * order they were dispatched, while commands for different aggregates are handled in parallel.
+ * <p>
+ * Dispatch interceptors still run on the dispatching thread, so validation errors are reported to the caller
+ * immediately.
+ */
+public class ShardedCommandBus extends SimpleCommandBus {
+
+    private final CommandTargetResolver commandTargetResolver = new AnnotationCommandTargetResolver();
+    private final ExecutorService[] lanes;
+
+    public ShardedCommandBus(int laneCount, TransactionManager transactionManager,
+                             MessageMonitor<? super CommandMessage<?>> messageMonitor) {
+        super(transactionManager, messageMonitor);
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("laneCount must be positive");
+        }
+        AxonThreadFactory threadFactory = new AxonThreadFactory("CommandLanes");
+        this.lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    @Override
+    protected <C, R> void doDispatch(CommandMessage<C> command, CommandCallback<? super C, R> callback) {
+        try {
+            lanes[laneOf(command)].execute(() -> super.doDispatch(command, callback));
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(command, e);
+        }
+    }
+
+    /**
+     * Returns the index of the lane handling the given command. Commands without a target aggregate are spread over
+     * the lanes by their own identifier.
+     */
+    public int laneOf(CommandMessage<?> command) {
+        String routingKey;
+        try {
+            routingKey = commandTargetResolver.resolveTarget(command).getIdentifier();
+        } catch (IllegalArgumentException e) {
+            routingKey = command.getIdentifier();
+        }
+        return (routingKey.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Stops accepting commands and waits for the commands already queued on the lanes to be handled.
+     */
+    public void shutdown() throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.common.caching.Cache;
+import org.axonframework.eventhandling.saga.AssociationValue;
+import org.axonframework.eventhandling.saga.AssociationValues;
+import org.axonframework.eventhandling.saga.repository.CachingSagaStore;
+import org.axonframework.eventhandling.saga.repository.SagaStore;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link CachingSagaStore} that keeps its caches in line with the delegate when a unit of work rolls back. Cached
+ * sagas are the same instances the saga manager modifies, so a saga touched by a unit of work that rolls back is
+ * evicted together with its association values, and is read from the delegate again when the event is retried.
+ * <p>
+ * When a saga ends, its association values are evicted as well, instead of lingering in the cache as empty entries.
+ */
+public class TransactionalCachingSagaStore<T> extends CachingSagaStore<T> {
+
+    private final Cache associationsCache;
+    private final Cache sagaCache;
+
+    public TransactionalCachingSagaStore(SagaStore<T> delegate, Cache associationsCache, Cache sagaCache) {
+        super(delegate, associationsCache, sagaCache);
+        this.associationsCache = associationsCache;
+        this.sagaCache = sagaCache;
+    }
+
+    @Override
+    public <S extends T> Entry<S> loadSaga(Class<S> sagaType, String sagaIdentifier) {
+        Entry<S> entry = super.loadSaga(sagaType, sagaIdentifier);
+        if (entry != null) {
+            evictOnRollback(sagaType, sagaIdentifier, entry.associationValues());
+        }
+        return entry;
+    }
+
+    @Override
+    public void insertSaga(Class<? extends T> sagaType, String sagaIdentifier, T saga, TrackingToken token,
+                           Set<AssociationValue> associationValues) {
+        evictOnRollback(sagaType, sagaIdentifier, associationValues);
+        super.insertSaga(sagaType, sagaIdentifier, saga, token, associationValues);
+    }
+
+    @Override
+    public void updateSaga(Class<? extends T> sagaType, String sagaIdentifier, T saga, TrackingToken token,
+                           AssociationValues associationValues) {
+        Set<AssociationValue> touched = new HashSet<>(associationValues.asSet());
+        touched.addAll(associationValues.removedAssociations());
+        evictOnRollback(sagaType, sagaIdentifier, touched);
+        super.updateSaga(sagaType, sagaIdentifier, saga, token, associationValues);
+    }
+
+    @Override
+    public void deleteSaga(Class<? extends T> sagaType, String sagaIdentifier,
+                           Set<AssociationValue> associationValues) {
+        evictOnRollback(sagaType, sagaIdentifier, associationValues);
+        super.deleteSaga(sagaType, sagaIdentifier, associationValues);
+        associationValues.forEach(associationValue -> associationsCache.remove(cacheKey(sagaType, associationValue)));
+    }
+
+    private void evictOnRollback(Class<?> sagaType, String sagaIdentifier, Set<AssociationValue> associationValues) {
+        if (!CurrentUnitOfWork.isStarted()) {
+            return;
+        }
+        Set<AssociationValue> evicted = new HashSet<>(associationValues);
+        CurrentUnitOfWork.get().onRollback(unitOfWork -> {
+            sagaCache.remove(sagaIdentifier);
+            evicted.forEach(associationValue -> associationsCache.remove(cacheKey(sagaType, associationValue)));
+        });
+    }
+
+    /**
+     * Same key as used by {@link CachingSagaStore} for the association values it caches.
+     */
+    private static String cacheKey(Class<?> sagaType, AssociationValue associationValue) {
+        return sagaType.getName() + "/" + associationValue.getKey() + "=" + associationValue.getValue();
+    }
+}
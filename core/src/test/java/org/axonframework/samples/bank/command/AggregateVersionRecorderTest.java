@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.AggregateAnnotationCommandHandler;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.inmemory.InMemoryEventStorageEngine;
+import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.junit.*;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+import static org.junit.Assert.*;
+
+public class AggregateVersionRecorderTest {
+
+    private EmbeddedEventStore eventStore;
+    private SimpleCommandBus commandBus;
+    private AggregateVersionRecorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        eventStore = new EmbeddedEventStore(new InMemoryEventStorageEngine());
+        recorder = new AggregateVersionRecorder();
+        eventStore.registerDispatchInterceptor(recorder);
+        commandBus = new SimpleCommandBus();
+        new AggregateAnnotationCommandHandler<>(BankAccount.class,
+                                                new EventSourcingRepository<>(
+                                                        new GenericAggregateFactory<>(BankAccount.class),
+                                                        eventStore))
+                .subscribe(commandBus);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventStore.shutDown();
+    }
+
+    @Test
+    public void testRecordsVersionOfEachAggregateReachedByCommand() throws Exception {
+        assertEquals(Collections.singletonMap("bankAccount1", 0L),
+                     sendRecorded(new CreateBankAccountCommand("bankAccount1", 0)));
+
+        Map<String, Long> versions = sendRecorded(new DepositMoneyCommand("bankAccount1", 100));
+
+        assertEquals(Collections.singletonMap("bankAccount1", lastSequenceNumber("bankAccount1")), versions);
+        assertTrue(versions.get("bankAccount1") > 0);
+    }
+
+    @Test
+    public void testCommandsNotStartedAreNotRecorded() throws Exception {
+        CommandMessage<?> command = asCommandMessage(new CreateBankAccountCommand("bankAccount1", 0));
+        commandBus.dispatch(command);
+
+        assertTrue(recorder.finish(command.getIdentifier()).isEmpty());
+    }
+
+    @Test
+    public void testNothingIsRecordedForFailedCommand() throws Exception {
+        assertTrue(sendRecorded(new DepositMoneyCommand("unknownBankAccount", 100)).isEmpty());
+    }
+
+    private Map<String, Long> sendRecorded(Object payload) {
+        CommandMessage<?> command = asCommandMessage(payload);
+        recorder.start(command.getIdentifier());
+        commandBus.dispatch(command);
+        return recorder.finish(command.getIdentifier());
+    }
+
+    private long lastSequenceNumber(String aggregateIdentifier) {
+        return eventStore.readEvents(aggregateIdentifier)
+                         .asStream()
+                         .mapToLong(DomainEventMessage::getSequenceNumber)
+                         .max()
+                         .orElse(-1);
+    }
+}
@@ -19,15 +19,28 @@ package org.axonframework.samples.bank.command;
 import org.axonframework.messaging.interceptors.BeanValidationInterceptor;
 import org.axonframework.messaging.interceptors.JSR303ViolationException;
 import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.axonframework.samples.bank.api.bankaccount.command.BatchMoneyMovementCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.CancelBankTransferCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.CreditBulkTransferLegCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.CreditDestinationBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DebitSourceBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.MoneyMovement;
+import org.axonframework.samples.bank.api.bankaccount.event.BankTransferCancelledEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.BulkTransferLegCreditedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.BulkTransferLegDestinationNotFoundEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountNotFoundEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.MoneyWithdrawnEvent;
 import org.axonframework.samples.bank.api.bankaccount.command.WithdrawMoneyCommand;
 import org.axonframework.test.aggregate.AggregateTestFixture;
 import org.axonframework.test.aggregate.FixtureConfiguration;
 import org.junit.*;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.UUID;
 
 public class BankAccountCommandHandlerTest {
@@ -84,4 +97,113 @@ public class BankAccountCommandHandlerTest {
                    .when(new WithdrawMoneyCommand(id, 51))
                    .expectEvents();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBatchMoneyMovement() throws Exception {
+        String id = "bankAccountId";
+
+        testFixture.given(new BankAccountCreatedEvent(id, 0))
+                   .when(new BatchMoneyMovementCommand(id, Arrays.asList(MoneyMovement.deposit(1000),
+                                                                         MoneyMovement.withdrawal(400),
+                                                                         MoneyMovement.deposit(50))))
+                   .expectEvents(new MoneyDepositedEvent(id, 1000),
+                                 new MoneyWithdrawnEvent(id, 400),
+                                 new MoneyDepositedEvent(id, 50));
+    }
+
+    @Test
+    public void testBatchMoneyMovement_RejectWithdrawalBeyondOverdraftLimit() throws Exception {
+        String id = "bankAccountId";
+
+        testFixture.given(new BankAccountCreatedEvent(id, 100), new MoneyDepositedEvent(id, 50))
+                   .when(new BatchMoneyMovementCommand(id, Arrays.asList(MoneyMovement.withdrawal(120),
+                                                                         MoneyMovement.withdrawal(31),
+                                                                         MoneyMovement.withdrawal(30))))
+                   .expectEvents(new MoneyWithdrawnEvent(id, 120),
+                                 new MoneyWithdrawnEvent(id, 30));
+    }
+
+    @Test(expected = JSR303ViolationException.class)
+    public void testBatchMoneyMovement_RejectEmptyBatch() throws Exception {
+        testFixture.given(new BankAccountCreatedEvent("bankAccountId", 0))
+                   .when(new BatchMoneyMovementCommand("bankAccountId", Collections.emptyList()));
+    }
+
+    @Test
+    public void testCreditBulkTransferLeg() throws Exception {
+        String id = "bankAccountId";
+
+        testFixture.given(new BankAccountCreatedEvent(id, 0))
+                   .when(new CreditBulkTransferLegCommand(id, "bulkTransferId", 3, 25))
+                   .expectEvents(new BulkTransferLegCreditedEvent(id, 25, "bulkTransferId", 3));
+    }
+
+    @Test
+    public void testCreditBulkTransferLeg_DestinationNotFound() throws Exception {
+        testFixture.givenNoPriorActivity()
+                   .when(new CreditBulkTransferLegCommand("unknownBankAccountId", "bulkTransferId", 3, 25))
+                   .expectEvents(new BulkTransferLegDestinationNotFoundEvent("bulkTransferId", 3));
+    }
+
+    @Test
+    public void testCancelBankTransfer() throws Exception {
+        String id = "bankAccountId";
+
+        testFixture.given(new BankAccountCreatedEvent(id, 0))
+                   .when(new CancelBankTransferCommand(id, "bankTransferId"))
+                   .expectEvents(new BankTransferCancelledEvent(id, "bankTransferId"));
+    }
+
+    @Test
+    public void testCancelBankTransfer_BankAccountNotFound() throws Exception {
+        testFixture.givenNoPriorActivity()
+                   .when(new CancelBankTransferCommand("unknownBankAccountId", "bankTransferId"))
+                   .expectEvents(new BankTransferCancelledEvent("unknownBankAccountId", "bankTransferId"));
+    }
+
+    @Test
+    public void testDebitSourceBankAccount_IgnoredAfterCancellation() throws Exception {
+        String id = "bankAccountId";
+
+        testFixture.given(new BankAccountCreatedEvent(id, 0), new MoneyDepositedEvent(id, 50),
+                          new BankTransferCancelledEvent(id, "bankTransferId"))
+                   .when(new DebitSourceBankAccountCommand(id, "bankTransferId", 20))
+                   .expectEvents();
+    }
+
+    @Test
+    public void testCreditDestinationBankAccount_IgnoredAfterCancellation() throws Exception {
+        String id = "bankAccountId";
+
+        testFixture.given(new BankAccountCreatedEvent(id, 0), new BankTransferCancelledEvent(id, "bankTransferId"))
+                   .when(new CreditDestinationBankAccountCommand(id, "bankTransferId", 20))
+                   .expectEvents();
+    }
+
+    @Test
+    public void testDebitSourceBankAccount_KnownToIndex() throws Exception {
+        BankAccountIndex bankAccountIndex = new BankAccountIndex(100, 0.01);
+        bankAccountIndex.add("bankAccountId");
+
+        indexedFixture(bankAccountIndex)
+                .given(new BankAccountCreatedEvent("bankAccountId", 0), new MoneyDepositedEvent("bankAccountId", 50))
+                .when(new DebitSourceBankAccountCommand("bankAccountId", "bankTransferId", 20))
+                .expectEvents(new SourceBankAccountDebitedEvent("bankAccountId", 20, "bankTransferId"));
+    }
+
+    @Test
+    public void testDebitSourceBankAccount_UnknownToIndex() throws Exception {
+        indexedFixture(new BankAccountIndex(100, 0.01))
+                .givenNoPriorActivity()
+                .when(new DebitSourceBankAccountCommand("unknownBankAccountId", "bankTransferId", 20))
+                .expectEvents(new SourceBankAccountNotFoundEvent("bankTransferId"));
+    }
+
+    private static FixtureConfiguration<BankAccount> indexedFixture(BankAccountIndex bankAccountIndex) {
+        FixtureConfiguration<BankAccount> fixture = new AggregateTestFixture<>(BankAccount.class);
+        fixture.registerAnnotatedCommandHandler(new BankAccountCommandHandler(fixture.getRepository(),
+                                                                              fixture.getEventBus(),
+                                                                              bankAccountIndex));
+        return fixture;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.GenericEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.inmemory.InMemoryEventStorageEngine;
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class BankAccountIndexTest {
+
+    private BankAccountIndex bankAccountIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        bankAccountIndex = new BankAccountIndex(1000, 0.01);
+    }
+
+    @Test
+    public void testContainsCreatedBankAccounts() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            bankAccountIndex.on(new BankAccountCreatedEvent("bankAccount" + i, 0));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bankAccountIndex.contains("bankAccount" + i));
+        }
+        for (int i = 1000; i < 11000; i++) {
+            assertFalse(bankAccountIndex.contains("bankAccount" + i));
+        }
+        assertEquals(1000, bankAccountIndex.size());
+    }
+
+    @Test
+    public void testRebuildFromStorageEngine() throws Exception {
+        InMemoryEventStorageEngine storageEngine = new InMemoryEventStorageEngine();
+        storageEngine.appendEvents(
+                new GenericDomainEventMessage<>("BankAccount", "bankAccount1", 0,
+                                                new BankAccountCreatedEvent("bankAccount1", 0)),
+                new GenericDomainEventMessage<>("BankAccount", "bankAccount1", 1,
+                                                new MoneyDepositedEvent("bankAccount1", 100)),
+                new GenericDomainEventMessage<>("BankAccount", "bankAccount2", 0,
+                                                new BankAccountCreatedEvent("bankAccount2", 50)),
+                GenericEventMessage.asEventMessage("unrelated"));
+
+        bankAccountIndex.rebuild(storageEngine);
+
+        assertTrue(bankAccountIndex.contains("bankAccount1"));
+        assertTrue(bankAccountIndex.contains("bankAccount2"));
+        assertFalse(bankAccountIndex.contains("bankAccount3"));
+        assertEquals(2, bankAccountIndex.size());
+    }
+}
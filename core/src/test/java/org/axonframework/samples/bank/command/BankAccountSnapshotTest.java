@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.AggregateSnapshotter;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.EventCountSnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.inmemory.InMemoryEventStorageEngine;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitRejectedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitedEvent;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BankAccountSnapshotTest {
+
+    private static final int SNAPSHOT_THRESHOLD = 100;
+
+    private EmbeddedEventStore eventStore;
+    private GenericAggregateFactory<BankAccount> aggregateFactory;
+    private AggregateSnapshotter snapshotter;
+    private List<EventMessage<?>> publishedEvents;
+
+    @Before
+    public void setUp() throws Exception {
+        eventStore = new EmbeddedEventStore(new InMemoryEventStorageEngine());
+        aggregateFactory = new SerializingAggregateFactory();
+        snapshotter = new AggregateSnapshotter(eventStore, aggregateFactory);
+        publishedEvents = new ArrayList<>();
+        eventStore.subscribe(publishedEvents::addAll);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventStore.shutDown();
+    }
+
+    /**
+     * The number of events replayed to load the aggregate stands in for its load time. Load time grows with that
+     * number, and unlike a wall clock measurement it does not vary with the machine running the test.
+     */
+    @Test
+    public void testReplayedEventsStayFlatAsStreamGrows() throws Exception {
+        EventSourcingRepository<BankAccount> repository = repository(
+                new EventCountSnapshotTriggerDefinition(snapshotter, SNAPSHOT_THRESHOLD));
+
+        for (int streamLength : new int[]{1_000, 10_000, 50_000}) {
+            String id = "bankAccount" + streamLength;
+            givenDeposits(id, streamLength);
+
+            debit(repository, id, 1);
+            long replayedEvents = eventStore.readEvents(id).asStream().count();
+
+            assertTrue("Replayed " + replayedEvents + " events for a stream of " + streamLength,
+                       replayedEvents <= SNAPSHOT_THRESHOLD + 1);
+        }
+    }
+
+    @Test
+    public void testSnapshotPreservesBalanceAndOverdraftLimit() throws Exception {
+        EventSourcingRepository<BankAccount> repository = repository(
+                new EventCountSnapshotTriggerDefinition(snapshotter, SNAPSHOT_THRESHOLD));
+        String id = "bankAccountId";
+        givenDeposits(id, 5_000);
+
+        debit(repository, id, 1);
+        assertTrue(eventStore.readEvents(id).next().getPayload() instanceof BankAccount);
+
+        publishedEvents.clear();
+        debit(repository, id, 4_998 + 100);
+        debit(repository, id, 1);
+
+        assertEquals(2, publishedEvents.size());
+        assertTrue(publishedEvents.get(0).getPayload() instanceof SourceBankAccountDebitedEvent);
+        assertTrue(publishedEvents.get(1).getPayload() instanceof SourceBankAccountDebitRejectedEvent);
+    }
+
+    @Test
+    public void testLoadTimeTriggerSchedulesSnapshotForSlowReplay() throws Exception {
+        EventSourcingRepository<BankAccount> repository = repository(
+                new LoadTimeSnapshotTriggerDefinition(snapshotter, 0, TimeUnit.MILLISECONDS));
+        String id = "bankAccountId";
+        givenDeposits(id, 1_000);
+
+        debit(repository, id, 1);
+
+        assertTrue(eventStore.readEvents(id).next().getPayload() instanceof BankAccount);
+    }
+
+    @Test
+    public void testLoadTimeTriggerIgnoresFastReplay() throws Exception {
+        EventSourcingRepository<BankAccount> repository = repository(
+                new LoadTimeSnapshotTriggerDefinition(snapshotter, 1, TimeUnit.HOURS));
+        String id = "bankAccountId";
+        givenDeposits(id, 10);
+
+        debit(repository, id, 1);
+
+        assertTrue(eventStore.readEvents(id).next().getPayload() instanceof BankAccountCreatedEvent);
+    }
+
+    private EventSourcingRepository<BankAccount> repository(SnapshotTriggerDefinition snapshotTriggerDefinition) {
+        return new EventSourcingRepository<>(aggregateFactory, eventStore, snapshotTriggerDefinition);
+    }
+
+    private void givenDeposits(String id, int numberOfDeposits) {
+        List<DomainEventMessage<?>> events = new ArrayList<>();
+        events.add(new GenericDomainEventMessage<>("BankAccount", id, 0, new BankAccountCreatedEvent(id, 100)));
+        for (int i = 1; i < numberOfDeposits; i++) {
+            events.add(new GenericDomainEventMessage<>("BankAccount", id, i, new MoneyDepositedEvent(id, 1)));
+        }
+        eventStore.publish(events);
+    }
+
+    private void debit(EventSourcingRepository<BankAccount> repository, String id, long amount) throws Exception {
+        UnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(null);
+        unitOfWork.execute(() -> repository.load(id).execute(bankAccount -> bankAccount.debit(amount, "bankTransferId")));
+    }
+
+    /**
+     * The in-memory storage engine hands out the stored snapshot instance itself. Copy it the way a serializing
+     * storage engine would, so that loading from a snapshot never mutates the stored one.
+     */
+    private static class SerializingAggregateFactory extends GenericAggregateFactory<BankAccount> {
+
+        private final XStreamSerializer serializer = new XStreamSerializer();
+
+        public SerializingAggregateFactory() {
+            super(BankAccount.class);
+        }
+
+        @Override
+        protected BankAccount postProcessInstance(BankAccount aggregate) {
+            return serializer.deserialize(serializer.serialize(aggregate, byte[].class));
+        }
+    }
+}
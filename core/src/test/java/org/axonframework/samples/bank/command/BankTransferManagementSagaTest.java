@@ -1,7 +1,9 @@
 package org.axonframework.samples.bank.command;
 
+import org.axonframework.samples.bank.api.bankaccount.command.CancelBankTransferCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.CreditDestinationBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.DebitSourceBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.event.BankTransferCancelledEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.DestinationBankAccountCreditedEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.DestinationBankAccountNotFoundEvent;
 import org.axonframework.samples.bank.api.bankaccount.command.ReturnMoneyOfFailedBankTransferCommand;
@@ -9,8 +11,11 @@ import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDeb
 import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitedEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountNotFoundEvent;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferTimedOutEvent;
 import org.axonframework.samples.bank.api.banktransfer.command.MarkBankTransferCompletedCommand;
 import org.axonframework.samples.bank.api.banktransfer.command.MarkBankTransferFailedCommand;
+import org.axonframework.eventhandling.GenericEventMessage;
+import org.axonframework.messaging.MetaData;
 import org.axonframework.test.saga.FixtureConfiguration;
 import org.axonframework.test.saga.SagaTestFixture;
 import org.junit.*;
@@ -37,11 +42,32 @@ public class BankTransferManagementSagaTest {
                                                                                          destinationBankAccountId,
                                                                                          amountOfMoneyToTransfer))
                    .expectActiveSagas(1)
+                   .expectScheduledEvent(BankTransferManagementSaga.DEFAULT_TIMEOUT,
+                                         new BankTransferTimedOutEvent(bankTransferId))
                    .expectDispatchedCommands(new DebitSourceBankAccountCommand(sourceBankAccountId,
                                                                                bankTransferId,
                                                                                amountOfMoneyToTransfer));
     }
 
+    @Test
+    public void testLocalBankTransferCreated() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenNoPriorActivity()
+                   .whenAggregate(bankTransferId)
+                   .publishes(GenericEventMessage.asEventMessage(new BankTransferCreatedEvent(bankTransferId,
+                                                                                              sourceBankAccountId,
+                                                                                              destinationBankAccountId,
+                                                                                              amountOfMoneyToTransfer))
+                                                 .withMetaData(MetaData.with(BankTransfer.LOCAL_BANK_TRANSFER, true)))
+                   .expectActiveSagas(0)
+                   .expectNoScheduledEvents()
+                   .expectNoDispatchedCommands();
+    }
+
     @Test
     public void testSourceBankAccountNotFound() throws Exception {
         String bankTransferId = "bankTransferId";
@@ -135,6 +161,145 @@ public class BankTransferManagementSagaTest {
                 amountOfMoneyToTransfer,
                 bankTransferId))
                    .expectActiveSagas(0)
+                   .expectNoScheduledEvents()
+                   .expectDispatchedCommands(new MarkBankTransferCompletedCommand(bankTransferId));
+    }
+
+    @Test
+    public void testTimedOutBeforeDebit() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .whenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .expectActiveSagas(1)
+                   .expectScheduledEvent(BankTransferManagementSaga.DEFAULT_TIMEOUT,
+                                         new BankTransferTimedOutEvent(bankTransferId))
+                   .expectDispatchedCommands(new CancelBankTransferCommand(sourceBankAccountId, bankTransferId));
+    }
+
+    @Test
+    public void testTimedOutBeforeDebit_CancellationConfirmed() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .andThenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .whenAggregate(sourceBankAccountId)
+                   .publishes(new BankTransferCancelledEvent(sourceBankAccountId, bankTransferId))
+                   .expectActiveSagas(0)
+                   .expectNoScheduledEvents()
+                   .expectDispatchedCommands(new MarkBankTransferFailedCommand(bankTransferId));
+    }
+
+    @Test
+    public void testDebitArrivesAfterTimeout() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .andThenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .whenAggregate(sourceBankAccountId).publishes(new SourceBankAccountDebitedEvent(
+                sourceBankAccountId, amountOfMoneyToTransfer, bankTransferId))
+                   .expectActiveSagas(0)
+                   .expectNoScheduledEvents()
+                   .expectDispatchedCommands(new ReturnMoneyOfFailedBankTransferCommand(sourceBankAccountId,
+                                                                                        amountOfMoneyToTransfer),
+                                             new MarkBankTransferFailedCommand(bankTransferId));
+    }
+
+    @Test
+    public void testTimedOutAfterDebit() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .andThenAggregate(sourceBankAccountId).published(new SourceBankAccountDebitedEvent(
+                sourceBankAccountId, amountOfMoneyToTransfer, bankTransferId))
+                   .whenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .expectActiveSagas(1)
+                   .expectDispatchedCommands(new CancelBankTransferCommand(destinationBankAccountId,
+                                                                           bankTransferId));
+    }
+
+    @Test
+    public void testTimedOutAfterDebit_CancellationConfirmed() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .andThenAggregate(sourceBankAccountId).published(new SourceBankAccountDebitedEvent(
+                sourceBankAccountId, amountOfMoneyToTransfer, bankTransferId))
+                   .andThenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .whenAggregate(destinationBankAccountId)
+                   .publishes(new BankTransferCancelledEvent(destinationBankAccountId, bankTransferId))
+                   .expectActiveSagas(0)
+                   .expectNoScheduledEvents()
+                   .expectDispatchedCommands(new ReturnMoneyOfFailedBankTransferCommand(sourceBankAccountId,
+                                                                                        amountOfMoneyToTransfer),
+                                             new MarkBankTransferFailedCommand(bankTransferId));
+    }
+
+    @Test
+    public void testCreditArrivesAfterTimeout() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .andThenAggregate(sourceBankAccountId).published(new SourceBankAccountDebitedEvent(
+                sourceBankAccountId, amountOfMoneyToTransfer, bankTransferId))
+                   .andThenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .whenAggregate(destinationBankAccountId).publishes(new DestinationBankAccountCreditedEvent(
+                destinationBankAccountId, amountOfMoneyToTransfer, bankTransferId))
+                   .expectActiveSagas(0)
+                   .expectNoScheduledEvents()
                    .expectDispatchedCommands(new MarkBankTransferCompletedCommand(bankTransferId));
     }
+
+    @Test
+    public void testTimeoutRepeatsUntilCancellationConfirmed() throws Exception {
+        String bankTransferId = "bankTransferId";
+        String sourceBankAccountId = "sourceBankAccountId";
+        String destinationBankAccountId = "destinationBankAccountId";
+        long amountOfMoneyToTransfer = 40;
+
+        testFixture.givenAggregate(bankTransferId).published(new BankTransferCreatedEvent(bankTransferId,
+                                                                                          sourceBankAccountId,
+                                                                                          destinationBankAccountId,
+                                                                                          amountOfMoneyToTransfer))
+                   .andThenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .whenTimeElapses(BankTransferManagementSaga.DEFAULT_TIMEOUT)
+                   .expectActiveSagas(1)
+                   .expectDispatchedCommands(new CancelBankTransferCommand(sourceBankAccountId, bankTransferId));
+    }
 }
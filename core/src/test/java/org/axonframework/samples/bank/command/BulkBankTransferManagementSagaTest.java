@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.samples.bank.api.bankaccount.command.CreditBulkTransferLegCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DebitSourceBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.ReturnMoneyOfFailedBankTransferCommand;
+import org.axonframework.samples.bank.api.bankaccount.event.BulkTransferLegCreditedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.BulkTransferLegDestinationNotFoundEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitRejectedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitedEvent;
+import org.axonframework.samples.bank.api.banktransfer.command.BulkTransferLeg;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferCompletedCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferFailedCommand;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCreatedEvent;
+import org.axonframework.test.saga.FixtureConfiguration;
+import org.axonframework.test.saga.SagaTestFixture;
+import org.junit.*;
+
+import java.util.Arrays;
+
+public class BulkBankTransferManagementSagaTest {
+
+    private static final String BULK_TRANSFER_ID = "bulkTransferId";
+    private static final String SOURCE_BANK_ACCOUNT_ID = "sourceBankAccountId";
+
+    private FixtureConfiguration testFixture;
+    private BulkBankTransferCreatedEvent createdEvent;
+
+    @Before
+    public void setUp() throws Exception {
+        testFixture = new SagaTestFixture<>(BulkBankTransferManagementSaga.class);
+        createdEvent = new BulkBankTransferCreatedEvent(BULK_TRANSFER_ID,
+                                                        SOURCE_BANK_ACCOUNT_ID,
+                                                        Arrays.asList(new BulkTransferLeg("destination1", 20),
+                                                                      new BulkTransferLeg("destination2", 30),
+                                                                      new BulkTransferLeg("destination3", 50)),
+                                                        100);
+    }
+
+    @Test
+    public void testBulkBankTransferCreated() throws Exception {
+        testFixture.givenNoPriorActivity()
+                   .whenAggregate(BULK_TRANSFER_ID).publishes(createdEvent)
+                   .expectActiveSagas(1)
+                   .expectDispatchedCommands(new DebitSourceBankAccountCommand(SOURCE_BANK_ACCOUNT_ID,
+                                                                               BULK_TRANSFER_ID,
+                                                                               100));
+    }
+
+    @Test
+    public void testSourceBankAccountDebitRejected() throws Exception {
+        testFixture.givenAggregate(BULK_TRANSFER_ID).published(createdEvent)
+                   .whenAggregate(SOURCE_BANK_ACCOUNT_ID)
+                   .publishes(new SourceBankAccountDebitRejectedEvent(BULK_TRANSFER_ID))
+                   .expectActiveSagas(0)
+                   .expectDispatchedCommands(new MarkBulkBankTransferFailedCommand(BULK_TRANSFER_ID));
+    }
+
+    @Test
+    public void testSourceBankAccountDebited() throws Exception {
+        testFixture.givenAggregate(BULK_TRANSFER_ID).published(createdEvent)
+                   .whenAggregate(SOURCE_BANK_ACCOUNT_ID)
+                   .publishes(new SourceBankAccountDebitedEvent(SOURCE_BANK_ACCOUNT_ID, 100, BULK_TRANSFER_ID))
+                   .expectActiveSagas(1)
+                   .expectDispatchedCommands(new CreditBulkTransferLegCommand("destination1", BULK_TRANSFER_ID, 0, 20),
+                                             new CreditBulkTransferLegCommand("destination2", BULK_TRANSFER_ID, 1, 30),
+                                             new CreditBulkTransferLegCommand("destination3", BULK_TRANSFER_ID, 2, 50));
+    }
+
+    @Test
+    public void testAllLegsCredited() throws Exception {
+        testFixture.givenAggregate(BULK_TRANSFER_ID).published(createdEvent)
+                   .andThenAggregate(SOURCE_BANK_ACCOUNT_ID)
+                   .published(new SourceBankAccountDebitedEvent(SOURCE_BANK_ACCOUNT_ID, 100, BULK_TRANSFER_ID))
+                   .andThenAggregate("destination1")
+                   .published(new BulkTransferLegCreditedEvent("destination1", 20, BULK_TRANSFER_ID, 0))
+                   .andThenAggregate("destination3")
+                   .published(new BulkTransferLegCreditedEvent("destination3", 50, BULK_TRANSFER_ID, 2))
+                   .whenAggregate("destination2")
+                   .publishes(new BulkTransferLegCreditedEvent("destination2", 30, BULK_TRANSFER_ID, 1))
+                   .expectActiveSagas(0)
+                   .expectDispatchedCommands(new MarkBulkBankTransferCompletedCommand(BULK_TRANSFER_ID, 0));
+    }
+
+    @Test
+    public void testMoneyOfFailedLegsIsReturnedOnce() throws Exception {
+        testFixture.givenAggregate(BULK_TRANSFER_ID).published(createdEvent)
+                   .andThenAggregate(SOURCE_BANK_ACCOUNT_ID)
+                   .published(new SourceBankAccountDebitedEvent(SOURCE_BANK_ACCOUNT_ID, 100, BULK_TRANSFER_ID))
+                   .andThenAPublished(new BulkTransferLegDestinationNotFoundEvent(BULK_TRANSFER_ID, 0))
+                   .andThenAggregate("destination2")
+                   .published(new BulkTransferLegCreditedEvent("destination2", 30, BULK_TRANSFER_ID, 1))
+                   .whenPublishingA(new BulkTransferLegDestinationNotFoundEvent(BULK_TRANSFER_ID, 2))
+                   .expectActiveSagas(0)
+                   .expectDispatchedCommands(new ReturnMoneyOfFailedBankTransferCommand(SOURCE_BANK_ACCOUNT_ID, 70),
+                                             new MarkBulkBankTransferCompletedCommand(BULK_TRANSFER_ID, 2));
+    }
+}
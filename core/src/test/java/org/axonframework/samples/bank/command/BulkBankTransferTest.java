@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.samples.bank.api.banktransfer.command.BulkTransferLeg;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateBulkBankTransferCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.MarkBulkBankTransferCompletedCommand;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCompletedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCreatedEvent;
+import org.axonframework.test.aggregate.AggregateTestFixture;
+import org.axonframework.test.aggregate.FixtureConfiguration;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class BulkBankTransferTest {
+
+    private FixtureConfiguration<BulkBankTransfer> fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new AggregateTestFixture<>(BulkBankTransfer.class);
+    }
+
+    @Test
+    public void testCreateBulkBankTransfer() throws Exception {
+        String bulkTransferId = "bulkTransferId";
+        List<BulkTransferLeg> legs = Arrays.asList(new BulkTransferLeg("destination1", 20),
+                                                   new BulkTransferLeg("destination2", 30));
+
+        fixture.givenNoPriorActivity()
+               .when(new CreateBulkBankTransferCommand(bulkTransferId, "sourceBankAccountId", legs))
+               .expectEvents(new BulkBankTransferCreatedEvent(bulkTransferId, "sourceBankAccountId", legs, 50));
+    }
+
+    @Test
+    public void testCreateBulkBankTransfer_RejectNonPositiveAmount() throws Exception {
+        List<BulkTransferLeg> legs = Arrays.asList(new BulkTransferLeg("destination1", 20),
+                                                   new BulkTransferLeg("destination2", 0));
+
+        fixture.givenNoPriorActivity()
+               .when(new CreateBulkBankTransferCommand("bulkTransferId", "sourceBankAccountId", legs))
+               .expectException(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testMarkBulkBankTransferCompleted() throws Exception {
+        String bulkTransferId = "bulkTransferId";
+        List<BulkTransferLeg> legs = Arrays.asList(new BulkTransferLeg("destination1", 20),
+                                                   new BulkTransferLeg("destination2", 30));
+
+        fixture.given(new BulkBankTransferCreatedEvent(bulkTransferId, "sourceBankAccountId", legs, 50))
+               .when(new MarkBulkBankTransferCompletedCommand(bulkTransferId, 1))
+               .expectEvents(new BulkBankTransferCompletedEvent(bulkTransferId, 1));
+    }
+}
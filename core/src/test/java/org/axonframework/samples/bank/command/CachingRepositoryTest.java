@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventsourcing.CachingEventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.inmemory.InMemoryEventStorageEngine;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class CachingRepositoryTest {
+
+    private EmbeddedEventStore eventStore;
+    private MeteredCache cache;
+    private CachingEventSourcingRepository<BankAccount> repository;
+
+    @Before
+    public void setUp() throws Exception {
+        eventStore = new EmbeddedEventStore(new InMemoryEventStorageEngine());
+        cache = new MeteredCache(new LruCache(2));
+        repository = new CachingEventSourcingRepository<>(new GenericAggregateFactory<>(BankAccount.class),
+                                                          eventStore,
+                                                          cache);
+        for (String id : new String[]{"bankAccount1", "bankAccount2", "bankAccount3"}) {
+            eventStore.publish(new GenericDomainEventMessage<>("BankAccount", id, 0,
+                                                               new BankAccountCreatedEvent(id, 0)));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventStore.shutDown();
+    }
+
+    @Test
+    public void testSecondLoadIsServedFromCache() throws Exception {
+        debit("bankAccount1");
+        debit("bankAccount1");
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedAggregateIsEvicted() throws Exception {
+        debit("bankAccount1");
+        debit("bankAccount2");
+        debit("bankAccount1");
+        debit("bankAccount3");
+
+        assertTrue(cache.containsKey("bankAccount1"));
+        assertFalse(cache.containsKey("bankAccount2"));
+        assertTrue(cache.containsKey("bankAccount3"));
+    }
+
+    @Test
+    public void testAggregateIsEvictedOnRollback() throws Exception {
+        debit("bankAccount1");
+
+        UnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(null);
+        repository.load("bankAccount1").execute(bankAccount -> bankAccount.debit(10, "bankTransferId"));
+        unitOfWork.rollback();
+
+        assertFalse(cache.containsKey("bankAccount1"));
+        assertEquals(1, cache.getRemovalCount());
+    }
+
+    private void debit(String id) throws Exception {
+        UnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(null);
+        unitOfWork.execute(() -> repository.load(id).execute(bankAccount -> bankAccount.debit(10, "bankTransferId")));
+    }
+}
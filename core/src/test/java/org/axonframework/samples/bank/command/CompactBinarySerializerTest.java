@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.scheduling.java.SimpleScheduleToken;
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.samples.bank.api.bankaccount.command.BatchMoneyMovementCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.MoneyMovement;
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitedEvent;
+import org.axonframework.samples.bank.api.banktransfer.command.BulkTransferLeg;
+import org.axonframework.samples.bank.api.banktransfer.event.BulkBankTransferCreatedEvent;
+import org.axonframework.serialization.Revision;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.SimpleSerializedObject;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class CompactBinarySerializerTest {
+
+    private XStreamSerializer xStreamSerializer;
+    private CompactBinarySerializer testSubject;
+
+    @Before
+    public void setUp() throws Exception {
+        xStreamSerializer = new XStreamSerializer();
+        testSubject = new CompactBinarySerializer(xStreamSerializer);
+    }
+
+    @Test
+    public void testEventsRoundTrip() throws Exception {
+        SourceBankAccountDebitedEvent debitedEvent = roundTrip(new SourceBankAccountDebitedEvent("bankAccountId",
+                                                                                                 -42,
+                                                                                                 "bankTransferId"));
+        assertEquals("bankAccountId", debitedEvent.getBankAccountId());
+        assertEquals(-42, debitedEvent.getAmount());
+        assertEquals("bankTransferId", debitedEvent.getBankTransferId());
+
+        BulkBankTransferCreatedEvent bulkEvent = new BulkBankTransferCreatedEvent(
+                "bulkTransferId", "sourceBankAccountId",
+                Arrays.asList(new BulkTransferLeg("destination1", 20), new BulkTransferLeg("destination2", 30)), 50);
+        assertEquals(bulkEvent, roundTrip(bulkEvent));
+    }
+
+    @Test
+    public void testCommandWithNestedEnumsRoundTrips() throws Exception {
+        BatchMoneyMovementCommand command = new BatchMoneyMovementCommand(
+                "bankAccountId", Arrays.asList(MoneyMovement.deposit(100), MoneyMovement.withdrawal(Long.MAX_VALUE)));
+
+        assertEquals(command, roundTrip(command));
+    }
+
+    @Test
+    public void testSagaStateRoundTrips() throws Exception {
+        BankTransferManagementSaga saga = new BankTransferManagementSaga();
+        setField(saga, "sourceBankAccountId", "sourceBankAccountId");
+        setField(saga, "destinationBankAccountId", "destinationBankAccountId");
+        setField(saga, "amount", 40L);
+        setField(saga, "sourceBankAccountDebited", true);
+        setField(saga, "timeoutToken", new SimpleScheduleToken("timeoutTokenId"));
+
+        SerializedObject<byte[]> serialized = testSubject.serialize(saga, byte[].class);
+        assertEquals(CompactBinarySerializer.MARKER, serialized.getData()[0]);
+        BankTransferManagementSaga result = testSubject.deserialize(serialized);
+
+        assertEquals("sourceBankAccountId", getField(result, "sourceBankAccountId"));
+        assertEquals("destinationBankAccountId", getField(result, "destinationBankAccountId"));
+        assertEquals(40L, getField(result, "amount"));
+        assertEquals(true, getField(result, "sourceBankAccountDebited"));
+        assertEquals("timeoutTokenId", ((SimpleScheduleToken) getField(result, "timeoutToken")).getTokenId());
+    }
+
+    @Test
+    public void testMetaDataRoundTrips() throws Exception {
+        MetaData metaData = MetaData.with("traceId", "trace").and("attempt", 3);
+
+        assertEquals(metaData, roundTrip(metaData));
+        assertEquals(MetaData.emptyInstance(), roundTrip(MetaData.emptyInstance()));
+    }
+
+    @Test
+    public void testOtherTypesAreDelegated() throws Exception {
+        GlobalSequenceTrackingToken token = new GlobalSequenceTrackingToken(42);
+
+        SerializedObject<byte[]> serialized = testSubject.serialize(token, byte[].class);
+
+        assertEquals('<', serialized.getData()[0]);
+        assertEquals(token, testSubject.deserialize(serialized));
+    }
+
+    @Test
+    public void testMetaDataWithUnsupportedValuesIsDelegated() throws Exception {
+        MetaData metaData = MetaData.with("key", Collections.singletonList(new StringBuilder("value")));
+
+        assertEquals('<', testSubject.serialize(metaData, byte[].class).getData()[0]);
+        assertEquals(metaData.keySet(), roundTrip(metaData).keySet());
+    }
+
+    @Test
+    public void testReadsDataWrittenByXStream() throws Exception {
+        BankAccountCreatedEvent event = new BankAccountCreatedEvent("bankAccountId", 1000);
+
+        assertEquals(event, testSubject.deserialize(xStreamSerializer.serialize(event, byte[].class)));
+    }
+
+    @Test
+    public void testIsSmallerThanXml() throws Exception {
+        SourceBankAccountDebitedEvent event = new SourceBankAccountDebitedEvent(
+                "0b9c4a3e-7d9b-4b55-9a4b-8c0f6b1f3a6d", 1000, "6f1b2e4c-1c3d-4f5e-8a9b-0c1d2e3f4a5b");
+
+        int compactSize = testSubject.serialize(event, byte[].class).getData().length;
+        int xmlSize = xStreamSerializer.serialize(event, byte[].class).getData().length;
+
+        assertTrue("compact " + compactSize + " bytes, xml " + xmlSize + " bytes", compactSize * 2 < xmlSize);
+    }
+
+    @Test
+    public void testFieldsAreReadByName() throws Exception {
+        SerializedObject<byte[]> serialized = testSubject.serialize(new Transfer("source", 5, "destination"),
+                                                                    byte[].class);
+
+        Object result = testSubject.deserialize(new SimpleSerializedObject<>(
+                serialized.getData(), byte[].class, ExtendedTransfer.class.getName(), null));
+
+        assertEquals("source", ((ExtendedTransfer) result).source);
+        assertEquals(5, ((ExtendedTransfer) result).amount);
+        assertEquals("destination", ((ExtendedTransfer) result).destination);
+        assertNull(((ExtendedTransfer) result).reference);
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() throws Exception {
+        ExtendedTransfer extendedTransfer = new ExtendedTransfer();
+        extendedTransfer.reference = "reference";
+        extendedTransfer.source = "source";
+        extendedTransfer.amount = 5;
+        extendedTransfer.destination = "destination";
+        SerializedObject<byte[]> extended = testSubject.serialize(extendedTransfer, byte[].class);
+        Object result = testSubject.deserialize(new SimpleSerializedObject<>(
+                extended.getData(), byte[].class, Transfer.class.getName(), null));
+
+        assertEquals(new Transfer("source", 5, "destination"), result);
+    }
+
+    @Test
+    public void testReadsPositionalFormat() throws Exception {
+        // marker, version 1, object of declared type, field count 2, string "id", long 7
+        byte[] bytes = {CompactBinarySerializer.MARKER, 1, 12, 4, 6, 4, 'i', 'd', 4, 14};
+
+        Object result = testSubject.deserialize(new SimpleSerializedObject<>(
+                bytes, byte[].class, BankAccountCreatedEvent.class.getName(), null));
+
+        assertEquals(new BankAccountCreatedEvent("id", 7), result);
+    }
+
+    @Test
+    public void testSerializedTypeCarriesRevision() throws Exception {
+        assertEquals(CompactBinarySerializer.DEFAULT_REVISION,
+                     testSubject.serialize(new BankAccountCreatedEvent("id", 7), byte[].class)
+                                .getType().getRevision());
+        assertEquals("3", testSubject.serialize(new RevisedTransfer(), byte[].class).getType().getRevision());
+        assertEquals("3", testSubject.typeForClass(RevisedTransfer.class).getRevision());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T roundTrip(T object) {
+        SerializedObject<byte[]> serialized = testSubject.serialize(object, byte[].class);
+        return (T) testSubject.deserialize(serialized);
+    }
+
+    private static class Money {
+
+        String source;
+        long amount;
+    }
+
+    private static class Transfer extends Money {
+
+        String destination;
+
+        Transfer(String source, long amount, String destination) {
+            this.source = source;
+            this.amount = amount;
+            this.destination = destination;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Transfer && source.equals(((Transfer) o).source) && amount == ((Transfer) o).amount
+                    && destination.equals(((Transfer) o).destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode();
+        }
+    }
+
+    /**
+     * {@link Money} with a field added to the superclass, in front of the fields the subclass reads.
+     */
+    private static class ExtendedMoney {
+
+        String reference;
+        String source;
+        long amount;
+    }
+
+    private static class ExtendedTransfer extends ExtendedMoney {
+
+        String destination;
+    }
+
+    @Revision("3")
+    private static class RevisedTransfer {
+
+        String source;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.WithdrawMoneyCommand;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+import static org.junit.Assert.*;
+
+public class DeduplicatingDispatchInterceptorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MutableClock clock;
+    private DeduplicatingDispatchInterceptor testSubject;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new MutableClock();
+        testSubject = new DeduplicatingDispatchInterceptor(3, Duration.ofMinutes(10), clock);
+    }
+
+    @Test
+    public void testCommandsWithoutIdempotencyKeyPass() throws Exception {
+        CommandMessage<?> command = asCommandMessage(new DepositMoneyCommand("bankAccountId", 10));
+
+        assertSame(command, testSubject.handle(command));
+        assertSame(command, testSubject.handle(command));
+        assertEquals(0, testSubject.size());
+    }
+
+    @Test(expected = DuplicateCommandException.class)
+    public void testSecondCommandWithSameKeyIsRejected() throws Exception {
+        testSubject.handle(deposit("key1"));
+        testSubject.handle(deposit("key1"));
+    }
+
+    @Test
+    public void testSameKeyForOtherCommandPasses() throws Exception {
+        testSubject.handle(deposit("key1"));
+        testSubject.handle(withKey(new WithdrawMoneyCommand("bankAccountId", 10), "key1"));
+
+        assertEquals(2, testSubject.size());
+    }
+
+    @Test
+    public void testKeyCanBeReusedAfterWindow() throws Exception {
+        testSubject.handle(deposit("key1"));
+        clock.advance(Duration.ofMinutes(10));
+
+        testSubject.handle(deposit("key1"));
+    }
+
+    @Test
+    public void testKeyCanBeReusedAfterRelease() throws Exception {
+        CommandMessage<?> command = deposit("key1");
+        testSubject.handle(command);
+        testSubject.release(command);
+
+        testSubject.handle(deposit("key1"));
+    }
+
+    @Test
+    public void testOldestKeyIsForgottenWhenFull() throws Exception {
+        for (String key : new String[]{"key1", "key2", "key3", "key4"}) {
+            testSubject.handle(deposit(key));
+        }
+
+        assertEquals(3, testSubject.size());
+        testSubject.handle(deposit("key1"));
+    }
+
+    @Test
+    public void testKeysSurviveSaveAndLoad() throws Exception {
+        testSubject.handle(deposit("key1"));
+        clock.advance(Duration.ofMinutes(5));
+        testSubject.handle(deposit("key2"));
+        Path file = temporaryFolder.getRoot().toPath().resolve("idempotency-keys");
+        testSubject.save(file);
+
+        clock.advance(Duration.ofMinutes(6));
+        DeduplicatingDispatchInterceptor restarted = new DeduplicatingDispatchInterceptor(3, Duration.ofMinutes(10),
+                                                                                          clock);
+        restarted.load(file);
+
+        assertEquals(1, restarted.size());
+        restarted.handle(deposit("key1"));
+        try {
+            restarted.handle(deposit("key2"));
+            fail("Expected DuplicateCommandException");
+        } catch (DuplicateCommandException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testKeysSurviveRestartWithoutShutdown() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("idempotency-keys");
+        testSubject.open(file);
+        testSubject.handle(deposit("key1"));
+        CommandMessage<?> failed = deposit("key2");
+        testSubject.handle(failed);
+        testSubject.release(failed);
+
+        DeduplicatingDispatchInterceptor restarted = new DeduplicatingDispatchInterceptor(3, Duration.ofMinutes(10),
+                                                                                          clock);
+        restarted.open(file);
+
+        assertEquals(1, restarted.size());
+        restarted.handle(deposit("key2"));
+        try {
+            restarted.handle(deposit("key1"));
+            fail("Expected DuplicateCommandException");
+        } catch (DuplicateCommandException e) {
+            // expected
+        }
+        restarted.close();
+        testSubject.close();
+    }
+
+    @Test
+    public void testLoadedKeysExpireOutOfFileOrder() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("idempotency-keys");
+        Instant now = clock.instant();
+        String commandName = DepositMoneyCommand.class.getName();
+        Files.write(file, Arrays.asList(now.plus(Duration.ofMinutes(8)).toEpochMilli() + " " + commandName + "/key1",
+                                        now.plus(Duration.ofMinutes(2)).toEpochMilli() + " " + commandName + "/key2"),
+                    StandardCharsets.UTF_8);
+        testSubject.load(file);
+
+        clock.advance(Duration.ofMinutes(3));
+
+        assertEquals(1, testSubject.size());
+        testSubject.handle(deposit("key2"));
+    }
+
+    @Test
+    public void testLoadedKeysAreCutToShorterWindow() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("idempotency-keys");
+        DeduplicatingDispatchInterceptor longWindow = new DeduplicatingDispatchInterceptor(3, Duration.ofHours(1),
+                                                                                           clock);
+        longWindow.handle(deposit("key1"));
+        longWindow.save(file);
+
+        testSubject.load(file);
+        testSubject.handle(deposit("key2"));
+        clock.advance(Duration.ofMinutes(10));
+
+        assertEquals(0, testSubject.size());
+        testSubject.handle(deposit("key1"));
+    }
+
+    private static CommandMessage<?> deposit(String idempotencyKey) {
+        return withKey(new DepositMoneyCommand("bankAccountId", 10), idempotencyKey);
+    }
+
+    private static CommandMessage<?> withKey(Object command, String idempotencyKey) {
+        return asCommandMessage(command).andMetaData(
+                MetaData.with(DeduplicatingDispatchInterceptor.IDEMPOTENCY_KEY, idempotencyKey));
+    }
+
+    private static class MutableClock extends Clock {
+
+        private Instant instant = Instant.parse("2017-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.AnnotationCommandHandlerAdapter;
+import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.inmemory.InMemoryEventStorageEngine;
+import org.axonframework.samples.bank.api.bankaccount.event.*;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateLocalBankTransferCommand;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCompletedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferFailedEvent;
+import org.junit.*;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+import static org.junit.Assert.*;
+
+public class LocalBankTransferCommandHandlerTest {
+
+    private InMemoryEventStorageEngine storageEngine;
+    private EmbeddedEventStore eventStore;
+    private SimpleCommandBus commandBus;
+
+    @Before
+    public void setUp() throws Exception {
+        storageEngine = new InMemoryEventStorageEngine();
+        eventStore = new EmbeddedEventStore(storageEngine);
+        commandBus = new SimpleCommandBus();
+        LocalBankTransferCommandHandler commandHandler = new LocalBankTransferCommandHandler(
+                new EventSourcingRepository<>(BankAccount.class, eventStore),
+                new EventSourcingRepository<>(BankTransfer.class, eventStore),
+                eventStore);
+        new AnnotationCommandHandlerAdapter(commandHandler).subscribe(commandBus);
+
+        eventStore.publish(new GenericDomainEventMessage<>("BankAccount", "source", 0,
+                                                           new BankAccountCreatedEvent("source", 0)),
+                           new GenericDomainEventMessage<>("BankAccount", "source", 1,
+                                                           new MoneyDepositedEvent("source", 100)),
+                           new GenericDomainEventMessage<>("BankAccount", "destination", 0,
+                                                           new BankAccountCreatedEvent("destination", 0)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventStore.shutDown();
+    }
+
+    @Test
+    public void testTransferIsCompletedInOneUnitOfWork() throws Exception {
+        List<Object> events = transfer("source", "destination", 60);
+
+        assertEquals(asList(BankTransferCreatedEvent.class,
+                            SourceBankAccountDebitedEvent.class,
+                            DestinationBankAccountCreditedEvent.class,
+                            BankTransferCompletedEvent.class),
+                     events.stream().map(Object::getClass).collect(Collectors.toList()));
+        assertEquals(60, ((SourceBankAccountDebitedEvent) events.get(1)).getAmount());
+        assertEquals("destination", ((DestinationBankAccountCreditedEvent) events.get(2)).getBankAccountId());
+    }
+
+    @Test
+    public void testTransferIsFailedWhenDebitIsRejected() throws Exception {
+        List<Object> events = transfer("source", "destination", 101);
+
+        assertEquals(asList(BankTransferCreatedEvent.class,
+                            SourceBankAccountDebitRejectedEvent.class,
+                            BankTransferFailedEvent.class),
+                     events.stream().map(Object::getClass).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testTransferIsFailedWithoutDebitWhenDestinationDoesNotExist() throws Exception {
+        List<Object> events = transfer("source", "unknown", 10);
+
+        assertEquals(asList(BankTransferCreatedEvent.class,
+                            DestinationBankAccountNotFoundEvent.class,
+                            BankTransferFailedEvent.class),
+                     events.stream().map(Object::getClass).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testTransferIsFailedWhenSourceDoesNotExist() throws Exception {
+        List<Object> events = transfer("unknown", "destination", 10);
+
+        assertEquals(asList(BankTransferCreatedEvent.class,
+                            SourceBankAccountNotFoundEvent.class,
+                            BankTransferFailedEvent.class),
+                     events.stream().map(Object::getClass).collect(Collectors.toList()));
+    }
+
+    private List<Object> transfer(String source, String destination, long amount) {
+        long eventsBefore = storageEngine.readEvents(null, false).count();
+        commandBus.dispatch(asCommandMessage(new CreateLocalBankTransferCommand("bankTransferId", source, destination,
+                                                                                amount)));
+        return storageEngine.readEvents(null, false).skip(eventsBefore).map(EventMessage::getPayload)
+                         .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.SourceBankAccountDebitedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
+import org.axonframework.serialization.SerializedObject;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares serialize and deserialize cost and size of the compact binary serializer against XStream for a mix of bank
+ * account and bank transfer events. Not a unit test; run the main method with the test classpath of the core module.
+ */
+public class SerializerBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 100_000;
+
+    public static void main(String[] args) {
+        String bankAccountId = UUID.randomUUID().toString();
+        String bankTransferId = UUID.randomUUID().toString();
+        List<Object> events = Arrays.asList(
+                new BankAccountCreatedEvent(bankAccountId, 1000),
+                new MoneyDepositedEvent(bankAccountId, 250),
+                new BankTransferCreatedEvent(bankTransferId, bankAccountId, UUID.randomUUID().toString(), 100),
+                new SourceBankAccountDebitedEvent(bankAccountId, 100, bankTransferId));
+
+        XStreamSerializer xStreamSerializer = new XStreamSerializer();
+        run("xstream", xStreamSerializer, events);
+        run("compact", new CompactBinarySerializer(xStreamSerializer), events);
+    }
+
+    private static void run(String name, Serializer serializer, List<Object> events) {
+        for (Object event : events) {
+            measure(serializer, event, WARMUP_ROUNDS);
+        }
+        for (Object event : events) {
+            long[] result = measure(serializer, event, MEASURED_ROUNDS);
+            System.out.printf("%-8s %-30s %5d bytes %8d ns serialize %8d ns deserialize%n",
+                              name, event.getClass().getSimpleName(), result[0], result[1], result[2]);
+        }
+    }
+
+    private static long[] measure(Serializer serializer, Object event, int rounds) {
+        SerializedObject<byte[]> serialized = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            serialized = serializer.serialize(event, byte[].class);
+        }
+        long serializeTime = System.nanoTime() - start;
+
+        Object result = null;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            result = serializer.deserialize(serialized);
+        }
+        long deserializeTime = System.nanoTime() - start;
+        if (!event.equals(result)) {
+            throw new IllegalStateException("Round trip changed " + event);
+        }
+        return new long[]{serialized.getData().length, serializeTime / rounds, deserializeTime / rounds};
+    }
+}
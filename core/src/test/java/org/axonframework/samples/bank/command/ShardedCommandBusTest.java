@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.commandhandling.CommandCallback;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.common.transaction.NoTransactionManager;
+import org.axonframework.messaging.interceptors.BeanValidationInterceptor;
+import org.axonframework.messaging.interceptors.JSR303ViolationException;
+import org.axonframework.monitoring.NoOpMessageMonitor;
+import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.junit.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+import static org.junit.Assert.*;
+
+public class ShardedCommandBusTest {
+
+    private ShardedCommandBus commandBus;
+    private Map<String, List<Long>> handledAmounts;
+    private Map<String, String> handlingThreads;
+
+    @Before
+    public void setUp() throws Exception {
+        commandBus = new ShardedCommandBus(4, NoTransactionManager.INSTANCE, NoOpMessageMonitor.INSTANCE);
+        handledAmounts = new ConcurrentHashMap<>();
+        handlingThreads = new ConcurrentHashMap<>();
+        commandBus.subscribe(DepositMoneyCommand.class.getName(), message -> {
+            DepositMoneyCommand command = (DepositMoneyCommand) message.getPayload();
+            handledAmounts.computeIfAbsent(command.getBankAccountId(), id -> new CopyOnWriteArrayList<>())
+                          .add(command.getAmountOfMoney());
+            String previousThread = handlingThreads.putIfAbsent(command.getBankAccountId(),
+                                                                Thread.currentThread().getName());
+            if (previousThread != null && !previousThread.equals(Thread.currentThread().getName())) {
+                throw new IllegalStateException("Bank account handled on more than one lane");
+            }
+            return null;
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        commandBus.shutdown();
+    }
+
+    @Test
+    public void testCommandsForSameBankAccountAreHandledInOrderOnOneLane() throws Exception {
+        int numberOfCommands = 1000;
+        CountDownLatch handled = new CountDownLatch(numberOfCommands * 2);
+        for (int i = 0; i < numberOfCommands; i++) {
+            commandBus.dispatch(asCommandMessage(new DepositMoneyCommand("bankAccount1", i)), countDown(handled));
+            commandBus.dispatch(asCommandMessage(new DepositMoneyCommand("bankAccount2", i)), countDown(handled));
+        }
+
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+        for (String bankAccountId : new String[]{"bankAccount1", "bankAccount2"}) {
+            List<Long> amounts = handledAmounts.get(bankAccountId);
+            assertEquals(numberOfCommands, amounts.size());
+            for (int i = 0; i < numberOfCommands; i++) {
+                assertEquals(i, (long) amounts.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testBankAccountsAreSpreadOverLanes() throws Exception {
+        boolean[] usedLanes = new boolean[commandBus.getLaneCount()];
+        for (int i = 0; i < 100; i++) {
+            usedLanes[commandBus.laneOf(asCommandMessage(new DepositMoneyCommand("bankAccount" + i, 1)))] = true;
+        }
+
+        for (boolean usedLane : usedLanes) {
+            assertTrue(usedLane);
+        }
+    }
+
+    @Test(expected = JSR303ViolationException.class)
+    public void testDispatchInterceptorsRunOnDispatchingThread() throws Exception {
+        commandBus.registerDispatchInterceptor(new BeanValidationInterceptor<>());
+
+        commandBus.dispatch(asCommandMessage(new CreateBankAccountCommand("bankAccountId", -1000)));
+    }
+
+    private static CommandCallback<Object, Object> countDown(CountDownLatch latch) {
+        return new CommandCallback<Object, Object>() {
+            @Override
+            public void onSuccess(CommandMessage<?> commandMessage, Object result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(CommandMessage<?> commandMessage, Throwable cause) {
+                fail(cause.getMessage());
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.command;
+
+import org.axonframework.eventhandling.saga.AssociationValue;
+import org.axonframework.eventhandling.saga.AssociationValuesImpl;
+import org.axonframework.eventhandling.saga.repository.inmemory.InMemorySagaStore;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.junit.*;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TransactionalCachingSagaStoreTest {
+
+    private static final AssociationValue ASSOCIATION_VALUE = new AssociationValue("bankTransferId", "bankTransfer1");
+
+    private MeteredCache associationsCache;
+    private MeteredCache sagaCache;
+    private TransactionalCachingSagaStore<Object> sagaStore;
+
+    @Before
+    public void setUp() throws Exception {
+        associationsCache = new MeteredCache(new LruCache(10));
+        sagaCache = new MeteredCache(new LruCache(10));
+        sagaStore = new TransactionalCachingSagaStore<>(new InMemorySagaStore(), associationsCache, sagaCache);
+    }
+
+    @Test
+    public void testRepeatedLookupsAreServedFromCache() throws Exception {
+        insertSaga("saga1");
+
+        for (int i = 0; i < 3; i++) {
+            Set<String> sagaIdentifiers = sagaStore.findSagas(BankTransferManagementSaga.class, ASSOCIATION_VALUE);
+            assertEquals(Collections.singleton("saga1"), sagaIdentifiers);
+            assertNotNull(sagaStore.loadSaga(BankTransferManagementSaga.class, "saga1"));
+        }
+
+        assertEquals(2, associationsCache.getHitCount());
+        assertEquals(3, sagaCache.getHitCount());
+    }
+
+    @Test
+    public void testEndedSagaIsRemovedFromCaches() throws Exception {
+        insertSaga("saga1");
+        sagaStore.findSagas(BankTransferManagementSaga.class, ASSOCIATION_VALUE);
+
+        sagaStore.deleteSaga(BankTransferManagementSaga.class, "saga1", Collections.singleton(ASSOCIATION_VALUE));
+
+        assertFalse(sagaCache.containsKey("saga1"));
+        assertEquals(1, associationsCache.getRemovalCount());
+        assertTrue(sagaStore.findSagas(BankTransferManagementSaga.class, ASSOCIATION_VALUE).isEmpty());
+    }
+
+    @Test
+    public void testSagaIsEvictedWhenUnitOfWorkRollsBack() throws Exception {
+        insertSaga("saga1");
+        sagaStore.findSagas(BankTransferManagementSaga.class, ASSOCIATION_VALUE);
+
+        UnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(null);
+        sagaStore.loadSaga(BankTransferManagementSaga.class, "saga1");
+        unitOfWork.rollback();
+
+        assertFalse(sagaCache.containsKey("saga1"));
+        assertEquals(1, associationsCache.getRemovalCount());
+        long misses = associationsCache.getMissCount();
+        assertEquals(Collections.singleton("saga1"),
+                     sagaStore.findSagas(BankTransferManagementSaga.class, ASSOCIATION_VALUE));
+        assertEquals(misses + 1, associationsCache.getMissCount());
+    }
+
+    @Test
+    public void testUpdatedSagaStaysCached() throws Exception {
+        insertSaga("saga1");
+        BankTransferManagementSaga saga = new BankTransferManagementSaga();
+        AssociationValuesImpl associationValues = new AssociationValuesImpl(Collections.singleton(ASSOCIATION_VALUE));
+
+        UnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(null);
+        unitOfWork.execute(() -> sagaStore.updateSaga(BankTransferManagementSaga.class, "saga1", saga, null,
+                                                      associationValues));
+
+        assertSame(saga, sagaStore.loadSaga(BankTransferManagementSaga.class, "saga1").saga());
+        assertEquals(1, sagaCache.getHitCount());
+    }
+
+    private void insertSaga(String sagaIdentifier) {
+        sagaStore.insertSaga(BankTransferManagementSaga.class, sagaIdentifier, new BankTransferManagementSaga(), null,
+                             Collections.singleton(ASSOCIATION_VALUE));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query;
+
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Entries an event listener read or changed in the current batch, kept as a resource of the root unit of work so that
+ * each entry is read once per batch and later events of the batch see the changes made by earlier ones. Outside a unit
+ * of work every lookup reads anew.
+ *
+ * @param <K> the type of the identifier of an entry
+ * @param <E> the type of the entries
+ */
+public class BatchEntries<K, E> {
+
+    private final String resourceKey;
+    private final Function<K, E> loader;
+
+    /**
+     * @param resourceKey the unit of work resource to keep the entries in, unique per listener
+     * @param loader      reads an entry that is not in the batch yet, returning null if there is none
+     */
+    public BatchEntries(String resourceKey, Function<K, E> loader) {
+        this.resourceKey = resourceKey;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the entry as changed in the batch so far, reading it if the batch does not hold it yet.
+     */
+    public E find(K id) {
+        return entries().computeIfAbsent(id, loader);
+    }
+
+    /**
+     * Adds a new or replaced entry to the batch.
+     */
+    public void put(K id, E entry) {
+        entries().put(id, entry);
+    }
+
+    private Map<K, E> entries() {
+        if (!CurrentUnitOfWork.isStarted()) {
+            return new HashMap<>();
+        }
+        return CurrentUnitOfWork.get().root().getOrComputeResource(resourceKey, key -> new HashMap<>());
+    }
+}
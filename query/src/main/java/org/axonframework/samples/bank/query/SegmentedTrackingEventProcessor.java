@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.common.Registration;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.eventhandling.EventHandlerInvoker;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.EventProcessor;
+import org.axonframework.eventhandling.TrackingEventProcessor;
+import org.axonframework.eventhandling.tokenstore.TokenStore;
+import org.axonframework.eventhandling.tokenstore.UnableToClaimTokenException;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.messaging.MessageHandlerInterceptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.IntSupplier;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Event processor splitting the events of a processing group over a number of segments, each handled by a
+ * {@link TrackingEventProcessor} with a token of its own. Axon 3.0 has no segmented tracking processors, so every
+ * segment reads the whole event stream and handles the events whose aggregate identifier hashes to it. The events of
+ * one aggregate are therefore handled in order, by one segment. Handlers combining the events of several aggregates
+ * are handled by the first segment only.
+ * <p>
+ * Nodes running the same processor share its segments through the claims in the token store. Every
+ * {@code balanceIntervalMillis} a node compares the number of segments it runs with its share, the number of segments
+ * divided by the number of nodes. It stops the segments above its share, which releases their claims, and claims free
+ * segments up to its share. The segments of a node that leaves are free once their claims time out.
+ * <p>
+ * With one segment the token keeps the name of the processor. With more, segment {@code i} has the token
+ * {@code name-i}, which starts at the token of the processor when it does not exist yet.
+ */
+@Slf4j
+public class SegmentedTrackingEventProcessor implements EventProcessor {
+
+    private final String name;
+    private final List<Segment> segments;
+    private final TokenStore tokenStore;
+    private final TransactionManager transactionManager;
+    private final IntSupplier nodeCount;
+    private final long balanceIntervalMillis;
+    private ScheduledExecutorService balancer;
+
+    /**
+     * @param eventHandlerInvoker           the handlers of which each event is handled by the segment of its aggregate
+     * @param firstSegmentEventHandlerInvoker the handlers of which all events are handled by the first segment, or
+     *                                      null
+     * @param segmentProcessorFactory       creates the tracking processor of a segment, given the name of its token
+     *                                      and its handlers
+     * @param nodeCount                     returns the number of nodes running this processor
+     */
+    public SegmentedTrackingEventProcessor(String name, int segmentCount, EventHandlerInvoker eventHandlerInvoker,
+                                           EventHandlerInvoker firstSegmentEventHandlerInvoker,
+                                           BiFunction<String, EventHandlerInvoker, TrackingEventProcessor>
+                                                   segmentProcessorFactory,
+                                           TokenStore tokenStore, TransactionManager transactionManager,
+                                           IntSupplier nodeCount, long balanceIntervalMillis) {
+        if (segmentCount <= 0 || balanceIntervalMillis <= 0) {
+            throw new IllegalArgumentException("segmentCount and balanceIntervalMillis must be positive");
+        }
+        this.name = name;
+        this.tokenStore = tokenStore;
+        this.transactionManager = transactionManager;
+        this.nodeCount = nodeCount;
+        this.balanceIntervalMillis = balanceIntervalMillis;
+        List<Segment> segments = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            String tokenName = segmentCount == 1 ? name : name + "-" + i;
+            SegmentEventHandlerInvoker segmentInvoker = new SegmentEventHandlerInvoker(
+                    i, segmentCount, eventHandlerInvoker, i == 0 ? firstSegmentEventHandlerInvoker : null);
+            segments.add(new Segment(tokenName, segmentProcessorFactory.apply(tokenName, segmentInvoker)));
+        }
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Returns the index of the segment handling the given event. Events without an aggregate are spread over the
+     * segments by their own identifier.
+     */
+    public static int segmentOf(EventMessage<?> event, int segmentCount) {
+        String routingKey = event instanceof DomainEventMessage
+                ? ((DomainEventMessage<?>) event).getAggregateIdentifier() : event.getIdentifier();
+        return (routingKey.hashCode() & Integer.MAX_VALUE) % segmentCount;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Registration registerInterceptor(MessageHandlerInterceptor<? super EventMessage<?>> interceptor) {
+        List<Registration> registrations = segments.stream()
+                                                   .map(segment -> segment.processor.registerInterceptor(interceptor))
+                                                   .collect(toList());
+        return () -> registrations.stream().map(Registration::cancel).reduce(false, Boolean::logicalOr);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (balancer == null) {
+            balancer = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory(name + "-balancer"));
+            balancer.scheduleWithFixedDelay(this::balance, 0, balanceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the segments run by this node, releasing their claims.
+     */
+    @Override
+    public synchronized void shutDown() {
+        if (balancer != null) {
+            balancer.shutdown();
+            balancer = null;
+        }
+        segments.stream().filter(segment -> segment.running).forEach(Segment::stop);
+    }
+
+    /**
+     * Returns the names of the tokens of the segments, the first segment first.
+     */
+    public List<String> getTokenNames() {
+        return segments.stream().map(segment -> segment.tokenName).collect(toList());
+    }
+
+    public synchronized int getRunningSegmentCount() {
+        return (int) segments.stream().filter(segment -> segment.running).count();
+    }
+
+    public int activeProcessorThreads() {
+        return segments.stream().mapToInt(segment -> segment.processor.activeProcessorThreads()).sum();
+    }
+
+    synchronized void balance() {
+        if (balancer == null) {
+            return;
+        }
+        try {
+            int nodes = Math.max(1, nodeCount.getAsInt());
+            int share = (segments.size() + nodes - 1) / nodes;
+            List<Segment> running = segments.stream().filter(segment -> segment.running).collect(toList());
+            for (int i = running.size() - 1; i >= share; i--) {
+                log.info("Releasing segment {} to another node", running.get(i).tokenName);
+                running.get(i).stop();
+            }
+            int runningCount = Math.min(running.size(), share);
+            for (Segment segment : segments) {
+                if (runningCount >= share) {
+                    break;
+                }
+                // a segment that is still stopping keeps its thread until the current batch is done
+                if (!segment.running && segment.processor.activeProcessorThreads() == 0 && claim(segment)) {
+                    log.info("Claimed segment {}", segment.tokenName);
+                    segment.start();
+                    runningCount++;
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Balancing the segments of {} failed, retrying in {} ms", name, balanceIntervalMillis, e);
+        }
+    }
+
+    private boolean claim(Segment segment) {
+        try {
+            transactionManager.executeInTransaction(() -> {
+                TrackingToken token = tokenStore.fetchToken(segment.tokenName, 0);
+                if (token == null && segments.size() > 1) {
+                    TrackingToken unsegmentedToken = tokenStore.fetchToken(name, 0);
+                    tokenStore.releaseClaim(name, 0);
+                    if (unsegmentedToken != null) {
+                        tokenStore.storeToken(unsegmentedToken, segment.tokenName, 0);
+                    }
+                }
+            });
+            return true;
+        } catch (UnableToClaimTokenException e) {
+            return false;
+        }
+    }
+
+    private static class Segment {
+
+        private final String tokenName;
+        private final TrackingEventProcessor processor;
+        private boolean running;
+
+        private Segment(String tokenName, TrackingEventProcessor processor) {
+            this.tokenName = tokenName;
+            this.processor = processor;
+        }
+
+        private void start() {
+            processor.start();
+            running = true;
+        }
+
+        private void stop() {
+            processor.shutDown();
+            running = false;
+        }
+    }
+
+    private static class SegmentEventHandlerInvoker implements EventHandlerInvoker {
+
+        private final int segment;
+        private final int segmentCount;
+        private final EventHandlerInvoker eventHandlerInvoker;
+        private final EventHandlerInvoker firstSegmentEventHandlerInvoker;
+
+        private SegmentEventHandlerInvoker(int segment, int segmentCount, EventHandlerInvoker eventHandlerInvoker,
+                                           EventHandlerInvoker firstSegmentEventHandlerInvoker) {
+            this.segment = segment;
+            this.segmentCount = segmentCount;
+            this.eventHandlerInvoker = eventHandlerInvoker;
+            this.firstSegmentEventHandlerInvoker = firstSegmentEventHandlerInvoker;
+        }
+
+        @Override
+        public boolean hasHandler(EventMessage<?> event) {
+            return inSegment(event) || (firstSegmentEventHandlerInvoker != null
+                    && firstSegmentEventHandlerInvoker.hasHandler(event));
+        }
+
+        @Override
+        public Object handle(EventMessage<?> event) throws Exception {
+            if (inSegment(event)) {
+                eventHandlerInvoker.handle(event);
+            }
+            if (firstSegmentEventHandlerInvoker != null && firstSegmentEventHandlerInvoker.hasHandler(event)) {
+                firstSegmentEventHandlerInvoker.handle(event);
+            }
+            return null;
+        }
+
+        private boolean inSegment(EventMessage<?> event) {
+            return eventHandlerInvoker.hasHandler(event) && segmentOf(event, segmentCount) == segment;
+        }
+    }
+}
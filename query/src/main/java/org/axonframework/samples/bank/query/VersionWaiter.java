@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.query;
+
+import org.axonframework.common.AxonThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Lets readers wait until the query model has applied a given version of a bank account or bank transfer, so a client
+ * can read its own writes without polling. The event listeners report every version once it is committed. Waits end
+ * after at most {@code timeoutMillis}, whether the version was reached or not. The query model is then read on a
+ * bounded pool of query threads, so slow reads never hold up the thread that ends the waits.
+ * <p>
+ * Only versions applied by the event processor of this node are reported.
+ */
+@Component
+public class VersionWaiter {
+
+    private final long timeoutMillis;
+    private final Map<String, List<Waiter>> waitersPerId = new HashMap<>();
+    private final ScheduledThreadPoolExecutor executor;
+    private final ThreadPoolExecutor queryExecutor;
+
+    @Autowired
+    public VersionWaiter(@Value("${axonbank.query.await-timeout-ms:5000}") long timeoutMillis,
+                         @Value("${axonbank.query.await-query-threads:4}") int queryThreads,
+                         @Value("${axonbank.query.await-query-queue:1000}") int queryQueueSize) {
+        this.timeoutMillis = timeoutMillis;
+        this.executor = new ScheduledThreadPoolExecutor(1, new AxonThreadFactory("VersionWaiter"));
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.queryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads, 0, TimeUnit.MILLISECONDS,
+                                                    new ArrayBlockingQueue<>(queryQueueSize),
+                                                    new AxonThreadFactory("VersionWaiterQuery"));
+    }
+
+    /**
+     * Returns a future with the result of the given query, run once the entry with the given id has reached the given
+     * version or when the timeout expires. The query runs on a query thread of this waiter. When all query threads are
+     * busy and the queue is full, the future fails with a {@link java.util.concurrent.RejectedExecutionException}.
+     *
+     * @param currentVersion reads the version the query model holds right now, -1 if it has no such entry yet
+     */
+    public <T> CompletableFuture<T> await(String id, long version, LongSupplier currentVersion, Supplier<T> query) {
+        return await(id, version, currentVersion).thenApplyAsync(done -> query.get(), queryExecutor);
+    }
+
+    /**
+     * Returns a future that completes once the entry with the given id has reached the given version, or when the
+     * timeout expires. Futures are completed on a thread of this waiter, never on the event processor's.
+     *
+     * @param currentVersion reads the version the query model holds right now, -1 if it has no such entry yet
+     */
+    public CompletableFuture<Void> await(String id, long version, LongSupplier currentVersion) {
+        Waiter waiter = new Waiter(version);
+        synchronized (this) {
+            waitersPerId.computeIfAbsent(id, key -> new ArrayList<>()).add(waiter);
+        }
+        // checked after registering, so a version applied in between is not missed
+        if (currentVersion.getAsLong() >= version) {
+            remove(id, waiter);
+            waiter.future.complete(null);
+            return waiter.future;
+        }
+        ScheduledFuture<?> timeout = executor.schedule(() -> {
+            remove(id, waiter);
+            waiter.future.complete(null);
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        waiter.future.whenComplete((result, failure) -> timeout.cancel(false));
+        return waiter.future;
+    }
+
+    /**
+     * Reports that the query model now holds the given version of the entry with the given id.
+     */
+    public void applied(String id, long version) {
+        List<Waiter> reached = new ArrayList<>();
+        synchronized (this) {
+            List<Waiter> waiters = waitersPerId.get(id);
+            if (waiters == null) {
+                return;
+            }
+            for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+                Waiter waiter = iterator.next();
+                if (waiter.version <= version) {
+                    reached.add(waiter);
+                    iterator.remove();
+                }
+            }
+            if (waiters.isEmpty()) {
+                waitersPerId.remove(id);
+            }
+        }
+        if (!reached.isEmpty()) {
+            executor.execute(() -> reached.forEach(waiter -> waiter.future.complete(null)));
+        }
+    }
+
+    public synchronized int getWaiterCount() {
+        return waitersPerId.values().stream().mapToInt(List::size).sum();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        queryExecutor.shutdownNow();
+    }
+
+    private synchronized void remove(String id, Waiter waiter) {
+        List<Waiter> waiters = waitersPerId.get(id);
+        if (waiters != null && waiters.remove(waiter) && waiters.isEmpty()) {
+            waitersPerId.remove(id);
+        }
+    }
+
+    private static class Waiter {
+
+        private final long version;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Waiter(long version) {
+            this.version = version;
+        }
+    }
+}
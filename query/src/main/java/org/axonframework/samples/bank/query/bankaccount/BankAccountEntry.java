@@ -19,8 +19,15 @@ package org.axonframework.samples.bank.query.bankaccount;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 
+/**
+ * Entries are looked up by the Axon identifier of the bank account, which is unique and indexed. The generated id only
+ * keeps the order in which the bank accounts were created.
+ */
 @Entity
+@Table(indexes = @Index(name = "bank_account_entry_axon_id", columnList = "axonBankAccountId", unique = true))
 public class BankAccountEntry {
 
     @Id
@@ -29,6 +36,10 @@ public class BankAccountEntry {
     private String axonBankAccountId;
     private long balance;
     private long overdraftLimit;
+    /**
+     * Sequence number of the last event applied, lets clients discard stale updates
+     */
+    private long version;
 
     @SuppressWarnings("unused")
     public BankAccountEntry() {
@@ -71,4 +82,22 @@ public class BankAccountEntry {
     public void setOverdraftLimit(long overdraftLimit) {
         this.overdraftLimit = overdraftLimit;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * A detached copy, for handing the current state to other threads.
+     */
+    public BankAccountEntry copy() {
+        BankAccountEntry copy = new BankAccountEntry(axonBankAccountId, balance, overdraftLimit);
+        copy.setId(id);
+        copy.setVersion(version);
+        return copy;
+    }
 }
\ No newline at end of file
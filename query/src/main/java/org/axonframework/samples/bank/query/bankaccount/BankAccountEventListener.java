@@ -16,54 +16,121 @@
 
 package org.axonframework.samples.bank.query.bankaccount;
 
+import org.axonframework.config.ProcessingGroup;
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventsourcing.SequenceNumber;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
 import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.MoneyAddedEvent;
 import org.axonframework.samples.bank.api.bankaccount.event.MoneySubtractedEvent;
+import org.axonframework.samples.bank.query.BatchEntries;
+import org.axonframework.samples.bank.query.VersionWaiter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.messaging.simp.SimpMessageSendingOperations;
 import org.springframework.stereotype.Component;
 
+import java.util.Optional;
+
+/**
+ * Keeps the bank account entries up to date, and hands every changed entry to the
+ * {@link BankAccountUpdateBroadcaster}. An entry carries the sequence number of the last event applied to it as its
+ * version, so clients can apply deltas to the list they loaded and skip stale ones.
+ * <p>
+ * When events are handled in batches, an entry is read once per batch and written once when the batch commits, no
+ * matter how many of its events are in the batch.
+ */
+@ProcessingGroup("query")
 @Component
 public class BankAccountEventListener {
 
     private BankAccountRepository repository;
-    private SimpMessageSendingOperations messagingTemplate;
+    private BatchEntries<String, BankAccountEntry> entriesInBatch;
+    private BankAccountViewCache viewCache;
+    private VersionWaiter versionWaiter;
+    private BankAccountUpdateBroadcaster broadcaster;
+    private Optional<BankAccountSnapshot> snapshot;
 
     @Autowired
-    public BankAccountEventListener(BankAccountRepository repository, SimpMessageSendingOperations messagingTemplate) {
+    public BankAccountEventListener(BankAccountRepository repository, BankAccountViewCache viewCache,
+                                    VersionWaiter versionWaiter, BankAccountUpdateBroadcaster broadcaster,
+                                    Optional<BankAccountSnapshot> snapshot) {
         this.repository = repository;
-        this.messagingTemplate = messagingTemplate;
+        this.entriesInBatch = new BatchEntries<>(BankAccountEventListener.class.getName() + ".entries",
+                                                 repository::findOneByAxonBankAccountId);
+        this.viewCache = viewCache;
+        this.versionWaiter = versionWaiter;
+        this.broadcaster = broadcaster;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Creates a listener that only writes the entries, for replaying the events into a query model that readers do
+     * not see yet. Its changes are not cached, reported, sent or kept in the snapshot file.
+     */
+    public BankAccountEventListener(BankAccountRepository repository) {
+        this(repository, null, null, null, Optional.empty());
     }
 
     @EventHandler
-    public void on(BankAccountCreatedEvent event) {
-        repository.save(new BankAccountEntry(event.getId(), 0, event.getOverdraftLimit()));
-        broadcastUpdates();
+    public void on(BankAccountCreatedEvent event, @SequenceNumber long sequenceNumber) {
+        BankAccountEntry bankAccountEntry = new BankAccountEntry(event.getId(), 0, event.getOverdraftLimit());
+        bankAccountEntry.setVersion(sequenceNumber);
+        repository.save(bankAccountEntry);
+        entriesInBatch.put(bankAccountEntry.getAxonBankAccountId(), bankAccountEntry);
+        if (viewCache != null) {
+            afterCommit(viewCache::bankAccountCreated);
+        }
+        publishUpdate(bankAccountEntry);
     }
 
     @EventHandler
-    public void on(MoneyAddedEvent event) {
-        BankAccountEntry bankAccountEntry = repository.findOneByAxonBankAccountId(event.getBankAccountId());
+    public void on(MoneyAddedEvent event, @SequenceNumber long sequenceNumber) {
+        BankAccountEntry bankAccountEntry = find(event.getBankAccountId());
         bankAccountEntry.setBalance(bankAccountEntry.getBalance() + event.getAmount());
-        repository.save(bankAccountEntry);
-        broadcastUpdates();
+        bankAccountEntry.setVersion(sequenceNumber);
+        publishUpdate(bankAccountEntry);
     }
 
     /**
      * 减去
      */
     @EventHandler
-    public void on(MoneySubtractedEvent event) {
-        BankAccountEntry bankAccountEntry = repository.findOneByAxonBankAccountId(event.getBankAccountId());
+    public void on(MoneySubtractedEvent event, @SequenceNumber long sequenceNumber) {
+        BankAccountEntry bankAccountEntry = find(event.getBankAccountId());
         bankAccountEntry.setBalance(bankAccountEntry.getBalance() - event.getAmount());
-        repository.save(bankAccountEntry);
-        broadcastUpdates();
+        bankAccountEntry.setVersion(sequenceNumber);
+        publishUpdate(bankAccountEntry);
+    }
+
+    /**
+     * Entries are managed by the entity manager, so changes made to them are written when the transaction commits.
+     */
+    private BankAccountEntry find(String bankAccountId) {
+        return entriesInBatch.find(bankAccountId);
+    }
+
+    /**
+     * Cached, reported and sent once the change is committed, so readers and clients never see a version that was
+     * rolled back. Waiting readers read the cache, so it is updated first.
+     */
+    private void publishUpdate(BankAccountEntry bankAccountEntry) {
+        if (viewCache == null) {
+            return;
+        }
+        snapshot.ifPresent(s -> s.changed(bankAccountEntry));
+        long version = bankAccountEntry.getVersion();
+        afterCommit(() -> {
+            viewCache.update(bankAccountEntry);
+            versionWaiter.applied(bankAccountEntry.getAxonBankAccountId(), version);
+            broadcaster.broadcast(bankAccountEntry);
+        });
     }
 
-    private void broadcastUpdates() {
-        Iterable<BankAccountEntry> bankAccountEntries = repository.findAll();
-        messagingTemplate.convertAndSend("/topic/bank-accounts.updates", bankAccountEntries);
+    private static void afterCommit(Runnable task) {
+        if (CurrentUnitOfWork.isStarted()) {
+            CurrentUnitOfWork.get().afterCommit(unitOfWork -> task.run());
+        } else {
+            task.run();
+        }
     }
 
 }
@@ -16,13 +16,26 @@
 
 package org.axonframework.samples.bank.query.bankaccount;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.util.List;
+
 @Repository
-public interface BankAccountRepository extends JpaRepository<BankAccountEntry, String> {
+public interface BankAccountRepository extends JpaRepository<BankAccountEntry, Long> {
 
-    Iterable<BankAccountEntry> findAllByOrderByIdAsc();
+    /**
+     * Returns the next page of entries, in the order in which the bank accounts were created.
+     */
+    List<BankAccountEntry> findByIdGreaterThanOrderByIdAsc(long afterId, Pageable pageable);
 
-    BankAccountEntry findOneByAxonBankAccountId(String axonBankTransferId);
+    /**
+     * Does not flush pending changes first: the event listeners keep the entries they changed in the current batch,
+     * and flushing them on every lookup would write a row once per event instead of once per batch.
+     */
+    @QueryHints(@QueryHint(name = "org.hibernate.flushMode", value = "COMMIT"))
+    BankAccountEntry findOneByAxonBankAccountId(String axonBankAccountId);
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.config.ProcessingGroup;
+import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.tokenstore.TokenStore;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a {@link BankAccountSnapshotFile} in line with the bank account entries, so a restarted node can serve the
+ * bank accounts from the file instead of waiting on the database. The entries changed in a batch are written once the
+ * batch is committed, together with the token of its last event.
+ * <p>
+ * On startup, before the processor runs, the token in the file is compared with the token of the "query" processor.
+ * When they differ, for instance after a crash between the commit and the write, the file is written anew from the
+ * database. The query model must be updated by a tracking processor with a single segment, on this node only; enable
+ * by setting axonbank.query.snapshot-file.
+ */
+@Slf4j
+@ProcessingGroup("query")
+@ConditionalOnProperty("axonbank.query.snapshot-file")
+@Component
+public class BankAccountSnapshot {
+
+    private static final String PROCESSOR_NAME = "query";
+    private static final String BATCH = BankAccountSnapshot.class.getName() + ".batch";
+    private static final int REGENERATION_PAGE_SIZE = 1000;
+
+    private final BankAccountSnapshotFile file;
+    private final BankAccountRepository repository;
+    private final TokenStore tokenStore;
+    private final TransactionManager transactionManager;
+
+    /**
+     * Cleared when a write fails, after which the file is left alone until it is regenerated on the next startup.
+     */
+    private volatile boolean current;
+
+    @Autowired
+    public BankAccountSnapshot(@Value("${axonbank.query.snapshot-file}") String path,
+                               @Value("${axonbank.query.processor:subscribing}") String queryProcessor,
+                               @Value("${axonbank.query.segments:1}") int querySegments,
+                               BankAccountRepository repository, TokenStore tokenStore,
+                               TransactionManager transactionManager) throws IOException {
+        if (!"tracking".equals(queryProcessor) || querySegments != 1) {
+            throw new IllegalStateException(
+                    "The bank account snapshot file needs the tracking query processor with a single segment");
+        }
+        this.file = BankAccountSnapshotFile.open(Paths.get(path));
+        this.repository = repository;
+        this.tokenStore = tokenStore;
+        this.transactionManager = transactionManager;
+    }
+
+    @PostConstruct
+    public void verify() {
+        long start = System.currentTimeMillis();
+        TrackingToken token = transactionManager.fetchInTransaction(() -> tokenStore.fetchToken(PROCESSOR_NAME, 0));
+        if (token != null && token.equals(file.getToken())) {
+            log.info("Opened the bank account snapshot file with {} bank accounts", file.size());
+        } else {
+            regenerate(token);
+            log.info("Wrote the bank account snapshot file anew with {} bank accounts in {} ms", file.size(),
+                     System.currentTimeMillis() - start);
+        }
+        current = true;
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        current = false;
+        file.close();
+    }
+
+    /**
+     * Returns the recorded state of the given bank account.
+     *
+     * @return a new entry, or null if the bank account is not in the file or the file is not up to date
+     */
+    public BankAccountEntry get(String bankAccountId) {
+        return current ? file.get(bankAccountId) : null;
+    }
+
+    /**
+     * Returns at most {@code limit} entries, the oldest bank accounts first.
+     */
+    public List<BankAccountEntry> read(int limit) {
+        return current ? file.read(limit) : Collections.emptyList();
+    }
+
+    /**
+     * Registers a change to the given entry, to be written when the current batch is committed.
+     */
+    public void changed(BankAccountEntry bankAccountEntry) {
+        batch().entries.put(bankAccountEntry.getAxonBankAccountId(), bankAccountEntry);
+    }
+
+    /**
+     * Takes every event handled by the processor, to know the token of the last one in the batch.
+     */
+    @EventHandler
+    public void on(Object event, TrackingToken trackingToken) {
+        batch().token = trackingToken;
+    }
+
+    private Batch batch() {
+        UnitOfWork<?> root = CurrentUnitOfWork.get().root();
+        return root.getOrComputeResource(BATCH, key -> {
+            Batch batch = new Batch();
+            root.afterCommit(unitOfWork -> write(batch));
+            return batch;
+        });
+    }
+
+    private void write(Batch batch) {
+        if (!current) {
+            return;
+        }
+        try {
+            file.write(batch.entries.values(), batch.token);
+        } catch (IOException | RuntimeException e) {
+            current = false;
+            log.error("Writing the bank account snapshot file failed, it is written anew on the next startup", e);
+        }
+    }
+
+    /**
+     * The processor is not running yet, so the entries read are those at the given token.
+     */
+    private void regenerate(TrackingToken token) {
+        try {
+            file.clear();
+            long afterId = 0;
+            List<BankAccountEntry> page;
+            do {
+                page = repository.findByIdGreaterThanOrderByIdAsc(afterId,
+                                                                 new PageRequest(0, REGENERATION_PAGE_SIZE));
+                file.write(page, null);
+                if (!page.isEmpty()) {
+                    afterId = page.get(page.size() - 1).getId();
+                }
+            } while (page.size() == REGENERATION_PAGE_SIZE);
+            file.write(Collections.emptyList(), token);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Batch {
+
+        private final Map<String, BankAccountEntry> entries = new HashMap<>();
+        private TrackingToken token;
+    }
+}
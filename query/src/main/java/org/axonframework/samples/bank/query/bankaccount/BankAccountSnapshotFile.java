@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Memory-mapped file with a fixed size record per bank account, holding what its {@link BankAccountEntry} holds. A
+ * record is overwritten in place when the bank account changes, and new bank accounts are appended. The header holds
+ * the tracking token of the last event applied to the records, so the file can be checked against the token store
+ * before it is read.
+ * <p>
+ * Records are forced to disk before the header names their token, so after a crash the header is older than the
+ * records rather than newer, and the file is not taken for current. A file with a bank account identifier longer than
+ * a record holds is never taken for current either, also not after reopening it, until it is cleared.
+ */
+public class BankAccountSnapshotFile implements Closeable {
+
+    private static final int MAGIC = 0x41584253;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_VERSION_OFFSET = 4;
+    private static final int RECORD_COUNT_OFFSET = 8;
+    private static final int TOKEN_LENGTH_OFFSET = 12;
+    private static final int TOKEN_OFFSET = 16;
+    private static final int MAX_TOKEN_LENGTH = HEADER_SIZE - TOKEN_OFFSET;
+    private static final int NO_TOKEN = -1;
+
+    private static final int RECORD_SIZE = 128;
+    private static final int ID_LENGTH_OFFSET = 0;
+    private static final int ID_OFFSET = 2;
+    private static final int MAX_ID_LENGTH = 88;
+    private static final int ENTRY_ID_OFFSET = 96;
+    private static final int BALANCE_OFFSET = 104;
+    private static final int OVERDRAFT_LIMIT_OFFSET = 112;
+    private static final int VERSION_OFFSET = 120;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final Map<String, Integer> records = new HashMap<>();
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private boolean complete = true;
+
+    private BankAccountSnapshotFile(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the file at the given path, creating it when it does not exist. A file in another format is emptied.
+     */
+    public static BankAccountSnapshotFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        BankAccountSnapshotFile file = new BankAccountSnapshotFile(channel);
+        try {
+            file.load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Returns the token of the last event applied to the records, or null if the records are not known to be
+     * consistent with any token.
+     */
+    public synchronized TrackingToken getToken() {
+        int length = buffer.getInt(TOKEN_LENGTH_OFFSET);
+        if (length < 0 || length > MAX_TOKEN_LENGTH) {
+            return null;
+        }
+        byte[] serialized = new byte[length];
+        for (int i = 0; i < length; i++) {
+            serialized[i] = buffer.get(TOKEN_OFFSET + i);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return (TrackingToken) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a new entry with the recorded state of the given bank account, or null if it has no record.
+     */
+    public synchronized BankAccountEntry get(String bankAccountId) {
+        Integer record = records.get(bankAccountId);
+        return record == null ? null : readRecord(record);
+    }
+
+    /**
+     * Returns new entries for the first {@code limit} records, in the order in which they were appended.
+     */
+    public synchronized List<BankAccountEntry> read(int limit) {
+        int count = Math.min(limit, records.size());
+        List<BankAccountEntry> entries = new ArrayList<>(count);
+        for (int record = 0; record < count; record++) {
+            entries.add(readRecord(record));
+        }
+        return entries;
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Records the given entries, then the token of the last event applied to them.
+     */
+    public synchronized void write(Collection<BankAccountEntry> entries, TrackingToken token) throws IOException {
+        for (BankAccountEntry entry : entries) {
+            byte[] id = entry.getAxonBankAccountId().getBytes(StandardCharsets.UTF_8);
+            if (id.length > MAX_ID_LENGTH) {
+                complete = false;
+                continue;
+            }
+            Integer record = records.get(entry.getAxonBankAccountId());
+            if (record == null) {
+                record = records.size();
+                ensureCapacity(record + 1);
+                int offset = offsetOf(record);
+                buffer.putShort(offset + ID_LENGTH_OFFSET, (short) id.length);
+                for (int i = 0; i < id.length; i++) {
+                    buffer.put(offset + ID_OFFSET + i, id[i]);
+                }
+                records.put(entry.getAxonBankAccountId(), record);
+            }
+            int offset = offsetOf(record);
+            buffer.putLong(offset + ENTRY_ID_OFFSET, entry.getId());
+            buffer.putLong(offset + BALANCE_OFFSET, entry.getBalance());
+            buffer.putLong(offset + OVERDRAFT_LIMIT_OFFSET, entry.getOverdraftLimit());
+            buffer.putLong(offset + VERSION_OFFSET, entry.getVersion());
+        }
+        buffer.putInt(RECORD_COUNT_OFFSET, records.size());
+        buffer.force();
+        writeToken(complete ? token : null);
+    }
+
+    /**
+     * Removes all records, for when the file is written anew.
+     */
+    public synchronized void clear() {
+        writeToken(null);
+        buffer.putInt(RECORD_COUNT_OFFSET, 0);
+        buffer.force();
+        records.clear();
+        complete = true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void load() throws IOException {
+        capacity = (int) Math.max(INITIAL_CAPACITY,
+                                  Math.min(MAX_CAPACITY, (channel.size() - HEADER_SIZE) / RECORD_SIZE));
+        map();
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(FORMAT_VERSION_OFFSET) != FORMAT_VERSION) {
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(FORMAT_VERSION_OFFSET, FORMAT_VERSION);
+            clear();
+            return;
+        }
+        int recordCount = buffer.getInt(RECORD_COUNT_OFFSET);
+        if (recordCount < 0 || recordCount > capacity) {
+            clear();
+            return;
+        }
+        for (int record = 0; record < recordCount; record++) {
+            short idLength = buffer.getShort(offsetOf(record) + ID_LENGTH_OFFSET);
+            if (idLength < 0 || idLength > MAX_ID_LENGTH) {
+                clear();
+                return;
+            }
+            records.put(readId(offsetOf(record)), record);
+        }
+        // without a token the records may miss bank accounts, e.g. one with a too long identifier
+        complete = getToken() != null;
+    }
+
+    private void ensureCapacity(int recordCount) throws IOException {
+        if (recordCount > capacity) {
+            if (recordCount > MAX_CAPACITY) {
+                throw new IOException("The snapshot file cannot hold more than " + MAX_CAPACITY + " bank accounts");
+            }
+            capacity = (int) Math.min(MAX_CAPACITY, Math.max(recordCount, 2L * capacity));
+            map();
+        }
+    }
+
+    /**
+     * Mapping beyond the end of the file grows it.
+     */
+    private void map() throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, offsetOf(capacity));
+    }
+
+    private void writeToken(TrackingToken token) {
+        byte[] serialized = token == null ? null : serialize(token);
+        if (serialized == null || serialized.length > MAX_TOKEN_LENGTH) {
+            buffer.putInt(TOKEN_LENGTH_OFFSET, NO_TOKEN);
+            return;
+        }
+        for (int i = 0; i < serialized.length; i++) {
+            buffer.put(TOKEN_OFFSET + i, serialized[i]);
+        }
+        buffer.putInt(TOKEN_LENGTH_OFFSET, serialized.length);
+    }
+
+    private BankAccountEntry readRecord(int record) {
+        int offset = offsetOf(record);
+        BankAccountEntry entry = new BankAccountEntry(readId(offset), buffer.getLong(offset + BALANCE_OFFSET),
+                                                      buffer.getLong(offset + OVERDRAFT_LIMIT_OFFSET));
+        entry.setId(buffer.getLong(offset + ENTRY_ID_OFFSET));
+        entry.setVersion(buffer.getLong(offset + VERSION_OFFSET));
+        return entry;
+    }
+
+    private String readId(int offset) {
+        byte[] id = new byte[buffer.getShort(offset + ID_LENGTH_OFFSET)];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = buffer.get(offset + ID_OFFSET + i);
+        }
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    private static int offsetOf(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private static byte[] serialize(TrackingToken token) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(token);
+        } catch (IOException e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * Turnover of a bank account on one day, kept up to date as the events come in. The day is the UTC date of the events,
+ * written as yyyy-MM-dd. Balances are those of the bank account after the events of the day so far.
+ */
+@Entity
+@Table(indexes = @Index(name = "bank_account_statistics_entry_day", columnList = "axonBankAccountId,day",
+        unique = true))
+public class BankAccountStatisticsEntry {
+
+    @Id
+    @GeneratedValue
+    private long id;
+    private String axonBankAccountId;
+    @Column(length = 10)
+    private String day;
+    private long moneyIn;
+    private long moneyOut;
+    /**
+     * Number of deposits, withdrawals, debits and credits
+     */
+    private long movements;
+    private long closingBalance;
+    private long maxBalance;
+    private long completedBankTransfers;
+    private long failedBankTransfers;
+
+    @SuppressWarnings("unused")
+    public BankAccountStatisticsEntry() {
+    }
+
+    /**
+     * Statistics of a day without any events yet, starting from the closing balance of the day before.
+     */
+    public BankAccountStatisticsEntry(String axonBankAccountId, String day, long openingBalance) {
+        this.axonBankAccountId = axonBankAccountId;
+        this.day = day;
+        this.closingBalance = openingBalance;
+        this.maxBalance = openingBalance;
+    }
+
+    public void addMoneyIn(long amount) {
+        moneyIn += amount;
+        movements++;
+        closingBalance += amount;
+        maxBalance = Math.max(maxBalance, closingBalance);
+    }
+
+    public void addMoneyOut(long amount) {
+        moneyOut += amount;
+        movements++;
+        closingBalance -= amount;
+    }
+
+    /**
+     * Moves the balances by the given amount, for money that came in or went out on an earlier day.
+     */
+    public void moveBalance(long amount) {
+        closingBalance += amount;
+        maxBalance += amount;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getAxonBankAccountId() {
+        return axonBankAccountId;
+    }
+
+    public void setAxonBankAccountId(String axonBankAccountId) {
+        this.axonBankAccountId = axonBankAccountId;
+    }
+
+    public String getDay() {
+        return day;
+    }
+
+    public void setDay(String day) {
+        this.day = day;
+    }
+
+    public long getMoneyIn() {
+        return moneyIn;
+    }
+
+    public void setMoneyIn(long moneyIn) {
+        this.moneyIn = moneyIn;
+    }
+
+    public long getMoneyOut() {
+        return moneyOut;
+    }
+
+    public void setMoneyOut(long moneyOut) {
+        this.moneyOut = moneyOut;
+    }
+
+    public long getMovements() {
+        return movements;
+    }
+
+    public void setMovements(long movements) {
+        this.movements = movements;
+    }
+
+    public long getClosingBalance() {
+        return closingBalance;
+    }
+
+    public void setClosingBalance(long closingBalance) {
+        this.closingBalance = closingBalance;
+    }
+
+    public long getMaxBalance() {
+        return maxBalance;
+    }
+
+    public void setMaxBalance(long maxBalance) {
+        this.maxBalance = maxBalance;
+    }
+
+    public long getCompletedBankTransfers() {
+        return completedBankTransfers;
+    }
+
+    public void setCompletedBankTransfers(long completedBankTransfers) {
+        this.completedBankTransfers = completedBankTransfers;
+    }
+
+    public long getFailedBankTransfers() {
+        return failedBankTransfers;
+    }
+
+    public void setFailedBankTransfers(long failedBankTransfers) {
+        this.failedBankTransfers = failedBankTransfers;
+    }
+}
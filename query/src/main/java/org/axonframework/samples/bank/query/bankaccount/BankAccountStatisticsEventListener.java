@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.axonframework.config.ProcessingGroup;
+import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventhandling.Timestamp;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyAddedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneySubtractedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCompletedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferFailedEvent;
+import org.axonframework.samples.bank.query.BatchEntries;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+/**
+ * Keeps the daily statistics of each bank account, so turnover is read per bank account and day instead of being
+ * summed up from the transfers. A completed transfer counts for both bank accounts, a failed one only for the source,
+ * as it never reached the destination. The bank accounts of a transfer are kept here from its creation until then, as
+ * the bank transfer entries are written by the segment of the transfer, which may lag behind.
+ * <p>
+ * Every event counts for the day of its own timestamp, whatever order the events of different aggregates are handled
+ * in. An event of a day before the latest one of its bank account, as the clocks of nodes may differ a little, also
+ * moves the balances of every later day.
+ */
+@ProcessingGroup("query")
+@Component
+public class BankAccountStatisticsEventListener {
+
+    private BankAccountStatisticsRepository repository;
+    private BatchEntries<String, BankAccountStatisticsEntry> latestInBatch;
+    private OpenBankTransferRepository openBankTransferRepository;
+
+    @Autowired
+    public BankAccountStatisticsEventListener(BankAccountStatisticsRepository repository,
+                                              OpenBankTransferRepository openBankTransferRepository) {
+        this.repository = repository;
+        this.latestInBatch = new BatchEntries<>(BankAccountStatisticsEventListener.class.getName() + ".latest",
+                                                repository::findFirstByAxonBankAccountIdOrderByDayDesc);
+        this.openBankTransferRepository = openBankTransferRepository;
+    }
+
+    @EventHandler
+    public void on(MoneyAddedEvent event, @Timestamp Instant timestamp) {
+        BankAccountStatisticsEntry statistics = statistics(event.getBankAccountId(), timestamp);
+        statistics.addMoneyIn(event.getAmount());
+        moveLaterBalances(statistics, event.getAmount());
+    }
+
+    @EventHandler
+    public void on(MoneySubtractedEvent event, @Timestamp Instant timestamp) {
+        BankAccountStatisticsEntry statistics = statistics(event.getBankAccountId(), timestamp);
+        statistics.addMoneyOut(event.getAmount());
+        moveLaterBalances(statistics, -event.getAmount());
+    }
+
+    @EventHandler
+    public void on(BankTransferCreatedEvent event) {
+        openBankTransferRepository.save(new OpenBankTransferEntry(event.getBankTransferId(),
+                                                                  event.getSourceBankAccountId(),
+                                                                  event.getDestinationBankAccountId()));
+    }
+
+    /**
+     * A transfer created before the statistics were kept is not counted.
+     */
+    @EventHandler
+    public void on(BankTransferCompletedEvent event, @Timestamp Instant timestamp) {
+        OpenBankTransferEntry bankTransfer = openBankTransferRepository.findOne(event.getBankTransferId());
+        if (bankTransfer == null) {
+            return;
+        }
+        openBankTransferRepository.delete(bankTransfer);
+        BankAccountStatisticsEntry source = statistics(bankTransfer.getSourceBankAccountId(), timestamp);
+        source.setCompletedBankTransfers(source.getCompletedBankTransfers() + 1);
+        if (!bankTransfer.getDestinationBankAccountId().equals(bankTransfer.getSourceBankAccountId())) {
+            BankAccountStatisticsEntry destination = statistics(bankTransfer.getDestinationBankAccountId(),
+                                                                timestamp);
+            destination.setCompletedBankTransfers(destination.getCompletedBankTransfers() + 1);
+        }
+    }
+
+    @EventHandler
+    public void on(BankTransferFailedEvent event, @Timestamp Instant timestamp) {
+        OpenBankTransferEntry bankTransfer = openBankTransferRepository.findOne(event.getBankTransferId());
+        if (bankTransfer == null) {
+            return;
+        }
+        openBankTransferRepository.delete(bankTransfer);
+        BankAccountStatisticsEntry source = statistics(bankTransfer.getSourceBankAccountId(), timestamp);
+        source.setFailedBankTransfers(source.getFailedBankTransfers() + 1);
+    }
+
+    /**
+     * Returns the statistics of the day of the given timestamp, starting them from the closing balance of the day
+     * before it. The latest day of each bank account is kept in the batch; earlier days are looked up.
+     */
+    private BankAccountStatisticsEntry statistics(String bankAccountId, Instant timestamp) {
+        String day = timestamp.atOffset(ZoneOffset.UTC).toLocalDate().toString();
+        BankAccountStatisticsEntry latest = latestInBatch.find(bankAccountId);
+        if (latest != null && latest.getDay().equals(day)) {
+            return latest;
+        }
+        if (latest == null || latest.getDay().compareTo(day) < 0) {
+            BankAccountStatisticsEntry statistics =
+                    new BankAccountStatisticsEntry(bankAccountId, day, latest == null ? 0 : latest.getClosingBalance());
+            repository.save(statistics);
+            latestInBatch.put(bankAccountId, statistics);
+            return statistics;
+        }
+        BankAccountStatisticsEntry statistics = repository.findOneByAxonBankAccountIdAndDay(bankAccountId, day);
+        if (statistics == null) {
+            BankAccountStatisticsEntry before =
+                    repository.findFirstByAxonBankAccountIdAndDayLessThanOrderByDayDesc(bankAccountId, day);
+            statistics = new BankAccountStatisticsEntry(bankAccountId, day,
+                                                        before == null ? 0 : before.getClosingBalance());
+            repository.save(statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Moves the balances of the days after the given one, unless it is the latest day of its bank account.
+     */
+    private void moveLaterBalances(BankAccountStatisticsEntry statistics, long amount) {
+        if (statistics == latestInBatch.find(statistics.getAxonBankAccountId())) {
+            return;
+        }
+        repository.findByAxonBankAccountIdAndDayGreaterThan(statistics.getAxonBankAccountId(), statistics.getDay())
+                  .forEach(later -> later.moveBalance(amount));
+    }
+}
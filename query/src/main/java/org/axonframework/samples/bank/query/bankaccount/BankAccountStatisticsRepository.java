@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.QueryHint;
+import java.util.List;
+
+@Repository
+public interface BankAccountStatisticsRepository extends JpaRepository<BankAccountStatisticsEntry, Long> {
+
+    /**
+     * The latest day the bank account had any events. Does not flush pending changes first, the event listener keeps
+     * the entries it changed in the current batch.
+     */
+    @QueryHints(@QueryHint(name = "org.hibernate.flushMode", value = "COMMIT"))
+    BankAccountStatisticsEntry findFirstByAxonBankAccountIdOrderByDayDesc(String axonBankAccountId);
+
+    /**
+     * The given day, if the bank account had any events on it. Flushes pending changes first, as this and the next two
+     * lookups are only made for an event of a day before the latest one, which may have been created in the batch.
+     */
+    BankAccountStatisticsEntry findOneByAxonBankAccountIdAndDay(String axonBankAccountId, String day);
+
+    BankAccountStatisticsEntry findFirstByAxonBankAccountIdAndDayLessThanOrderByDayDesc(String axonBankAccountId,
+                                                                                        String day);
+
+    List<BankAccountStatisticsEntry> findByAxonBankAccountIdAndDayGreaterThan(String axonBankAccountId, String day);
+
+    /**
+     * The given day, or else the latest day before it that the bank account had any events.
+     */
+    BankAccountStatisticsEntry findFirstByAxonBankAccountIdAndDayLessThanEqualOrderByDayDesc(String axonBankAccountId,
+                                                                                             String day);
+
+    List<BankAccountStatisticsEntry> findByAxonBankAccountIdAndDayBetweenOrderByDayAsc(String axonBankAccountId,
+                                                                                       String from,
+                                                                                       String to,
+                                                                                       Pageable pageable);
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.AxonThreadFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes updated bank account entries to the websocket topics. Updates are collected for a short window and only
+ * the latest update of each bank account is sent, all of them together as one frame on
+ * {@link #DELTAS_TOPIC}, so the number of frames follows the window rather than the number of events. A full batch is
+ * sent right away. With a window of 0 every update is sent as soon as it arrives.
+ * <p>
+ * When sending fails the batch is kept, and sent with the next flush unless a newer update replaced it.
+ */
+@Slf4j
+@Component
+public class BankAccountUpdateBroadcaster {
+
+    public static final String DELTAS_TOPIC = "/topic/bank-accounts.deltas";
+
+    private final SimpMessageSendingOperations messagingTemplate;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService flushExecutor;
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+
+    private Map<String, BankAccountEntry> pending = new LinkedHashMap<>();
+
+    @Autowired
+    public BankAccountUpdateBroadcaster(SimpMessageSendingOperations messagingTemplate,
+                                        @Value("${axonbank.broadcast.window-ms:50}") long windowMillis,
+                                        @Value("${axonbank.broadcast.max-batch-size:500}") int maxBatchSize) {
+        this.messagingTemplate = messagingTemplate;
+        this.maxBatchSize = windowMillis > 0 ? Math.max(1, maxBatchSize) : 1;
+        if (windowMillis > 0) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("BroadcastFlusher"));
+            flushExecutor.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flushExecutor = null;
+        }
+    }
+
+    /**
+     * Queues the current state of the given entry. Only the latest version of each bank account is kept until the
+     * next flush.
+     */
+    public void broadcast(BankAccountEntry bankAccountEntry) {
+        BankAccountEntry update = bankAccountEntry.copy();
+        updates.incrementAndGet();
+        boolean full;
+        synchronized (this) {
+            BankAccountEntry previous = pending.get(update.getAxonBankAccountId());
+            if (previous == null || previous.getVersion() < update.getVersion()) {
+                pending.put(update.getAxonBankAccountId(), update);
+            }
+            full = pending.size() >= maxBatchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the pending updates: one frame with all of them on {@link #DELTAS_TOPIC}, and one frame per bank account
+     * on its own topic. Never throws, as it runs on the flush thread and on the threads handling events.
+     */
+    public void flush() {
+        Map<String, BankAccountEntry> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        try {
+            messagingTemplate.convertAndSend(DELTAS_TOPIC, new ArrayList<>(batch.values()));
+            frames.incrementAndGet();
+            for (BankAccountEntry update : batch.values()) {
+                messagingTemplate.convertAndSend("/topic/bank-accounts." + update.getAxonBankAccountId() + ".deltas",
+                                                 update);
+                frames.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not broadcast {} bank account updates, retrying with the next flush", batch.size(), e);
+            requeue(batch);
+        }
+    }
+
+    /**
+     * Puts a batch that could not be sent back in front of the updates that arrived since, keeping the newest version
+     * of each bank account.
+     */
+    private synchronized void requeue(Map<String, BankAccountEntry> batch) {
+        for (BankAccountEntry update : pending.values()) {
+            BankAccountEntry previous = batch.get(update.getAxonBankAccountId());
+            if (previous == null || previous.getVersion() < update.getVersion()) {
+                batch.put(update.getAxonBankAccountId(), update);
+            }
+        }
+        pending = batch;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+        }
+        flush();
+    }
+
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    public long getFrameCount() {
+        return frames.get();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Frames not sent compared to sending every update on its own, to the global and to the bank account topic.
+     * Updates still waiting for a flush are counted as saved.
+     */
+    public long getFramesSaved() {
+        return 2 * updates.get() - frames.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BankAccountUpdateBroadcaster{updates=" + updates + ", frames=" + frames + ", framesSaved="
+                + getFramesSaved() + "}";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies of the bank account entries kept in memory, so subscriptions to the bank accounts are answered without a
+ * query. {@link BankAccountEventListener} writes every change through once it is committed. An entry is never
+ * replaced by an older version, so a lookup that read the database just before a change cannot bring back the old
+ * balance. At most {@code maxSize} entries are kept, evicting the least recently used one, and the oldest bank
+ * accounts are loaded on startup. When there is a {@link BankAccountSnapshot}, entries are loaded from its file rather
+ * than from the database.
+ * <p>
+ * When several nodes update the query model, each cache would only see the changes made on its own node, so the cache
+ * is switched off and every lookup reads the database.
+ * <p>
+ * Pages of the listing are kept as the identifiers of the bank accounts on them. Bank accounts are never removed and
+ * new ones are added at the end, so a full page never changes. Pages that are not full are dropped whenever a bank
+ * account is created.
+ */
+@Slf4j
+@Component
+public class BankAccountViewCache {
+
+    private static final int WARM_UP_PAGE_SIZE = 1000;
+
+    private final BankAccountRepository repository;
+    private final Optional<BankAccountSnapshot> snapshot;
+    private final boolean enabled;
+    private final int maxSize;
+    private final Map<String, BankAccountEntry> entries;
+    private final Map<String, Page> pages;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Changed by {@link #clear()}. Entries loaded before the change are not kept.
+     */
+    private long generation;
+    /**
+     * Changed when a bank account is created or the cache is cleared. Pages loaded before the change are only kept
+     * when they are full.
+     */
+    private long pageGeneration;
+
+    @Autowired
+    public BankAccountViewCache(BankAccountRepository repository, Optional<BankAccountSnapshot> snapshot,
+                                @Value("${axonbank.query.cache.enabled:true}") boolean enabled,
+                                @Value("${axonbank.query.cache.max-size:10000}") int maxSize,
+                                @Value("${axonbank.query.cache.max-pages:1000}") int maxPages) {
+        if (maxSize <= 0 || maxPages <= 0) {
+            throw new IllegalArgumentException("maxSize and maxPages must be positive");
+        }
+        this.repository = repository;
+        this.snapshot = snapshot;
+        this.enabled = enabled;
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, BankAccountEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BankAccountEntry> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.pages = new LinkedHashMap<String, Page>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * Returns the entry of the given bank account, loading it when it is not cached.
+     *
+     * @return the entry, or null if there is no such bank account
+     */
+    public BankAccountEntry get(String bankAccountId) {
+        if (!enabled) {
+            return repository.findOneByAxonBankAccountId(bankAccountId);
+        }
+        return lookUp(bankAccountId, true);
+    }
+
+    /**
+     * Returns at most {@code limit} entries with an id greater than {@code afterId}, in the order in which the bank
+     * accounts were created.
+     */
+    public List<BankAccountEntry> page(long afterId, int limit) {
+        if (!enabled) {
+            return repository.findByIdGreaterThanOrderByIdAsc(afterId, new PageRequest(0, limit));
+        }
+        String key = afterId + "/" + limit;
+        Page page;
+        long loadedInGeneration;
+        long loadedInPageGeneration;
+        synchronized (this) {
+            page = pages.get(key);
+            loadedInGeneration = generation;
+            loadedInPageGeneration = pageGeneration;
+        }
+        if (page != null) {
+            hits.incrementAndGet();
+            List<BankAccountEntry> cached = new ArrayList<>(page.bankAccountIds.size());
+            for (String bankAccountId : page.bankAccountIds) {
+                cached.add(lookUp(bankAccountId, false));
+            }
+            return cached;
+        }
+        misses.incrementAndGet();
+        List<BankAccountEntry> loaded = new ArrayList<>();
+        List<String> bankAccountIds = new ArrayList<>();
+        for (BankAccountEntry entry : repository.findByIdGreaterThanOrderByIdAsc(afterId,
+                                                                                new PageRequest(0, limit))) {
+            BankAccountEntry copy = entry.copy();
+            putLoaded(copy, loadedInGeneration);
+            loaded.add(copy);
+            bankAccountIds.add(copy.getAxonBankAccountId());
+        }
+        synchronized (this) {
+            boolean full = bankAccountIds.size() == limit;
+            if (generation == loadedInGeneration && (full || pageGeneration == loadedInPageGeneration)) {
+                pages.put(key, new Page(limit, bankAccountIds));
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Stores the committed state of the given entry, unless a newer version is cached already.
+     */
+    public void update(BankAccountEntry bankAccountEntry) {
+        if (!enabled) {
+            return;
+        }
+        BankAccountEntry entry = bankAccountEntry.copy();
+        synchronized (this) {
+            putIfNotOlder(entry);
+        }
+    }
+
+    /**
+     * Drops the pages that are not full, as the new bank account may belong on them.
+     */
+    public synchronized void bankAccountCreated() {
+        pageGeneration++;
+        pages.values().removeIf(page -> !page.isFull());
+    }
+
+    /**
+     * Empties the cache, for when the entries are replaced as a whole.
+     */
+    public synchronized void clear() {
+        generation++;
+        pageGeneration++;
+        entries.clear();
+        pages.clear();
+    }
+
+    /**
+     * Loads the oldest bank accounts, until the cache is full.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!enabled) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long loadedInGeneration;
+        synchronized (this) {
+            loadedInGeneration = generation;
+        }
+        List<BankAccountEntry> snapshotEntries = snapshot.map(s -> s.read(maxSize)).orElse(Collections.emptyList());
+        if (!snapshotEntries.isEmpty()) {
+            snapshotEntries.forEach(entry -> putLoaded(entry, loadedInGeneration));
+            log.info("Loaded {} bank accounts into the cache from the snapshot file in {} ms", snapshotEntries.size(),
+                     System.currentTimeMillis() - start);
+            return;
+        }
+        int loaded = 0;
+        long afterId = 0;
+        List<BankAccountEntry> batch;
+        do {
+            int limit = Math.min(WARM_UP_PAGE_SIZE, maxSize - loaded);
+            batch = repository.findByIdGreaterThanOrderByIdAsc(afterId, new PageRequest(0, limit));
+            for (BankAccountEntry entry : batch) {
+                putLoaded(entry.copy(), loadedInGeneration);
+                afterId = entry.getId();
+            }
+            loaded += batch.size();
+        } while (batch.size() == WARM_UP_PAGE_SIZE && loaded < maxSize);
+        log.info("Loaded {} bank accounts into the cache in {} ms", loaded, System.currentTimeMillis() - start);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Lookups of the bank accounts on a cached page are not metered, the page itself is.
+     */
+    private BankAccountEntry lookUp(String bankAccountId, boolean metered) {
+        long loadedInGeneration;
+        synchronized (this) {
+            BankAccountEntry entry = entries.get(bankAccountId);
+            if (entry != null) {
+                if (metered) {
+                    hits.incrementAndGet();
+                }
+                return entry;
+            }
+            loadedInGeneration = generation;
+        }
+        if (metered) {
+            misses.incrementAndGet();
+        }
+        BankAccountEntry entry = snapshot.map(s -> s.get(bankAccountId)).orElse(null);
+        if (entry == null) {
+            entry = repository.findOneByAxonBankAccountId(bankAccountId);
+            entry = entry == null ? null : entry.copy();
+        }
+        if (entry != null) {
+            putLoaded(entry, loadedInGeneration);
+        }
+        return entry;
+    }
+
+    private synchronized void putLoaded(BankAccountEntry entry, long loadedInGeneration) {
+        if (generation == loadedInGeneration) {
+            putIfNotOlder(entry);
+        }
+    }
+
+    private void putIfNotOlder(BankAccountEntry entry) {
+        BankAccountEntry cached = entries.get(entry.getAxonBankAccountId());
+        if (cached == null || cached.getVersion() <= entry.getVersion()) {
+            entries.put(entry.getAxonBankAccountId(), entry);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BankAccountViewCache{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size="
+                + size() + "}";
+    }
+
+    private static class Page {
+
+        private final int limit;
+        private final List<String> bankAccountIds;
+
+        private Page(int limit, List<String> bankAccountIds) {
+            this.limit = limit;
+            this.bankAccountIds = bankAccountIds;
+        }
+
+        private boolean isFull() {
+            return bankAccountIds.size() == limit;
+        }
+    }
+}
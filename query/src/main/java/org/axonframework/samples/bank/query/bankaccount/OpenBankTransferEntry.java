@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * The bank accounts of a bank transfer that has not completed or failed yet, kept by the daily statistics so they do
+ * not depend on the bank transfer entries, which may be written by another segment.
+ */
+@Entity
+public class OpenBankTransferEntry {
+
+    @Id
+    private String axonBankTransferId;
+    private String sourceBankAccountId;
+    private String destinationBankAccountId;
+
+    @SuppressWarnings("unused")
+    public OpenBankTransferEntry() {
+    }
+
+    public OpenBankTransferEntry(String axonBankTransferId, String sourceBankAccountId,
+                                 String destinationBankAccountId) {
+        this.axonBankTransferId = axonBankTransferId;
+        this.sourceBankAccountId = sourceBankAccountId;
+        this.destinationBankAccountId = destinationBankAccountId;
+    }
+
+    public String getAxonBankTransferId() {
+        return axonBankTransferId;
+    }
+
+    public String getSourceBankAccountId() {
+        return sourceBankAccountId;
+    }
+
+    public String getDestinationBankAccountId() {
+        return destinationBankAccountId;
+    }
+}
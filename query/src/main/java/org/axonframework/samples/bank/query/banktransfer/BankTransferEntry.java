@@ -19,8 +19,19 @@ package org.axonframework.samples.bank.query.banktransfer;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 
+/**
+ * Besides the Axon identifier, the source and destination bank accounts are indexed together with the id, so the
+ * transfers of a bank account are found and paged through from the indexes alone.
+ */
 @Entity
+@Table(indexes = {
+        @Index(name = "bank_transfer_entry_axon_id", columnList = "axonBankTransferId", unique = true),
+        @Index(name = "bank_transfer_entry_source", columnList = "sourceBankAccountId,id"),
+        @Index(name = "bank_transfer_entry_destination", columnList = "destinationBankAccountId,id")
+})
 public class BankTransferEntry {
 
     @Id
@@ -31,6 +42,10 @@ public class BankTransferEntry {
     private String destinationBankAccountId;
     private long amount;
     private Status status;
+    /**
+     * Sequence number of the last event applied
+     */
+    private long version;
 
     @SuppressWarnings("unused")
     public BankTransferEntry() {
@@ -44,6 +59,14 @@ public class BankTransferEntry {
         this.status = Status.STARTED;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getAxonBankTransferId() {
         return axonBankTransferId;
     }
@@ -84,6 +107,14 @@ public class BankTransferEntry {
         this.status = status;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public enum Status {
         STARTED,
         FAILED,
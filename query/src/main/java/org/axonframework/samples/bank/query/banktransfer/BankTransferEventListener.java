@@ -16,46 +16,95 @@
 
 package org.axonframework.samples.bank.query.banktransfer;
 
+import org.axonframework.config.ProcessingGroup;
 import org.axonframework.eventhandling.EventHandler;
+import org.axonframework.eventsourcing.SequenceNumber;
+import org.axonframework.messaging.unitofwork.CurrentUnitOfWork;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCompletedEvent;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
 import org.axonframework.samples.bank.api.banktransfer.event.BankTransferFailedEvent;
+import org.axonframework.samples.bank.query.BatchEntries;
+import org.axonframework.samples.bank.query.VersionWaiter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+@ProcessingGroup("query")
 @Component
 public class BankTransferEventListener {
 
     private BankTransferRepository repository;
+    private BatchEntries<String, BankTransferEntry> entriesInBatch;
+    private VersionWaiter versionWaiter;
 
     @Autowired
-    public BankTransferEventListener(BankTransferRepository repository) {
+    public BankTransferEventListener(BankTransferRepository repository, VersionWaiter versionWaiter) {
         this.repository = repository;
+        this.entriesInBatch = new BatchEntries<>(BankTransferEventListener.class.getName() + ".entries",
+                                                 repository::findOneByAxonBankTransferId);
+        this.versionWaiter = versionWaiter;
+    }
+
+    /**
+     * Creates a listener that only writes the entries, for replaying the events into a query model that readers do
+     * not see yet. Its changes are not reported to waiting readers.
+     */
+    public BankTransferEventListener(BankTransferRepository repository) {
+        this(repository, null);
     }
 
     @EventHandler
-    public void on(BankTransferCreatedEvent event) {
-        repository.save(new BankTransferEntry(event.getBankTransferId(),
-                                              event.getSourceBankAccountId(),
-                                              event.getDestinationBankAccountId(),
-                                              event.getAmount()));
+    public void on(BankTransferCreatedEvent event, @SequenceNumber long sequenceNumber) {
+        save(new BankTransferEntry(event.getBankTransferId(),
+                                   event.getSourceBankAccountId(),
+                                   event.getDestinationBankAccountId(),
+                                   event.getAmount()),
+             sequenceNumber);
     }
 
     @EventHandler
-    public void on(BankTransferFailedEvent event) {
-        BankTransferEntry bankTransferEntry = repository.findOneByAxonBankTransferId(event.getBankTransferId());
+    public void on(BankTransferFailedEvent event, @SequenceNumber long sequenceNumber) {
+        BankTransferEntry bankTransferEntry = find(event.getBankTransferId());
         bankTransferEntry.setStatus(BankTransferEntry.Status.FAILED);
-
-        repository.save(bankTransferEntry);
+        bankTransferEntry.setVersion(sequenceNumber);
+        applied(bankTransferEntry);
     }
 
     @EventHandler
-    public void on(BankTransferCompletedEvent event) {
-        BankTransferEntry bankTransferEntry = repository.findOneByAxonBankTransferId(event.getBankTransferId());
+    public void on(BankTransferCompletedEvent event, @SequenceNumber long sequenceNumber) {
+        BankTransferEntry bankTransferEntry = find(event.getBankTransferId());
         bankTransferEntry.setStatus(BankTransferEntry.Status.COMPLETED);
+        bankTransferEntry.setVersion(sequenceNumber);
+        applied(bankTransferEntry);
+    }
 
+    private void save(BankTransferEntry bankTransferEntry, long sequenceNumber) {
+        bankTransferEntry.setVersion(sequenceNumber);
         repository.save(bankTransferEntry);
+        entriesInBatch.put(bankTransferEntry.getAxonBankTransferId(), bankTransferEntry);
+        applied(bankTransferEntry);
     }
 
+    /**
+     * Reported to waiting readers once the change is committed.
+     */
+    private void applied(BankTransferEntry bankTransferEntry) {
+        if (versionWaiter == null) {
+            return;
+        }
+        String bankTransferId = bankTransferEntry.getAxonBankTransferId();
+        long sequenceNumber = bankTransferEntry.getVersion();
+        if (CurrentUnitOfWork.isStarted()) {
+            CurrentUnitOfWork.get().afterCommit(unitOfWork -> versionWaiter.applied(bankTransferId, sequenceNumber));
+        } else {
+            versionWaiter.applied(bankTransferId, sequenceNumber);
+        }
+    }
 
+    /**
+     * Returns the entry as changed by the events handled so far, including those of the current batch that are not
+     * written yet. A transfer started and finished within the same batch is inserted with its final status.
+     */
+    private BankTransferEntry find(String bankTransferId) {
+        return entriesInBatch.find(bankTransferId);
+    }
 }
@@ -16,12 +16,57 @@
 
 package org.axonframework.samples.bank.query.banktransfer;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 
-public interface BankTransferRepository extends JpaRepository<BankTransferEntry, String> {
+import javax.persistence.QueryHint;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
+public interface BankTransferRepository extends JpaRepository<BankTransferEntry, Long> {
+
+    /**
+     * Does not flush pending changes first, the event listener keeps the entries it changed in the current batch.
+     */
+    @QueryHints(@QueryHint(name = "org.hibernate.flushMode", value = "COMMIT"))
     BankTransferEntry findOneByAxonBankTransferId(String axonBankTransferId);
 
-    Iterable<BankTransferEntry> findBySourceBankAccountIdOrDestinationBankAccountId(String sourceBankAccountId,
-                                                                                    String destinationBankAccountId);
+    List<BankTransferEntry> findBySourceBankAccountIdAndIdGreaterThanOrderByIdAsc(String sourceBankAccountId,
+                                                                                  long afterId,
+                                                                                  Pageable pageable);
+
+    List<BankTransferEntry> findByDestinationBankAccountIdAndIdGreaterThanOrderByIdAsc(String destinationBankAccountId,
+                                                                                       long afterId,
+                                                                                       Pageable pageable);
+
+    /**
+     * Returns the next page of transfers from or to the given bank account, oldest first. Rather than one query with
+     * an OR over both columns, which cannot be served by a single index, the outgoing and incoming transfers are
+     * read through their own index and merged.
+     */
+    default List<BankTransferEntry> findTransferHistory(String bankAccountId, long afterId, Pageable pageable) {
+        Iterator<BankTransferEntry> outgoing =
+                findBySourceBankAccountIdAndIdGreaterThanOrderByIdAsc(bankAccountId, afterId, pageable).iterator();
+        Iterator<BankTransferEntry> incoming =
+                findByDestinationBankAccountIdAndIdGreaterThanOrderByIdAsc(bankAccountId, afterId, pageable).iterator();
+        List<BankTransferEntry> transfers = new ArrayList<>(pageable.getPageSize());
+        BankTransferEntry nextOutgoing = outgoing.hasNext() ? outgoing.next() : null;
+        BankTransferEntry nextIncoming = incoming.hasNext() ? incoming.next() : null;
+        while (transfers.size() < pageable.getPageSize() && (nextOutgoing != null || nextIncoming != null)) {
+            if (nextIncoming == null || (nextOutgoing != null && nextOutgoing.getId() <= nextIncoming.getId())) {
+                if (nextIncoming != null && nextIncoming.getId() == nextOutgoing.getId()) {
+                    // a transfer to the same bank account is found by both queries
+                    nextIncoming = incoming.hasNext() ? incoming.next() : null;
+                }
+                transfers.add(nextOutgoing);
+                nextOutgoing = outgoing.hasNext() ? outgoing.next() : null;
+            } else {
+                transfers.add(nextIncoming);
+                nextIncoming = incoming.hasNext() ? incoming.next() : null;
+            }
+        }
+        return transfers;
+    }
 }
@@ -0,0 +1,33 @@
+--
+-- Copyright (c) 2016. Axon Framework
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--     http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+--
+
+-- Adds the unique indexes on the Axon identifiers to a query model created before they were declared on the
+-- entities. Hibernate's schema update does not add a unique index to a table holding duplicates, so duplicate entries
+-- are removed first, keeping the one created first.
+
+DELETE duplicate FROM bank_account_entry duplicate
+  JOIN bank_account_entry original
+    ON duplicate.axon_bank_account_id = original.axon_bank_account_id AND duplicate.id > original.id;
+
+ALTER TABLE bank_account_entry
+  ADD UNIQUE INDEX bank_account_entry_axon_id (axon_bank_account_id);
+
+DELETE duplicate FROM bank_transfer_entry duplicate
+  JOIN bank_transfer_entry original
+    ON duplicate.axon_bank_transfer_id = original.axon_bank_transfer_id AND duplicate.id > original.id;
+
+ALTER TABLE bank_transfer_entry
+  ADD UNIQUE INDEX bank_transfer_entry_axon_id (axon_bank_transfer_id);
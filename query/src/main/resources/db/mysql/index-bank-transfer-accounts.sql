@@ -0,0 +1,22 @@
+--
+-- Copyright (c) 2016. Axon Framework
+--
+-- Licensed under the Apache License, Version 2.0 (the "License");
+-- you may not use this file except in compliance with the License.
+-- You may obtain a copy of the License at
+--
+--     http://www.apache.org/licenses/LICENSE-2.0
+--
+-- Unless required by applicable law or agreed to in writing, software
+-- distributed under the License is distributed on an "AS IS" BASIS,
+-- WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+-- See the License for the specific language governing permissions and
+-- limitations under the License.
+--
+
+-- Adds the indexes the transfer history of a bank account is read from to a query model created before they were
+-- declared on BankTransferEntry.
+
+ALTER TABLE bank_transfer_entry
+  ADD INDEX bank_transfer_entry_source (source_bank_account_id, id),
+  ADD INDEX bank_transfer_entry_destination (destination_bank_account_id, id);
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query;
+
+import org.axonframework.common.transaction.NoTransactionManager;
+import org.axonframework.eventhandling.EventHandlerInvoker;
+import org.axonframework.eventhandling.EventMessage;
+import org.axonframework.eventhandling.TrackingEventProcessor;
+import org.axonframework.eventhandling.tokenstore.TokenStore;
+import org.axonframework.eventhandling.tokenstore.UnableToClaimTokenException;
+import org.axonframework.eventsourcing.DomainEventMessage;
+import org.axonframework.eventsourcing.GenericDomainEventMessage;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.eventsourcing.eventstore.inmemory.InMemoryEventStorageEngine;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.junit.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class SegmentedTrackingEventProcessorTest {
+
+    private static final int SEGMENT_COUNT = 4;
+
+    private InMemoryEventStorageEngine storageEngine;
+    private EmbeddedEventStore eventStore;
+    private Map<String, String> tokenOwners;
+    private Map<String, TrackingToken> tokens;
+    private AtomicInteger nodeCount;
+    private RecordingInvoker segmentedHandler;
+    private RecordingInvoker firstSegmentHandler;
+    private SegmentedTrackingEventProcessor node1;
+    private SegmentedTrackingEventProcessor node2;
+
+    @Before
+    public void setUp() throws Exception {
+        storageEngine = new InMemoryEventStorageEngine();
+        eventStore = new EmbeddedEventStore(storageEngine);
+        tokenOwners = new ConcurrentHashMap<>();
+        tokens = new ConcurrentHashMap<>();
+        nodeCount = new AtomicInteger(1);
+        segmentedHandler = new RecordingInvoker();
+        firstSegmentHandler = new RecordingInvoker();
+        node1 = createProcessor("node1");
+        node2 = createProcessor("node2");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        node1.shutDown();
+        node2.shutDown();
+        eventStore.shutDown();
+    }
+
+    @Test
+    public void testEventsOfSameAggregateAreHandledInOrderByOneSegment() throws Exception {
+        node1.start();
+        for (int sequenceNumber = 0; sequenceNumber < 50; sequenceNumber++) {
+            for (int aggregate = 0; aggregate < 10; aggregate++) {
+                String bankAccountId = "bankAccount" + aggregate;
+                eventStore.publish(new GenericDomainEventMessage<>("BankAccount", bankAccountId, sequenceNumber,
+                                                                   new MoneyDepositedEvent(bankAccountId, 1)));
+            }
+        }
+
+        waitFor(() -> segmentedHandler.handledCount() == 500 && firstSegmentHandler.handledCount() == 500);
+        assertEquals(SEGMENT_COUNT, node1.getRunningSegmentCount());
+        for (int aggregate = 0; aggregate < 10; aggregate++) {
+            List<Long> sequenceNumbers = segmentedHandler.handledSequenceNumbers.get("bankAccount" + aggregate);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, (long) sequenceNumbers.get(i));
+            }
+            List<String> handlingThreads = segmentedHandler.handlingThreads.get("bankAccount" + aggregate);
+            assertEquals(1, handlingThreads.stream().distinct().count());
+        }
+        assertEquals(1, firstSegmentHandler.handlingThreads.values().stream()
+                                                            .flatMap(List::stream).distinct().count());
+    }
+
+    @Test
+    public void testSegmentsAreSharedWhenNodeJoinsAndTakenOverWhenItLeaves() throws Exception {
+        node1.start();
+        waitFor(() -> tokenOwners.size() == SEGMENT_COUNT);
+
+        nodeCount.set(2);
+        node2.start();
+        waitFor(() -> {
+            node1.balance();
+            node2.balance();
+            return node1.getRunningSegmentCount() == 2 && node2.getRunningSegmentCount() == 2;
+        });
+
+        node1.shutDown();
+        nodeCount.set(1);
+        waitFor(() -> {
+            node2.balance();
+            return node2.getRunningSegmentCount() == SEGMENT_COUNT;
+        });
+        assertTrue(tokenOwners.values().stream().allMatch("node2"::equals));
+    }
+
+    @Test
+    public void testSegmentStartsFromTokenOfUnsegmentedProcessor() throws Exception {
+        eventStore.publish(new GenericDomainEventMessage<>("BankAccount", "bankAccount1", 0,
+                                                           new MoneyDepositedEvent("bankAccount1", 1)));
+        tokens.put("query", storageEngine.readEvents(null, false).findFirst().get().trackingToken());
+        eventStore.publish(new GenericDomainEventMessage<>("BankAccount", "bankAccount1", 1,
+                                                           new MoneyDepositedEvent("bankAccount1", 1)));
+
+        node1.start();
+
+        waitFor(() -> segmentedHandler.handledCount() == 1);
+        assertEquals(1, (long) segmentedHandler.handledSequenceNumbers.get("bankAccount1").get(0));
+    }
+
+    private SegmentedTrackingEventProcessor createProcessor(String nodeId) {
+        TokenStore tokenStore = new ClaimingTokenStore(nodeId);
+        return new SegmentedTrackingEventProcessor("query", SEGMENT_COUNT, segmentedHandler, firstSegmentHandler,
+                                                   (name, invoker) -> new TrackingEventProcessor(
+                                                           name, invoker, eventStore, tokenStore,
+                                                           NoTransactionManager.INSTANCE),
+                                                   tokenStore, NoTransactionManager.INSTANCE, nodeCount::get,
+                                                   100);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static class RecordingInvoker implements EventHandlerInvoker {
+
+        private final Map<String, List<Long>> handledSequenceNumbers = new ConcurrentHashMap<>();
+        private final Map<String, List<String>> handlingThreads = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean hasHandler(EventMessage<?> event) {
+            return true;
+        }
+
+        @Override
+        public Object handle(EventMessage<?> event) throws Exception {
+            DomainEventMessage<?> domainEvent = (DomainEventMessage<?>) event;
+            handledSequenceNumbers.computeIfAbsent(domainEvent.getAggregateIdentifier(),
+                                                   id -> new CopyOnWriteArrayList<>())
+                                  .add(domainEvent.getSequenceNumber());
+            handlingThreads.computeIfAbsent(domainEvent.getAggregateIdentifier(), id -> new CopyOnWriteArrayList<>())
+                           .add(Thread.currentThread().getName());
+            return null;
+        }
+
+        private int handledCount() {
+            return handledSequenceNumbers.values().stream().mapToInt(List::size).sum();
+        }
+    }
+
+    /**
+     * Token store shared by the nodes, without claim timeouts.
+     */
+    private class ClaimingTokenStore implements TokenStore {
+
+        private final String nodeId;
+
+        private ClaimingTokenStore(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public void storeToken(TrackingToken token, String processorName, int segment) {
+            claim(processorName);
+            tokens.put(processorName, token);
+        }
+
+        @Override
+        public TrackingToken fetchToken(String processorName, int segment) {
+            claim(processorName);
+            return tokens.get(processorName);
+        }
+
+        @Override
+        public void extendClaim(String processorName, int segment) {
+            claim(processorName);
+        }
+
+        @Override
+        public void releaseClaim(String processorName, int segment) {
+            tokenOwners.remove(processorName, nodeId);
+        }
+
+        private void claim(String processorName) {
+            String owner = tokenOwners.putIfAbsent(processorName, nodeId);
+            if (owner != null && !owner.equals(nodeId)) {
+                throw new UnableToClaimTokenException(processorName + " is claimed by " + owner);
+            }
+        }
+    }
+}
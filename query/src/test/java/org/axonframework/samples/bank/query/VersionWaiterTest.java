@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query;
+
+import org.junit.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class VersionWaiterTest {
+
+    private VersionWaiter testSubject;
+
+    @Before
+    public void setUp() throws Exception {
+        testSubject = new VersionWaiter(60_000, 2, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testSubject.shutdown();
+    }
+
+    @Test
+    public void testVersionAlreadyReached() throws Exception {
+        CompletableFuture<String> result = testSubject.await("bankAccount1", 3, () -> 5, () -> "entry");
+
+        assertEquals("entry", result.get(1, TimeUnit.SECONDS));
+        assertEquals(0, testSubject.getWaiterCount());
+    }
+
+    @Test
+    public void testVersionReachedWhileWaiting() throws Exception {
+        AtomicLong currentVersion = new AtomicLong(1);
+        AtomicReference<String> completingThread = new AtomicReference<>();
+        CompletableFuture<Void> reached = testSubject.await("bankAccount1", 3, currentVersion::get);
+        CompletableFuture<String> result = reached.thenApply(done -> {
+            completingThread.set(Thread.currentThread().getName());
+            return "version " + currentVersion.get();
+        });
+
+        testSubject.applied("bankAccount1", 2);
+        assertNotDone(reached);
+        assertEquals(1, testSubject.getWaiterCount());
+
+        currentVersion.set(3);
+        testSubject.applied("bankAccount1", 3);
+
+        assertEquals("version 3", result.get(1, TimeUnit.SECONDS));
+        assertTrue(completingThread.get(), completingThread.get().startsWith("VersionWaiter"));
+        assertEquals(0, testSubject.getWaiterCount());
+    }
+
+    @Test
+    public void testWaitEndsAfterTimeout() throws Exception {
+        testSubject.shutdown();
+        testSubject = new VersionWaiter(100, 2, 10);
+        long start = System.currentTimeMillis();
+
+        CompletableFuture<String> result = testSubject.await("bankAccount1", 3, () -> 1, () -> "stale entry");
+
+        assertEquals("stale entry", result.get(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(0, testSubject.getWaiterCount());
+    }
+
+    @Test
+    public void testSeveralWaitersOnOneBankAccount() throws Exception {
+        CompletableFuture<Void> version2 = testSubject.await("bankAccount1", 2, () -> 1);
+        CompletableFuture<Void> version4 = testSubject.await("bankAccount1", 4, () -> 1);
+        CompletableFuture<Void> version6 = testSubject.await("bankAccount1", 6, () -> 1);
+        CompletableFuture<Void> otherBankAccount = testSubject.await("bankAccount2", 2, () -> 1);
+        assertEquals(4, testSubject.getWaiterCount());
+
+        testSubject.applied("bankAccount1", 4);
+
+        version2.get(1, TimeUnit.SECONDS);
+        version4.get(1, TimeUnit.SECONDS);
+        assertNotDone(version6);
+        assertNotDone(otherBankAccount);
+        assertEquals(2, testSubject.getWaiterCount());
+
+        testSubject.applied("bankAccount1", 6);
+
+        version6.get(1, TimeUnit.SECONDS);
+        assertNotDone(otherBankAccount);
+        assertEquals(1, testSubject.getWaiterCount());
+    }
+
+    private static void assertNotDone(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            fail("Expected the wait to go on");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+}
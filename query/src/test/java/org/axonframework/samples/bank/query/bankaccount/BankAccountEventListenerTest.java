@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.samples.bank.api.bankaccount.event.BankAccountCreatedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyWithdrawnEvent;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class BankAccountEventListenerTest {
+
+    private static final String BANK_ACCOUNT_ID = "bankAccountId";
+    private static final String OTHER_BANK_ACCOUNT_ID = "otherBankAccountId";
+
+    @Autowired
+    private BankAccountRepository repository;
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private BankAccountEventListener testSubject;
+    private Statistics statistics;
+
+    @Before
+    public void setUp() throws Exception {
+        testSubject = new BankAccountEventListener(repository);
+        statistics = entityManager.getEntityManager().getEntityManagerFactory()
+                                  .unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        inBatch(() -> {
+            testSubject.on(new BankAccountCreatedEvent(BANK_ACCOUNT_ID, 0), 0);
+            testSubject.on(new BankAccountCreatedEvent(OTHER_BANK_ACCOUNT_ID, 0), 0);
+        });
+        statistics.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        statistics.setStatisticsEnabled(false);
+    }
+
+    @Test
+    public void testEventsOfAccountInSameBatchAreSavedOnce() throws Exception {
+        inBatch(() -> {
+            testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 100), 1);
+            testSubject.on(new MoneyWithdrawnEvent(BANK_ACCOUNT_ID, 30), 2);
+            testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 5), 3);
+        });
+
+        assertEquals(1, statistics.getEntityLoadCount());
+        assertEquals(1, statistics.getEntityUpdateCount());
+        BankAccountEntry entry = repository.findOneByAxonBankAccountId(BANK_ACCOUNT_ID);
+        assertEquals(75, entry.getBalance());
+        assertEquals(3, entry.getVersion());
+    }
+
+    /**
+     * Looking up the second account must not write the pending changes of the first one.
+     */
+    @Test
+    public void testInterleavedEventsOfAccountsInSameBatchAreSavedOncePerAccount() throws Exception {
+        inBatch(() -> {
+            testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 100), 1);
+            testSubject.on(new MoneyDepositedEvent(OTHER_BANK_ACCOUNT_ID, 40), 1);
+            testSubject.on(new MoneyWithdrawnEvent(BANK_ACCOUNT_ID, 30), 2);
+            testSubject.on(new MoneyWithdrawnEvent(OTHER_BANK_ACCOUNT_ID, 10), 2);
+        });
+
+        assertEquals(2, statistics.getEntityUpdateCount());
+        BankAccountEntry entry = repository.findOneByAxonBankAccountId(BANK_ACCOUNT_ID);
+        assertEquals(70, entry.getBalance());
+        assertEquals(2, entry.getVersion());
+        BankAccountEntry otherEntry = repository.findOneByAxonBankAccountId(OTHER_BANK_ACCOUNT_ID);
+        assertEquals(30, otherEntry.getBalance());
+        assertEquals(2, otherEntry.getVersion());
+    }
+
+    @Test
+    public void testAccountCreatedAndChangedInSameBatchIsNotReadBack() throws Exception {
+        inBatch(() -> {
+            testSubject.on(new BankAccountCreatedEvent("newBankAccountId", 0), 0);
+            testSubject.on(new MoneyDepositedEvent("newBankAccountId", 20), 1);
+            testSubject.on(new MoneyDepositedEvent("newBankAccountId", 30), 2);
+        });
+
+        assertEquals(0, statistics.getEntityLoadCount());
+        assertEquals(1, statistics.getEntityInsertCount());
+        BankAccountEntry entry = repository.findOneByAxonBankAccountId("newBankAccountId");
+        assertEquals(50, entry.getBalance());
+        assertEquals(2, entry.getVersion());
+    }
+
+    /**
+     * Handles the events the way the tracking processor does, in one unit of work whose changes are written at the
+     * end.
+     */
+    private void inBatch(Runnable events) {
+        DefaultUnitOfWork.startAndGet(null).execute(events);
+        entityManager.flush();
+        entityManager.clear();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measures the lookup of bank account entries by Axon identifier, the way the event listeners look them up, in an
+ * in-memory H2 table of a million rows with and without the unique index on that column. Not a unit test; run the
+ * main method with the test classpath of the query module.
+ */
+public class BankAccountLookupBenchmark {
+
+    private static final int ROWS = 1_000_000;
+    private static final int INSERT_BATCH_SIZE = 10_000;
+    private static final int INDEXED_LOOKUPS = 100_000;
+    /**
+     * Every lookup without the index scans the full table, so far fewer of them are made
+     */
+    private static final int UNINDEXED_LOOKUPS = 200;
+
+    public static void main(String[] args) throws SQLException {
+        run(false, UNINDEXED_LOOKUPS);
+        run(true, INDEXED_LOOKUPS);
+    }
+
+    private static void run(boolean indexed, int lookups) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:lookup" + indexed)) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE bank_account_entry (id BIGINT PRIMARY KEY, "
+                                          + "axon_bank_account_id VARCHAR(255), balance BIGINT, "
+                                          + "overdraft_limit BIGINT, version BIGINT)");
+                if (indexed) {
+                    statement.execute("CREATE UNIQUE INDEX bank_account_entry_axon_id "
+                                              + "ON bank_account_entry (axon_bank_account_id)");
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO bank_account_entry VALUES (?, ?, 0, 0, 0)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setLong(1, i);
+                    insert.setString(2, axonBankAccountId(i));
+                    insert.addBatch();
+                    if (i % INSERT_BATCH_SIZE == INSERT_BATCH_SIZE - 1) {
+                        insert.executeBatch();
+                    }
+                }
+            }
+            try (PreparedStatement select = connection.prepareStatement(
+                    "SELECT * FROM bank_account_entry WHERE axon_bank_account_id = ?")) {
+                Random random = new Random(1);
+                measure(select, random, lookups / 10);
+                long time = measure(select, random, lookups);
+                System.out.printf("%-9s %8.1f us per lookup%n", indexed ? "index" : "no index",
+                                  time / 1000.0 / lookups);
+            }
+        }
+    }
+
+    private static long measure(PreparedStatement select, Random random, int lookups) throws SQLException {
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            select.setString(1, axonBankAccountId(random.nextInt(ROWS)));
+            try (ResultSet resultSet = select.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new IllegalStateException("No bank account entry found");
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String axonBankAccountId(int i) {
+        return new UUID(0, i).toString();
+    }
+}
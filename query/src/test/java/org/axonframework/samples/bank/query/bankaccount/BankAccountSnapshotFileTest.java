@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.axonframework.eventsourcing.eventstore.GlobalSequenceTrackingToken;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BankAccountSnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path path;
+    private BankAccountSnapshotFile testSubject;
+
+    @Before
+    public void setUp() throws Exception {
+        path = temporaryFolder.getRoot().toPath().resolve("bank-accounts.snapshot");
+        testSubject = BankAccountSnapshotFile.open(path);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testSubject.close();
+    }
+
+    @Test
+    public void testRecordsAndTokenSurviveReopening() throws Exception {
+        testSubject.write(Arrays.asList(entry(1, "bankAccount1", 100, 1), entry(2, "bankAccount2", -50, 3)),
+                          new GlobalSequenceTrackingToken(4));
+        testSubject.write(Collections.singletonList(entry(1, "bankAccount1", 75, 2)),
+                          new GlobalSequenceTrackingToken(6));
+
+        reopen();
+
+        assertEquals(new GlobalSequenceTrackingToken(6), testSubject.getToken());
+        assertEquals(2, testSubject.size());
+        assertEntry(entry(1, "bankAccount1", 75, 2), testSubject.get("bankAccount1"));
+        assertEntry(entry(2, "bankAccount2", -50, 3), testSubject.get("bankAccount2"));
+        assertNull(testSubject.get("bankAccount3"));
+        List<BankAccountEntry> entries = testSubject.read(10);
+        assertEquals(2, entries.size());
+        assertEquals("bankAccount1", entries.get(0).getAxonBankAccountId());
+        assertEquals("bankAccount2", entries.get(1).getAxonBankAccountId());
+    }
+
+    @Test
+    public void testFileGrowsPastInitialCapacity() throws Exception {
+        List<BankAccountEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            entries.add(entry(i + 1, "bankAccount" + i, i, i));
+        }
+        testSubject.write(entries.subList(0, 1000), null);
+        testSubject.write(entries.subList(1000, 2500), new GlobalSequenceTrackingToken(2500));
+
+        reopen();
+
+        assertEquals(2500, testSubject.size());
+        assertEquals(new GlobalSequenceTrackingToken(2500), testSubject.getToken());
+        assertEntry(entries.get(0), testSubject.get("bankAccount0"));
+        assertEntry(entries.get(1024), testSubject.get("bankAccount1024"));
+        assertEntry(entries.get(2499), testSubject.get("bankAccount2499"));
+        assertEquals(2500, testSubject.read(3000).size());
+    }
+
+    @Test
+    public void testFileInOtherFormatIsEmptied() throws Exception {
+        testSubject.close();
+        byte[] garbage = new byte[10_000];
+        Arrays.fill(garbage, (byte) 0x7F);
+        Files.write(path, garbage);
+
+        reopen();
+
+        assertEquals(0, testSubject.size());
+        assertNull(testSubject.getToken());
+        testSubject.write(Collections.singletonList(entry(1, "bankAccount1", 10, 1)),
+                          new GlobalSequenceTrackingToken(1));
+        reopen();
+        assertEquals(1, testSubject.size());
+        assertEquals(new GlobalSequenceTrackingToken(1), testSubject.getToken());
+    }
+
+    @Test
+    public void testInterruptedRegenerationLeavesNoToken() throws Exception {
+        testSubject.write(Collections.singletonList(entry(1, "bankAccount1", 10, 1)),
+                          new GlobalSequenceTrackingToken(1));
+        // regenerating writes pages without a token and only names the token at the end; stop halfway
+        testSubject.clear();
+        testSubject.write(Collections.singletonList(entry(1, "bankAccount1", 20, 2)), null);
+
+        reopen();
+
+        assertNull(testSubject.getToken());
+        assertNotEquals(new GlobalSequenceTrackingToken(1), testSubject.getToken());
+    }
+
+    @Test
+    public void testTokenOfOlderBatchIsNotCurrent() throws Exception {
+        testSubject.write(Collections.singletonList(entry(1, "bankAccount1", 10, 1)),
+                          new GlobalSequenceTrackingToken(1));
+
+        reopen();
+
+        assertNotEquals(new GlobalSequenceTrackingToken(2), testSubject.getToken());
+    }
+
+    @Test
+    public void testTooLongIdLeavesNoToken() throws Exception {
+        StringBuilder longId = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longId.append('x');
+        }
+        testSubject.write(Arrays.asList(entry(1, longId.toString(), 10, 1), entry(2, "bankAccount2", 20, 1)),
+                          new GlobalSequenceTrackingToken(2));
+        testSubject.write(Collections.singletonList(entry(2, "bankAccount2", 30, 2)),
+                          new GlobalSequenceTrackingToken(3));
+
+        assertNull(testSubject.getToken());
+        assertNull(testSubject.get(longId.toString()));
+        assertEntry(entry(2, "bankAccount2", 30, 2), testSubject.get("bankAccount2"));
+        reopen();
+        assertNull(testSubject.getToken());
+        testSubject.write(Collections.singletonList(entry(2, "bankAccount2", 40, 3)),
+                          new GlobalSequenceTrackingToken(4));
+        assertNull(testSubject.getToken());
+
+        testSubject.clear();
+        testSubject.write(Collections.singletonList(entry(2, "bankAccount2", 30, 2)),
+                          new GlobalSequenceTrackingToken(3));
+        assertEquals(new GlobalSequenceTrackingToken(3), testSubject.getToken());
+    }
+
+    private void reopen() throws Exception {
+        testSubject.close();
+        testSubject = BankAccountSnapshotFile.open(path);
+    }
+
+    private static BankAccountEntry entry(long id, String bankAccountId, long balance, long version) {
+        BankAccountEntry entry = new BankAccountEntry(bankAccountId, balance, 1000);
+        entry.setId(id);
+        entry.setVersion(version);
+        return entry;
+    }
+
+    private static void assertEntry(BankAccountEntry expected, BankAccountEntry actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getAxonBankAccountId(), actual.getAxonBankAccountId());
+        assertEquals(expected.getBalance(), actual.getBalance());
+        assertEquals(expected.getOverdraftLimit(), actual.getOverdraftLimit());
+        assertEquals(expected.getVersion(), actual.getVersion());
+    }
+}
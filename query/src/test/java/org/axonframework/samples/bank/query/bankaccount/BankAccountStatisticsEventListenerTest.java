@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyDepositedEvent;
+import org.axonframework.samples.bank.api.bankaccount.event.MoneyWithdrawnEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCompletedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferCreatedEvent;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferFailedEvent;
+import org.axonframework.samples.bank.query.banktransfer.BankTransferRepository;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class BankAccountStatisticsEventListenerTest {
+
+    private static final String BANK_ACCOUNT_ID = "bankAccountId";
+    private static final String OTHER_BANK_ACCOUNT_ID = "otherBankAccountId";
+    private static final Instant DAY_1 = Instant.parse("2017-03-01T12:00:00Z");
+    private static final Instant DAY_2 = Instant.parse("2017-03-02T12:00:00Z");
+
+    @Autowired
+    private BankAccountStatisticsRepository repository;
+    @Autowired
+    private OpenBankTransferRepository openBankTransferRepository;
+    @Autowired
+    private BankTransferRepository bankTransferRepository;
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private BankAccountStatisticsEventListener testSubject;
+
+    @Before
+    public void setUp() throws Exception {
+        testSubject = new BankAccountStatisticsEventListener(repository, openBankTransferRepository);
+    }
+
+    @Test
+    public void testEventOfEarlierDayCountsForItsOwnDay() throws Exception {
+        inBatch(() -> testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 100), DAY_2));
+        inBatch(() -> testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 10), DAY_1));
+
+        BankAccountStatisticsEntry day1 = statistics(DAY_1);
+        assertEquals(10, day1.getMoneyIn());
+        assertEquals(10, day1.getClosingBalance());
+        BankAccountStatisticsEntry day2 = statistics(DAY_2);
+        assertEquals(100, day2.getMoneyIn());
+        assertEquals(110, day2.getClosingBalance());
+        assertEquals(110, day2.getMaxBalance());
+    }
+
+    @Test
+    public void testEventsOfEarlierDayInSameBatchMoveLaterBalances() throws Exception {
+        inBatch(() -> {
+            testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 100), DAY_2);
+            testSubject.on(new MoneyDepositedEvent(BANK_ACCOUNT_ID, 10), DAY_1);
+            testSubject.on(new MoneyWithdrawnEvent(BANK_ACCOUNT_ID, 5), DAY_1);
+        });
+
+        BankAccountStatisticsEntry day1 = statistics(DAY_1);
+        assertEquals(10, day1.getMoneyIn());
+        assertEquals(5, day1.getMoneyOut());
+        assertEquals(2, day1.getMovements());
+        assertEquals(5, day1.getClosingBalance());
+        BankAccountStatisticsEntry day2 = statistics(DAY_2);
+        assertEquals(1, day2.getMovements());
+        assertEquals(105, day2.getClosingBalance());
+        assertEquals(105, day2.getMaxBalance());
+    }
+
+    /**
+     * The bank transfer entries are written by the segment of the transfer, which here has not handled any of its
+     * events yet, while the first segment has already handled them all.
+     */
+    @Test
+    public void testCountsBankTransfersWhileTheirSegmentLags() throws Exception {
+        inBatch(() -> {
+            testSubject.on(new BankTransferCreatedEvent("completed", BANK_ACCOUNT_ID, OTHER_BANK_ACCOUNT_ID, 10));
+            testSubject.on(new BankTransferCreatedEvent("failed", BANK_ACCOUNT_ID, OTHER_BANK_ACCOUNT_ID, 20));
+        });
+        inBatch(() -> {
+            testSubject.on(new BankTransferCompletedEvent("completed"), DAY_1);
+            testSubject.on(new BankTransferFailedEvent("failed"), DAY_1);
+        });
+
+        assertEquals(0, bankTransferRepository.count());
+        BankAccountStatisticsEntry source = statistics(BANK_ACCOUNT_ID, DAY_1);
+        assertEquals(1, source.getCompletedBankTransfers());
+        assertEquals(1, source.getFailedBankTransfers());
+        BankAccountStatisticsEntry destination = statistics(OTHER_BANK_ACCOUNT_ID, DAY_1);
+        assertEquals(1, destination.getCompletedBankTransfers());
+        assertEquals(0, destination.getFailedBankTransfers());
+        assertEquals(0, openBankTransferRepository.count());
+    }
+
+    @Test
+    public void testCountsBankTransferCreatedAndCompletedInSameBatch() throws Exception {
+        inBatch(() -> {
+            testSubject.on(new BankTransferCreatedEvent("completed", BANK_ACCOUNT_ID, BANK_ACCOUNT_ID, 10));
+            testSubject.on(new BankTransferCompletedEvent("completed"), DAY_1);
+        });
+
+        assertEquals(1, statistics(BANK_ACCOUNT_ID, DAY_1).getCompletedBankTransfers());
+        assertEquals(0, openBankTransferRepository.count());
+    }
+
+    /**
+     * Handles the events the way the tracking processor does, in one unit of work whose changes are written at the
+     * end.
+     */
+    private void inBatch(Runnable events) {
+        DefaultUnitOfWork.startAndGet(null).execute(events);
+        entityManager.flush();
+        entityManager.clear();
+    }
+
+    private BankAccountStatisticsEntry statistics(Instant day) {
+        return statistics(BANK_ACCOUNT_ID, day);
+    }
+
+    private BankAccountStatisticsEntry statistics(String bankAccountId, Instant day) {
+        return repository.findOneByAxonBankAccountIdAndDay(bankAccountId, day.toString().substring(0, 10));
+    }
+}
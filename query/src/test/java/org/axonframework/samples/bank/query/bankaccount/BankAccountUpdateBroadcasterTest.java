@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.bankaccount;
+
+import org.junit.*;
+import org.mockito.ArgumentCaptor;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class BankAccountUpdateBroadcasterTest {
+
+    private SimpMessageSendingOperations messagingTemplate;
+    private BankAccountUpdateBroadcaster testSubject;
+
+    @Before
+    public void setUp() throws Exception {
+        messagingTemplate = mock(SimpMessageSendingOperations.class);
+        // a window long enough for the scheduled flush not to interfere, the tests flush themselves
+        testSubject = new BankAccountUpdateBroadcaster(messagingTemplate, 60_000, 500);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        testSubject.shutdown();
+    }
+
+    @Test
+    public void testOnlyLatestUpdatePerBankAccountIsSent() throws Exception {
+        testSubject.broadcast(entry("bankAccount1", 1, 10));
+        testSubject.broadcast(entry("bankAccount1", 3, 30));
+        testSubject.broadcast(entry("bankAccount1", 2, 20));
+        testSubject.broadcast(entry("bankAccount2", 1, 5));
+
+        testSubject.flush();
+
+        List<BankAccountEntry> deltas = sentDeltas();
+        assertEquals(2, deltas.size());
+        assertEquals("bankAccount1", deltas.get(0).getAxonBankAccountId());
+        assertEquals(3, deltas.get(0).getVersion());
+        assertEquals(30, deltas.get(0).getBalance());
+        assertEquals("bankAccount2", deltas.get(1).getAxonBankAccountId());
+        verify(messagingTemplate).convertAndSend(eq("/topic/bank-accounts.bankAccount1.deltas"),
+                                                 any(BankAccountEntry.class));
+        verify(messagingTemplate).convertAndSend(eq("/topic/bank-accounts.bankAccount2.deltas"),
+                                                 any(BankAccountEntry.class));
+
+        assertEquals(4, testSubject.getUpdateCount());
+        assertEquals(3, testSubject.getFrameCount());
+        assertEquals(2 * 4 - 3, testSubject.getFramesSaved());
+        assertEquals(0, testSubject.getPendingCount());
+    }
+
+    @Test
+    public void testFullBatchIsSentRightAway() throws Exception {
+        testSubject.shutdown();
+        testSubject = new BankAccountUpdateBroadcaster(messagingTemplate, 60_000, 2);
+
+        testSubject.broadcast(entry("bankAccount1", 1, 10));
+        verifyZeroInteractions(messagingTemplate);
+        testSubject.broadcast(entry("bankAccount2", 1, 10));
+
+        assertEquals(2, sentDeltas().size());
+        assertEquals(3, testSubject.getFrameCount());
+    }
+
+    @Test
+    public void testBatchIsKeptWhenSendingFails() throws Exception {
+        doThrow(new MessagingException("Broker unavailable")).doNothing()
+                .when(messagingTemplate)
+                .convertAndSend(eq(BankAccountUpdateBroadcaster.DELTAS_TOPIC), any(Object.class));
+        testSubject.broadcast(entry("bankAccount1", 1, 10));
+        testSubject.broadcast(entry("bankAccount2", 1, 20));
+
+        testSubject.flush();
+
+        assertEquals(2, testSubject.getPendingCount());
+        assertEquals(0, testSubject.getFrameCount());
+
+        testSubject.broadcast(entry("bankAccount1", 2, 15));
+        testSubject.flush();
+
+        verify(messagingTemplate, times(2)).convertAndSend(eq(BankAccountUpdateBroadcaster.DELTAS_TOPIC),
+                                                           any(Object.class));
+        List<BankAccountEntry> deltas = sentDeltas();
+        assertEquals(2, deltas.size());
+        assertEquals(2, deltas.get(0).getVersion());
+        assertEquals(15, deltas.get(0).getBalance());
+        assertEquals(3, testSubject.getFrameCount());
+        assertEquals(0, testSubject.getPendingCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<BankAccountEntry> sentDeltas() {
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        verify(messagingTemplate, atLeastOnce()).convertAndSend(eq(BankAccountUpdateBroadcaster.DELTAS_TOPIC),
+                                                                captor.capture());
+        return (List<BankAccountEntry>) captor.getValue();
+    }
+
+    private static BankAccountEntry entry(String bankAccountId, long version, long balance) {
+        BankAccountEntry entry = new BankAccountEntry(bankAccountId, balance, 0);
+        entry.setVersion(version);
+        return entry;
+    }
+}
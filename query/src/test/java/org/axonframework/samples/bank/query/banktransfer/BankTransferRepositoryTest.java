@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.query.banktransfer;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+@RunWith(SpringRunner.class)
+@DataJpaTest
+public class BankTransferRepositoryTest {
+
+    private static final String BANK_ACCOUNT_ID = "bankAccountId";
+
+    @Autowired
+    private BankTransferRepository repository;
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private int transferCount;
+
+    @Test
+    public void testTransferToSameBankAccountIsListedOnce() throws Exception {
+        BankTransferEntry outgoing = transfer(BANK_ACCOUNT_ID, "other1");
+        BankTransferEntry toItself = transfer(BANK_ACCOUNT_ID, BANK_ACCOUNT_ID);
+        BankTransferEntry incoming = transfer("other2", BANK_ACCOUNT_ID);
+        transfer("other1", "other2");
+
+        assertEquals(ids(outgoing, toItself, incoming), ids(page(0, 10)));
+    }
+
+    @Test
+    public void testTransferToSameBankAccountOnPageBoundaryIsNotRepeated() throws Exception {
+        BankTransferEntry first = transfer(BANK_ACCOUNT_ID, "other1");
+        BankTransferEntry second = transfer("other2", BANK_ACCOUNT_ID);
+        BankTransferEntry toItself = transfer(BANK_ACCOUNT_ID, BANK_ACCOUNT_ID);
+        BankTransferEntry fourth = transfer(BANK_ACCOUNT_ID, "other3");
+        BankTransferEntry fifth = transfer("other4", BANK_ACCOUNT_ID);
+
+        List<BankTransferEntry> firstPage = page(0, 3);
+        assertEquals(ids(first, second, toItself), ids(firstPage));
+        List<BankTransferEntry> secondPage = page(lastId(firstPage), 3);
+        assertEquals(ids(fourth, fifth), ids(secondPage));
+
+        List<BankTransferEntry> pageAfterSecond = page(second.getId(), 1);
+        assertEquals(ids(toItself), ids(pageAfterSecond));
+        assertEquals(ids(fourth), ids(page(lastId(pageAfterSecond), 1)));
+    }
+
+    @Test
+    public void testPagesContinueFromLastId() throws Exception {
+        List<BankTransferEntry> expected = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            switch (i % 4) {
+                case 0:
+                    expected.add(transfer(BANK_ACCOUNT_ID, "other" + i));
+                    break;
+                case 1:
+                    expected.add(transfer("other" + i, BANK_ACCOUNT_ID));
+                    expected.add(transfer("other" + i, BANK_ACCOUNT_ID));
+                    break;
+                case 2:
+                    expected.add(transfer(BANK_ACCOUNT_ID, BANK_ACCOUNT_ID));
+                    break;
+                default:
+                    transfer("other" + i, "other" + (i + 1));
+            }
+        }
+
+        List<BankTransferEntry> listed = new ArrayList<>();
+        List<BankTransferEntry> page = page(0, 4);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 4);
+            listed.addAll(page);
+            page = page(lastId(page), 4);
+        }
+
+        assertEquals(ids(expected.toArray(new BankTransferEntry[expected.size()])), ids(listed));
+    }
+
+    private BankTransferEntry transfer(String sourceBankAccountId, String destinationBankAccountId) {
+        return entityManager.persistAndFlush(new BankTransferEntry("transfer" + transferCount++,
+                                                                   sourceBankAccountId,
+                                                                   destinationBankAccountId,
+                                                                   10));
+    }
+
+    private List<BankTransferEntry> page(long afterId, int pageSize) {
+        return repository.findTransferHistory(BANK_ACCOUNT_ID, afterId, new PageRequest(0, pageSize));
+    }
+
+    private static long lastId(List<BankTransferEntry> page) {
+        return page.get(page.size() - 1).getId();
+    }
+
+    private static List<Long> ids(BankTransferEntry... transfers) {
+        List<Long> ids = new ArrayList<>();
+        for (BankTransferEntry transfer : transfers) {
+            ids.add(transfer.getId());
+        }
+        return ids;
+    }
+
+    private static List<Long> ids(List<BankTransferEntry> transfers) {
+        return transfers.stream().map(BankTransferEntry::getId).collect(Collectors.toList());
+    }
+}
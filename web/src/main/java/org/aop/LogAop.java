@@ -1,11 +1,13 @@
 package org.aop;
 
+import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.*;
 import org.aspectj.lang.reflect.MethodSignature;
 import org.springframework.stereotype.Service;
 
 
+@Slf4j
 @Aspect
 @Service
 public class LogAop {
@@ -18,11 +20,11 @@ public class LogAop {
     public Object around(ProceedingJoinPoint pj) {
         MethodSignature methodSignature = (MethodSignature) pj.getSignature();
         String name = pj.getTarget().getClass().getSimpleName();
-        System.err.println("=" + name + "." + methodSignature.getMethod().getName() + "=>");
+        log.debug("={}.{}=>", name, methodSignature.getMethod().getName());
         try {
             return pj.proceed();
         } catch (Throwable e) {
-            e.printStackTrace();
+            log.error("{}.{} failed", name, methodSignature.getMethod().getName(), e);
         }
         return null;
     }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.config;
+
+import org.axonframework.samples.bank.command.MeteredCache;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountUpdateBroadcaster;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountViewCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes the counters of the aggregate and saga caches, the bank account cache of the query model and the update
+ * broadcaster on the actuator's "/metrics" endpoint, under "axonbank.".
+ */
+@Component
+public class AxonBankMetrics implements PublicMetrics {
+
+    private final Map<String, MeteredCache> meteredCaches;
+    private final BankAccountViewCache bankAccountViewCache;
+    private final BankAccountUpdateBroadcaster bankAccountUpdateBroadcaster;
+
+    /**
+     * The metered caches are keyed by bean name, e.g. "bankAccountCache".
+     */
+    @Autowired
+    public AxonBankMetrics(Map<String, MeteredCache> meteredCaches, BankAccountViewCache bankAccountViewCache,
+                           BankAccountUpdateBroadcaster bankAccountUpdateBroadcaster) {
+        this.meteredCaches = meteredCaches;
+        this.bankAccountViewCache = bankAccountViewCache;
+        this.bankAccountUpdateBroadcaster = bankAccountUpdateBroadcaster;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        meteredCaches.forEach((name, cache) -> {
+            String prefix = "axonbank.cache." + name + ".";
+            metrics.add(new Metric<>(prefix + "hits", cache.getHitCount()));
+            metrics.add(new Metric<>(prefix + "misses", cache.getMissCount()));
+            metrics.add(new Metric<>(prefix + "removals", cache.getRemovalCount()));
+            metrics.add(new Metric<>(prefix + "hit-ratio", cache.getHitRatio()));
+        });
+        metrics.add(new Metric<>("axonbank.query.cache.hits", bankAccountViewCache.getHitCount()));
+        metrics.add(new Metric<>("axonbank.query.cache.misses", bankAccountViewCache.getMissCount()));
+        metrics.add(new Metric<>("axonbank.query.cache.evictions", bankAccountViewCache.getEvictionCount()));
+        metrics.add(new Metric<>("axonbank.query.cache.hit-ratio", bankAccountViewCache.getHitRatio()));
+        metrics.add(new Metric<>("axonbank.query.cache.size", bankAccountViewCache.size()));
+        metrics.add(new Metric<>("axonbank.broadcast.updates", bankAccountUpdateBroadcaster.getUpdateCount()));
+        metrics.add(new Metric<>("axonbank.broadcast.frames", bankAccountUpdateBroadcaster.getFrameCount()));
+        metrics.add(new Metric<>("axonbank.broadcast.frames-saved", bankAccountUpdateBroadcaster.getFramesSaved()));
+        metrics.add(new Metric<>("axonbank.broadcast.pending", bankAccountUpdateBroadcaster.getPendingCount()));
+        return metrics;
+    }
+}
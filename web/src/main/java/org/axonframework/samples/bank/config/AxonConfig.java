@@ -17,18 +17,81 @@
 package org.axonframework.samples.bank.config;
 
 import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.commandhandling.model.Repository;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.common.caching.Cache;
+import org.axonframework.common.caching.NoCache;
+import org.axonframework.common.caching.WeakReferenceCache;
+import org.axonframework.common.jpa.EntityManagerProvider;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.config.EventHandlingConfiguration;
 import org.axonframework.config.SagaConfiguration;
 import org.axonframework.eventhandling.EventBus;
+import org.axonframework.eventhandling.EventHandlerInvoker;
+import org.axonframework.eventhandling.EventProcessor;
+import org.axonframework.eventhandling.ListenerInvocationErrorHandler;
+import org.axonframework.eventhandling.LoggingErrorHandler;
+import org.axonframework.eventhandling.PropagatingErrorHandler;
+import org.axonframework.eventhandling.SimpleEventHandlerInvoker;
+import org.axonframework.eventhandling.TrackingEventProcessor;
+import org.axonframework.eventhandling.saga.repository.SagaStore;
+import org.axonframework.eventhandling.saga.repository.jpa.JpaSagaStore;
+import org.axonframework.eventhandling.scheduling.EventScheduler;
+import org.axonframework.eventhandling.scheduling.java.SimpleEventScheduler;
+import org.axonframework.eventhandling.tokenstore.TokenStore;
+import org.axonframework.eventsourcing.AggregateFactory;
+import org.axonframework.eventsourcing.CachingEventSourcingRepository;
+import org.axonframework.eventsourcing.EventCountSnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.NoSnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.SnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.Snapshotter;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.EventStore;
+import org.axonframework.messaging.StreamableMessageSource;
 import org.axonframework.messaging.interceptors.BeanValidationInterceptor;
+import org.axonframework.messaging.unitofwork.RollbackConfigurationType;
+import org.axonframework.samples.bank.command.AggregateVersionRecorder;
 import org.axonframework.samples.bank.command.BankAccount;
 import org.axonframework.samples.bank.command.BankAccountCommandHandler;
+import org.axonframework.samples.bank.command.BankAccountIndex;
+import org.axonframework.samples.bank.command.BankTransfer;
 import org.axonframework.samples.bank.command.BankTransferManagementSaga;
+import org.axonframework.samples.bank.command.BulkBankTransfer;
+import org.axonframework.samples.bank.command.BulkBankTransferManagementSaga;
+import org.axonframework.samples.bank.command.DeduplicatingDispatchInterceptor;
+import org.axonframework.samples.bank.command.LoadTimeSnapshotTriggerDefinition;
+import org.axonframework.samples.bank.command.LocalBankTransferCommandHandler;
+import org.axonframework.samples.bank.command.LruCache;
+import org.axonframework.samples.bank.command.MeteredCache;
+import org.axonframework.samples.bank.command.TransactionalCachingSagaStore;
+import org.axonframework.samples.bank.query.SegmentedTrackingEventProcessor;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountStatisticsEventListener;
+import org.axonframework.serialization.Serializer;
 import org.axonframework.spring.config.AxonConfiguration;
+import org.axonframework.spring.eventsourcing.SpringAggregateSnapshotterFactoryBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 @Configuration
 public class AxonConfig {
 
@@ -38,9 +101,262 @@ public class AxonConfig {
     @Autowired
     private EventBus eventBus;
 
+    /**
+     * Snapshot trigger for bank accounts: none, event-count or load-time
+     */
+    @Value("${axonbank.snapshot.bank-account.trigger:none}")
+    private String bankAccountSnapshotTrigger;
+
+    @Value("${axonbank.snapshot.bank-account.event-count-threshold:250}")
+    private int bankAccountSnapshotEventCountThreshold;
+
+    @Value("${axonbank.snapshot.bank-account.load-time-threshold-ms:50}")
+    private long bankAccountSnapshotLoadTimeThreshold;
+
+    /**
+     * Aggregate cache mode: none, lru or weak
+     */
+    @Value("${axonbank.aggregate-cache.mode:none}")
+    private String aggregateCacheMode;
+
+    @Value("${axonbank.aggregate-cache.max-size:10000}")
+    private int aggregateCacheMaxSize;
+
+    @Value("${axonbank.saga-cache.max-size:10000}")
+    private int sagaCacheMaxSize;
+
+    @Value("${axonbank.idempotency.max-size:100000}")
+    private int idempotencyMaxSize;
+
+    @Value("${axonbank.idempotency.window-seconds:600}")
+    private long idempotencyWindowSeconds;
+
+    /**
+     * File every idempotency key is written to when it is taken and loaded from on startup, none when empty
+     */
+    @Value("${axonbank.idempotency.file:}")
+    private String idempotencyFile;
+
+    @Value("${axonbank.bank-transfer.timeout-seconds:300}")
+    private long bankTransferTimeoutSeconds;
+
+    /**
+     * Interval between sweeps for bank transfers whose timeout got lost, 0 disables the sweeper
+     */
+    @Value("${axonbank.bank-transfer.sweeper.interval-seconds:60}")
+    private long sweeperIntervalSeconds;
+
+    @Value("${axonbank.bank-transfer.sweeper.batch-size:100}")
+    private int sweeperBatchSize;
+
+    /**
+     * Processor for the query model: subscribing or tracking
+     */
+    @Value("${axonbank.query.processor:subscribing}")
+    private String queryProcessor;
+
+    @Value("${axonbank.query.batch-size:100}")
+    private int queryBatchSize;
+
+    /**
+     * Segments of the tracking processor for the query model, shared by the nodes
+     */
+    @Value("${axonbank.query.segments:1}")
+    private int querySegments;
+
+    @Value("${axonbank.query.balance-interval-ms:10000}")
+    private long queryBalanceIntervalMillis;
+
+    @Value("${axon.distributed.enabled:false}")
+    private boolean distributed;
+
+    @Autowired(required = false)
+    private DiscoveryClient discoveryClient;
+
+    @Value("${axonbank.account-index.expected-accounts:100000}")
+    private int accountIndexExpectedAccounts;
+
+    @Value("${axonbank.account-index.false-positive-rate:0.01}")
+    private double accountIndexFalsePositiveRate;
+
+    @Bean
+    public BankAccountCommandHandler bankAccountCommandHandler(Optional<BankAccountIndex> bankAccountIndex) {
+        return new BankAccountCommandHandler(axonConfiguration.repository(BankAccount.class),
+                                             eventBus,
+                                             bankAccountIndex.orElse(null));
+    }
+
+    /**
+     * Only correct when both bank accounts of a transfer are handled by this node, so it is switched off for the
+     * distributed and command lanes setups.
+     */
+    @ConditionalOnProperty("axonbank.bank-transfer.fast-path")
+    @Bean
+    public LocalBankTransferCommandHandler localBankTransferCommandHandler() {
+        return new LocalBankTransferCommandHandler(axonConfiguration.repository(BankAccount.class),
+                                                   axonConfiguration.repository(BankTransfer.class),
+                                                   eventBus);
+    }
+
+    /**
+     * Only correct when this node sees every BankAccountCreatedEvent, so it is switched off for the distributed setup.
+     */
+    @ConditionalOnProperty(value = "axonbank.account-index.enabled", matchIfMissing = true)
+    @Bean
+    public BankAccountIndex bankAccountIndex(EventStorageEngine eventStorageEngine) {
+        BankAccountIndex bankAccountIndex = new BankAccountIndex(accountIndexExpectedAccounts,
+                                                                 accountIndexFalsePositiveRate);
+        bankAccountIndex.rebuild(eventStorageEngine);
+        return bankAccountIndex;
+    }
+
+    @Bean(destroyMethod = "close")
+    public DeduplicatingDispatchInterceptor deduplicatingDispatchInterceptor() throws IOException {
+        DeduplicatingDispatchInterceptor interceptor =
+                new DeduplicatingDispatchInterceptor(idempotencyMaxSize, Duration.ofSeconds(idempotencyWindowSeconds));
+        if (!idempotencyFile.isEmpty()) {
+            interceptor.open(Paths.get(idempotencyFile));
+        }
+        return interceptor;
+    }
+
+    /**
+     * Sees the events of every command handled on this node, whichever command bus handles it.
+     */
+    @Bean
+    public AggregateVersionRecorder aggregateVersionRecorder() {
+        AggregateVersionRecorder recorder = new AggregateVersionRecorder();
+        eventBus.registerDispatchInterceptor(recorder);
+        return recorder;
+    }
+
+    @Bean
+    public SpringAggregateSnapshotterFactoryBean snapshotter() {
+        return new SpringAggregateSnapshotterFactoryBean();
+    }
+
+    @Bean
+    public AggregateFactory<BankAccount> bankAccountAggregateFactory() {
+        return new GenericAggregateFactory<>(BankAccount.class);
+    }
+
+    @Bean
+    public AggregateFactory<BankTransfer> bankTransferAggregateFactory() {
+        return new GenericAggregateFactory<>(BankTransfer.class);
+    }
+
+    @Bean
+    public AggregateFactory<BulkBankTransfer> bulkBankTransferAggregateFactory() {
+        return new GenericAggregateFactory<>(BulkBankTransfer.class);
+    }
+
+    @Bean
+    public MeteredCache bankAccountCache() {
+        return new MeteredCache(aggregateCache());
+    }
+
+    @Bean
+    public MeteredCache bankTransferCache() {
+        return new MeteredCache(aggregateCache());
+    }
+
+    @Bean
+    public SnapshotTriggerDefinition bankAccountSnapshotTriggerDefinition(Snapshotter snapshotter) {
+        switch (bankAccountSnapshotTrigger) {
+            case "none":
+                return NoSnapshotTriggerDefinition.INSTANCE;
+            case "event-count":
+                return new EventCountSnapshotTriggerDefinition(snapshotter, bankAccountSnapshotEventCountThreshold);
+            case "load-time":
+                return new LoadTimeSnapshotTriggerDefinition(snapshotter,
+                                                             bankAccountSnapshotLoadTimeThreshold,
+                                                             TimeUnit.MILLISECONDS);
+            default:
+                throw new IllegalArgumentException("Unknown snapshot trigger: " + bankAccountSnapshotTrigger);
+        }
+    }
+
+    @Bean
+    public Repository<BankAccount> bankAccountEventSourcingRepository(EventStore eventStore,
+                                                                      @Qualifier("bankAccountSnapshotTriggerDefinition")
+                                                                      SnapshotTriggerDefinition snapshotTriggerDefinition) {
+        return eventSourcingRepository(bankAccountAggregateFactory(),
+                                       eventStore,
+                                       bankAccountCache(),
+                                       snapshotTriggerDefinition);
+    }
+
+    @Bean
+    public Repository<BankTransfer> bankTransferEventSourcingRepository(EventStore eventStore) {
+        return eventSourcingRepository(bankTransferAggregateFactory(),
+                                       eventStore,
+                                       bankTransferCache(),
+                                       NoSnapshotTriggerDefinition.INSTANCE);
+    }
+
+    /**
+     * Bulk transfers are only touched a few times each, so they are not cached.
+     */
     @Bean
-    public BankAccountCommandHandler bankAccountCommandHandler() {
-        return new BankAccountCommandHandler(axonConfiguration.repository(BankAccount.class), eventBus);
+    public Repository<BulkBankTransfer> bulkBankTransferEventSourcingRepository(EventStore eventStore) {
+        return new EventSourcingRepository<>(bulkBankTransferAggregateFactory(),
+                                             eventStore,
+                                             NoSnapshotTriggerDefinition.INSTANCE);
+    }
+
+    @ConditionalOnProperty("axonbank.saga-cache.enabled")
+    @Bean
+    public MeteredCache sagaAssociationsCache() {
+        return new MeteredCache(new LruCache(sagaCacheMaxSize));
+    }
+
+    @ConditionalOnProperty("axonbank.saga-cache.enabled")
+    @Bean
+    public MeteredCache sagaCache() {
+        return new MeteredCache(new LruCache(sagaCacheMaxSize));
+    }
+
+    /**
+     * Wraps the JPA saga store, so events for a running transfer find and load their saga without a query. The hits
+     * of the two caches above are the lookups and loads that did not reach the database. Only correct while this node
+     * is the one handling the sagas, so it is switched off for the distributed setup.
+     */
+    @ConditionalOnProperty("axonbank.saga-cache.enabled")
+    @Bean
+    public SagaStore<Object> sagaStore(Serializer serializer, EntityManagerProvider entityManagerProvider) {
+        return new TransactionalCachingSagaStore<>(new JpaSagaStore(serializer, entityManagerProvider),
+                                                   sagaAssociationsCache(),
+                                                   sagaCache());
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService schedulerExecutorService() {
+        return Executors.newSingleThreadScheduledExecutor(new AxonThreadFactory("Scheduler"));
+    }
+
+    /**
+     * Schedules are kept in memory only; the sweeper below takes care of timeouts lost on a restart.
+     */
+    @Bean
+    public EventScheduler eventScheduler(TransactionManager transactionManager) {
+        return new SimpleEventScheduler(schedulerExecutorService(), eventBus, transactionManager);
+    }
+
+    @Bean
+    public StuckBankTransferSweeper stuckBankTransferSweeper(EntityManagerProvider entityManagerProvider,
+                                                             TransactionManager transactionManager) {
+        StuckBankTransferSweeper sweeper = new StuckBankTransferSweeper(entityManagerProvider,
+                                                                        transactionManager,
+                                                                        eventBus,
+                                                                        Duration.ofSeconds(bankTransferTimeoutSeconds),
+                                                                        sweeperBatchSize);
+        if (sweeperIntervalSeconds > 0) {
+            schedulerExecutorService().scheduleWithFixedDelay(sweeper,
+                                                              sweeperIntervalSeconds,
+                                                              sweeperIntervalSeconds,
+                                                              TimeUnit.SECONDS);
+        }
+        return sweeper;
     }
 
     @Bean
@@ -48,8 +364,117 @@ public class AxonConfig {
         return SagaConfiguration.trackingSagaManager(BankTransferManagementSaga.class);
     }
 
-    @Autowired
-    public void configure(@Qualifier("localSegment") SimpleCommandBus simpleCommandBus) {
+    @Bean
+    public SagaConfiguration bulkBankTransferManagementSagaConfiguration() {
+        return SagaConfiguration.trackingSagaManager(BulkBankTransferManagementSaga.class);
+    }
+
+    private Cache aggregateCache() {
+        switch (aggregateCacheMode) {
+            case "none":
+                return NoCache.INSTANCE;
+            case "lru":
+                return new LruCache(aggregateCacheMaxSize);
+            case "weak":
+                return new WeakReferenceCache();
+            default:
+                throw new IllegalArgumentException("Unknown aggregate cache mode: " + aggregateCacheMode);
+        }
+    }
+
+    /**
+     * Cached aggregates are evicted whenever the unit of work they were loaded in rolls back, which includes a
+     * concurrency conflict on appending their events.
+     */
+    private <T> Repository<T> eventSourcingRepository(AggregateFactory<T> aggregateFactory, EventStore eventStore,
+                                                      Cache cache,
+                                                      SnapshotTriggerDefinition snapshotTriggerDefinition) {
+        if ("none".equals(aggregateCacheMode)) {
+            return new EventSourcingRepository<>(aggregateFactory, eventStore, snapshotTriggerDefinition);
+        }
+        return new CachingEventSourcingRepository<>(aggregateFactory, eventStore, cache, snapshotTriggerDefinition);
+    }
+
+    /**
+     * The local segment is a SimpleCommandBus, or the ShardedCommandBus extending it with the command-lanes profile.
+     */
+    @Autowired(required = false)
+    public void configure(@Qualifier("localSegment") SimpleCommandBus simpleCommandBus,
+                          DeduplicatingDispatchInterceptor deduplicatingDispatchInterceptor) {
         simpleCommandBus.registerDispatchInterceptor(new BeanValidationInterceptor<>());
+        simpleCommandBus.registerDispatchInterceptor(deduplicatingDispatchInterceptor);
+    }
+
+    /**
+     * With the tracking processor, the query model is updated in batches of events read from the event store, each
+     * batch in one transaction. After a backlog the query model catches up a batch at a time instead of an event at a
+     * time. The events are split over {@code querySegments} segments by aggregate, and the segments are shared by the
+     * nodes.
+     */
+    @Autowired
+    public void configure(EventHandlingConfiguration eventHandlingConfiguration) {
+        switch (queryProcessor) {
+            case "subscribing":
+                break;
+            case "tracking":
+                eventHandlingConfiguration.registerEventProcessor("query", this::queryTrackingProcessor);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query processor: " + queryProcessor);
+        }
+    }
+
+    /**
+     * The statistics of a bank account combine its own events with those of its bank transfers, so they are kept by
+     * the first segment alone.
+     */
+    private EventProcessor queryTrackingProcessor(org.axonframework.config.Configuration configuration, String name,
+                                                  List<?> eventHandlers) {
+        Map<Boolean, List<Object>> handlersBySegmenting = new ArrayList<Object>(eventHandlers).stream().collect(
+                Collectors.partitioningBy(handler -> !(handler instanceof BankAccountStatisticsEventListener)));
+        return new SegmentedTrackingEventProcessor(
+                name,
+                querySegments,
+                queryEventHandlerInvoker(configuration, handlersBySegmenting.get(true)),
+                queryEventHandlerInvoker(configuration, handlersBySegmenting.get(false)),
+                (tokenName, eventHandlerInvoker) -> queryTrackingSegment(configuration, tokenName, eventHandlerInvoker),
+                configuration.getComponent(TokenStore.class),
+                configuration.getComponent(TransactionManager.class),
+                this::queryNodeCount,
+                queryBalanceIntervalMillis);
+    }
+
+    private EventHandlerInvoker queryEventHandlerInvoker(org.axonframework.config.Configuration configuration,
+                                                         List<?> eventHandlers) {
+        return new SimpleEventHandlerInvoker(
+                eventHandlers,
+                configuration.parameterResolverFactory(),
+                configuration.getComponent(ListenerInvocationErrorHandler.class, LoggingErrorHandler::new));
+    }
+
+    @SuppressWarnings("unchecked")
+    private TrackingEventProcessor queryTrackingSegment(org.axonframework.config.Configuration configuration,
+                                                        String name, EventHandlerInvoker eventHandlerInvoker) {
+        return new TrackingEventProcessor(name,
+                                          eventHandlerInvoker,
+                                          RollbackConfigurationType.ANY_THROWABLE,
+                                          PropagatingErrorHandler.INSTANCE,
+                                          (StreamableMessageSource) configuration.eventBus(),
+                                          configuration.getComponent(TokenStore.class),
+                                          configuration.getComponent(TransactionManager.class),
+                                          queryBatchSize,
+                                          configuration.messageMonitor(EventProcessor.class, name));
+    }
+
+    /**
+     * The nodes registered under the name of this node, or just this node when it is not distributed.
+     */
+    private int queryNodeCount() {
+        if (!distributed || discoveryClient == null) {
+            return 1;
+        }
+        ServiceInstance localServiceInstance = discoveryClient.getLocalServiceInstance();
+        return localServiceInstance == null
+                ? 1 : discoveryClient.getInstances(localServiceInstance.getServiceId()).size();
     }
 }
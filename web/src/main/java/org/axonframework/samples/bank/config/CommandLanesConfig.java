@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.config;
+
+import org.axonframework.commandhandling.CommandBus;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.messaging.interceptors.CorrelationDataInterceptor;
+import org.axonframework.samples.bank.command.ShardedCommandBus;
+import org.axonframework.spring.config.AxonConfiguration;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Hands commands off from the dispatching thread to a fixed number of single threaded lanes, one lane per target
+ * aggregate. Enable with the "command-lanes" profile.
+ */
+@Profile("command-lanes")
+@Configuration
+public class CommandLanesConfig {
+
+    /**
+     * Number of lanes, defaults to the number of available processors
+     */
+    @Value("${axonbank.command-lanes.count:0}")
+    private int laneCount;
+
+    @Qualifier("localSegment")
+    @Bean(destroyMethod = "shutdown")
+    public ShardedCommandBus commandBus(TransactionManager transactionManager, AxonConfiguration axonConfiguration) {
+        int lanes = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        ShardedCommandBus commandBus = new ShardedCommandBus(lanes,
+                                                             transactionManager,
+                                                             axonConfiguration.messageMonitor(CommandBus.class,
+                                                                                              "commandBus"));
+        commandBus.registerHandlerInterceptor(new CorrelationDataInterceptor<>(axonConfiguration
+                                                                                       .correlationDataProviders()));
+        return commandBus;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.config;
+
+import org.axonframework.samples.bank.command.CompactBinarySerializer;
+import org.axonframework.serialization.Serializer;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Kept apart from {@link AxonConfig}, as the event store needs the serializer before the Axon beans injected there
+ * exist.
+ */
+@Configuration
+public class SerializerConfig {
+
+    /**
+     * Serializer for events, snapshots, sagas and tokens: compact or xstream
+     */
+    @Value("${axonbank.serializer:compact}")
+    private String serializerFormat;
+
+    /**
+     * The compact serializer falls back to XStream for anything it does not handle itself, and for reading XML written
+     * before it was enabled.
+     */
+    @Bean
+    public Serializer serializer() {
+        switch (serializerFormat) {
+            case "xstream":
+                return new XStreamSerializer();
+            case "compact":
+                return new CompactBinarySerializer(new XStreamSerializer());
+            default:
+                throw new IllegalArgumentException("Unknown serializer: " + serializerFormat);
+        }
+    }
+}
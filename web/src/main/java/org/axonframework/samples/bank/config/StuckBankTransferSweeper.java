@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.jpa.EntityManagerProvider;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.eventhandling.EventBus;
+import org.axonframework.samples.bank.api.banktransfer.event.BankTransferTimedOutEvent;
+import org.axonframework.samples.bank.command.BankTransferManagementSaga;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.axonframework.eventhandling.GenericEventMessage.asEventMessage;
+
+/**
+ * Times out bank transfers whose saga is still running long after its timeout, which happens when the scheduled
+ * timeout got lost, for instance because the node was restarted, or when the saga was started before timeouts existed.
+ * The saga handles the {@link BankTransferTimedOutEvent} like any other, so it cancels the debit or credit it waits for
+ * and ends once that is confirmed, and its rows are removed from the saga store.
+ * <p>
+ * Running sagas are read from the association value table in batches, oldest first, and their age is taken from the
+ * first event of the bank transfer. Publishing the event twice is harmless, as the second one sends the same
+ * cancellation again or finds no saga.
+ */
+@Slf4j
+public class StuckBankTransferSweeper implements Runnable {
+
+    private final EntityManagerProvider entityManagerProvider;
+    private final TransactionManager transactionManager;
+    private final EventBus eventBus;
+    private final Duration timeout;
+    private final int batchSize;
+
+    public StuckBankTransferSweeper(EntityManagerProvider entityManagerProvider, TransactionManager transactionManager,
+                                    EventBus eventBus, Duration timeout, int batchSize) {
+        this.entityManagerProvider = entityManagerProvider;
+        this.transactionManager = transactionManager;
+        this.eventBus = eventBus;
+        this.timeout = timeout;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            log.warn("Sweeping stuck bank transfers failed, retrying on the next run", e);
+        }
+    }
+
+    /**
+     * Publishes a {@link BankTransferTimedOutEvent} for every running bank transfer saga started before the timeout.
+     *
+     * @return the number of bank transfers timed out
+     */
+    public int sweep() {
+        Instant startedBefore = Instant.now().minus(timeout);
+        int timedOut = 0;
+        long lastId = Long.MIN_VALUE;
+        List<Object[]> batch;
+        do {
+            long afterId = lastId;
+            batch = transactionManager.fetchInTransaction(() -> findRunningBankTransfers(afterId));
+            if (batch.isEmpty()) {
+                break;
+            }
+            lastId = (Long) batch.get(batch.size() - 1)[0];
+            List<String> bankTransferIds = batch.stream().map(row -> (String) row[1]).collect(Collectors.toList());
+            List<String> stuckBankTransferIds = transactionManager.fetchInTransaction(
+                    () -> findStartedBefore(bankTransferIds, startedBefore));
+            for (String bankTransferId : stuckBankTransferIds) {
+                transactionManager.executeInTransaction(
+                        () -> eventBus.publish(asEventMessage(new BankTransferTimedOutEvent(bankTransferId))));
+                timedOut++;
+            }
+        } while (batch.size() == batchSize);
+        return timedOut;
+    }
+
+    private List<Object[]> findRunningBankTransfers(long afterId) {
+        return entityManagerProvider.getEntityManager()
+                                    .createQuery("SELECT a.id, a.associationValue FROM AssociationValueEntry a "
+                                                         + "WHERE a.sagaType = :sagaType "
+                                                         + "AND a.associationKey = 'bankTransferId' "
+                                                         + "AND a.id > :afterId ORDER BY a.id", Object[].class)
+                                    .setParameter("sagaType", BankTransferManagementSaga.class.getName())
+                                    .setParameter("afterId", afterId)
+                                    .setMaxResults(batchSize)
+                                    .getResultList();
+    }
+
+    private List<String> findStartedBefore(List<String> bankTransferIds, Instant startedBefore) {
+        List<Object[]> firstEvents = entityManagerProvider
+                .getEntityManager()
+                .createQuery("SELECT e.aggregateIdentifier, e.timeStamp FROM DomainEventEntry e "
+                                     + "WHERE e.aggregateIdentifier IN :bankTransferIds AND e.sequenceNumber = 0",
+                             Object[].class)
+                .setParameter("bankTransferIds", bankTransferIds)
+                .getResultList();
+        return firstEvents.stream()
+                          .filter(row -> Instant.parse((String) row[1]).isBefore(startedBefore))
+                          .map(row -> (String) row[0])
+                          .collect(Collectors.toList());
+    }
+}
@@ -35,10 +35,10 @@ public class WebSocketConfig extends AbstractWebSocketMessageBrokerConfigurer {
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         if (ArrayUtils.contains(environment.getActiveProfiles(), "distributed-command-bus")) {
-            config.enableStompBrokerRelay("/topic")
+            config.enableStompBrokerRelay("/topic", "/queue")
                   .setRelayHost("rabbitmq");
         } else {
-            config.enableSimpleBroker("/topic");
+            config.enableSimpleBroker("/topic", "/queue");
         }
         config.setApplicationDestinationPrefixes("/app");
     }
@@ -16,64 +16,134 @@
 
 package org.axonframework.samples.bank.web;
 
-import org.axonframework.commandhandling.gateway.CommandGateway;
 import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
 import org.axonframework.samples.bank.api.bankaccount.command.WithdrawMoneyCommand;
+import org.axonframework.samples.bank.query.VersionWaiter;
 import org.axonframework.samples.bank.query.bankaccount.BankAccountEntry;
-import org.axonframework.samples.bank.query.bankaccount.BankAccountRepository;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountStatisticsEntry;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountStatisticsRepository;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountViewCache;
 import org.axonframework.samples.bank.web.dto.BankAccountDto;
 import org.axonframework.samples.bank.web.dto.DepositDto;
+import org.axonframework.samples.bank.web.dto.PageDto;
 import org.axonframework.samples.bank.web.dto.WithdrawalDto;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.annotation.SubscribeMapping;
 import org.springframework.stereotype.Controller;
 
-import java.util.UUID;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Controller
 @MessageMapping("/bank-accounts")
 public class BankAccountController {
 
-    private final CommandGateway commandGateway;
-    private final BankAccountRepository bankAccountRepository;
+    private final CommandDispatcher commandDispatcher;
+    private final BankAccountViewCache bankAccountViewCache;
+    private final VersionWaiter versionWaiter;
+    private final BankAccountStatisticsRepository bankAccountStatisticsRepository;
 
+    @Value("${axonbank.query.page-size:100}")
+    private int pageSize;
 
     @Autowired
-    public BankAccountController(CommandGateway commandGateway, BankAccountRepository bankAccountRepository) {
-        this.commandGateway = commandGateway;
-        this.bankAccountRepository = bankAccountRepository;
+    public BankAccountController(CommandDispatcher commandDispatcher, BankAccountViewCache bankAccountViewCache,
+                                 VersionWaiter versionWaiter,
+                                 BankAccountStatisticsRepository bankAccountStatisticsRepository) {
+        this.commandDispatcher = commandDispatcher;
+        this.bankAccountViewCache = bankAccountViewCache;
+        this.versionWaiter = versionWaiter;
+        this.bankAccountStatisticsRepository = bankAccountStatisticsRepository;
     }
 
+    /**
+     * The first page of bank accounts; the next ones are read with {@link #after(long)}.
+     */
     @SubscribeMapping
-    public Iterable<BankAccountEntry> all() {
-        return bankAccountRepository.findAllByOrderByIdAsc();
+    public PageDto<BankAccountEntry> all() {
+        return after(0);
+    }
+
+    @SubscribeMapping("/after/{afterId}")
+    public PageDto<BankAccountEntry> after(@DestinationVariable long afterId) {
+        return PageDto.of(bankAccountViewCache.page(afterId, pageSize + 1), pageSize, BankAccountEntry::getId);
     }
 
     @SubscribeMapping("/{id}")
     public BankAccountEntry get(@DestinationVariable String id) {
-        return bankAccountRepository.findOne(id);
+        return bankAccountViewCache.get(id);
+    }
+
+    /**
+     * The bank account once the query model holds at least the given version, as listed in the result of a command.
+     * Answered with the bank account as it is when the version is not reached in time.
+     */
+    @SubscribeMapping("/{id}/version/{version}")
+    public CompletableFuture<BankAccountEntry> get(@DestinationVariable String id, @DestinationVariable long version) {
+        return versionWaiter.await(id, version, () -> {
+            BankAccountEntry bankAccountEntry = bankAccountViewCache.get(id);
+            return bankAccountEntry == null ? -1 : bankAccountEntry.getVersion();
+        }, () -> bankAccountViewCache.get(id));
+    }
+
+    /**
+     * Statistics of the given day (yyyy-MM-dd, UTC). A day without events is answered with zero turnover and the
+     * balance the day before closed with.
+     */
+    @SubscribeMapping("/{id}/statistics/{day}")
+    public BankAccountStatisticsEntry statistics(@DestinationVariable String id, @DestinationVariable String day) {
+        String isoDay = LocalDate.parse(day).toString();
+        BankAccountStatisticsEntry statistics =
+                bankAccountStatisticsRepository.findFirstByAxonBankAccountIdAndDayLessThanEqualOrderByDayDesc(id,
+                                                                                                            isoDay);
+        if (statistics == null) {
+            return new BankAccountStatisticsEntry(id, isoDay, 0);
+        }
+        if (!statistics.getDay().equals(isoDay)) {
+            return new BankAccountStatisticsEntry(id, isoDay, statistics.getClosingBalance());
+        }
+        return statistics;
+    }
+
+    /**
+     * Statistics of the days from and to the given ones that had events, at most a page of them.
+     */
+    @SubscribeMapping("/{id}/statistics/{from}/{to}")
+    public List<BankAccountStatisticsEntry> statistics(@DestinationVariable String id,
+                                                       @DestinationVariable String from,
+                                                       @DestinationVariable String to) {
+        return bankAccountStatisticsRepository.findByAxonBankAccountIdAndDayBetweenOrderByDayAsc(
+                id, LocalDate.parse(from).toString(), LocalDate.parse(to).toString(), new PageRequest(0, pageSize));
     }
 
     @MessageMapping("/create")
-    public void create(BankAccountDto bankAccountDto) {
-        String id = UUID.randomUUID().toString();
+    public void create(BankAccountDto bankAccountDto,
+                       @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
+        String id = CommandDispatcher.aggregateIdentifier("BankAccount", bankAccountDto.getIdempotencyKey());
         CreateBankAccountCommand command = new CreateBankAccountCommand(id, bankAccountDto.getOverdraftLimit());
-        commandGateway.send(command);
+        commandDispatcher.dispatch(command, sessionId, bankAccountDto.getIdempotencyKey());
     }
 
     @MessageMapping("/withdraw")
-    public void withdraw(WithdrawalDto depositDto) {
+    public void withdraw(WithdrawalDto depositDto,
+                         @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
         WithdrawMoneyCommand command = new WithdrawMoneyCommand(depositDto.getBankAccountId(), depositDto.getAmount());
-        commandGateway.send(command);
+        commandDispatcher.dispatch(command, sessionId, depositDto.getIdempotencyKey());
     }
 
     @MessageMapping("/deposit")
-    public void deposit(DepositDto depositDto) {
+    public void deposit(DepositDto depositDto,
+                        @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
         DepositMoneyCommand command = new DepositMoneyCommand(depositDto.getBankAccountId(), depositDto.getAmount());
-        commandGateway.send(command);
+        commandDispatcher.dispatch(command, sessionId, depositDto.getIdempotencyKey());
     }
 
 }
@@ -17,54 +17,122 @@
 package org.axonframework.samples.bank.web;
 
 import lombok.extern.slf4j.Slf4j;
-import org.axonframework.commandhandling.gateway.CommandGateway;
 import org.axonframework.samples.bank.api.banktransfer.command.CreateBankTransferCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateBulkBankTransferCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateLocalBankTransferCommand;
+import org.axonframework.samples.bank.query.VersionWaiter;
 import org.axonframework.samples.bank.query.banktransfer.BankTransferEntry;
 import org.axonframework.samples.bank.query.banktransfer.BankTransferRepository;
 import org.axonframework.samples.bank.web.dto.BankTransferDto;
+import org.axonframework.samples.bank.web.dto.BulkBankTransferDto;
+import org.axonframework.samples.bank.web.dto.PageDto;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.annotation.SubscribeMapping;
 import org.springframework.stereotype.Controller;
 
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @Controller
 @Slf4j
 public class BankTransferController {
 
     @Autowired
-    private final CommandGateway commandGateway;
+    private final CommandDispatcher commandDispatcher;
     private final BankTransferRepository bankTransferRepository;
+    private final VersionWaiter versionWaiter;
 
-    public BankTransferController(CommandGateway commandGateway, BankTransferRepository bankTransferRepository) {
-        this.commandGateway = commandGateway;
+    /**
+     * Execute transfers in a single unit of work instead of through the saga
+     */
+    @Value("${axonbank.bank-transfer.fast-path:false}")
+    private boolean fastPath;
+
+    @Value("${axonbank.query.page-size:100}")
+    private int pageSize;
+
+    public BankTransferController(CommandDispatcher commandDispatcher, BankTransferRepository bankTransferRepository,
+                                  VersionWaiter versionWaiter) {
+        this.commandDispatcher = commandDispatcher;
         this.bankTransferRepository = bankTransferRepository;
+        this.versionWaiter = versionWaiter;
     }
 
     @SubscribeMapping("/bank-accounts/{bankAccountId}/bank-transfers")
-    public Iterable<BankTransferEntry> bankTransfers(@DestinationVariable String bankAccountId) {
-        log.info("Retrieve bank transfers for bank account with id {}", bankAccountId);
-        return bankTransferRepository.findBySourceBankAccountIdOrDestinationBankAccountId(bankAccountId, bankAccountId);
+    public PageDto<BankTransferEntry> bankTransfers(@DestinationVariable String bankAccountId) {
+        return bankTransfers(bankAccountId, 0);
+    }
+
+    @SubscribeMapping("/bank-accounts/{bankAccountId}/bank-transfers/after/{afterId}")
+    public PageDto<BankTransferEntry> bankTransfers(@DestinationVariable String bankAccountId,
+                                                    @DestinationVariable long afterId) {
+        log.info("Retrieve bank transfers for bank account with id {} after {}", bankAccountId, afterId);
+        return PageDto.of(bankTransferRepository.findTransferHistory(bankAccountId,
+                                                                     afterId,
+                                                                     new PageRequest(0, pageSize + 1)),
+                          pageSize,
+                          BankTransferEntry::getId);
     }
 
     @MessageMapping("/bank-transfers/{id}")
     public BankTransferEntry get(@DestinationVariable String id) {
         log.info("Retrieve bank transfer with id {}", id);
-        return bankTransferRepository.findOne(id);
+        return bankTransferRepository.findOneByAxonBankTransferId(id);
+    }
+
+    /**
+     * The bank transfer once the query model holds at least the given version, as listed in the result of a command.
+     * Answered with the bank transfer as it is when the version is not reached in time.
+     */
+    @SubscribeMapping("/bank-transfers/{id}/version/{version}")
+    public CompletableFuture<BankTransferEntry> get(@DestinationVariable String id,
+                                                    @DestinationVariable long version) {
+        return versionWaiter.await(id, version, () -> {
+            BankTransferEntry bankTransferEntry = bankTransferRepository.findOneByAxonBankTransferId(id);
+            return bankTransferEntry == null ? -1 : bankTransferEntry.getVersion();
+        }, () -> bankTransferRepository.findOneByAxonBankTransferId(id));
     }
 
     @MessageMapping("/bank-transfers/create")
-    public void create(BankTransferDto bankTransferDto) {
+    public void create(BankTransferDto bankTransferDto,
+                       @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
         log.info("Create bank transfer with payload {}", bankTransferDto);
 
-        String bankTransferId = UUID.randomUUID().toString();
+        String bankTransferId = CommandDispatcher.aggregateIdentifier("BankTransfer",
+                                                                      bankTransferDto.getIdempotencyKey());
+        if (fastPath) {
+            commandDispatcher.dispatch(new CreateLocalBankTransferCommand(bankTransferId,
+                                                                          bankTransferDto.getSourceBankAccountId(),
+                                                                          bankTransferDto.getDestinationBankAccountId(),
+                                                                          bankTransferDto.getAmount()),
+                                       sessionId,
+                                       bankTransferDto.getIdempotencyKey());
+            return;
+        }
         CreateBankTransferCommand command = new CreateBankTransferCommand(bankTransferId,
                                                                           bankTransferDto.getSourceBankAccountId(),
                                                                           bankTransferDto.getDestinationBankAccountId(),
                                                                           bankTransferDto.getAmount());
 
-        commandGateway.send(command);
+        commandDispatcher.dispatch(command, sessionId, bankTransferDto.getIdempotencyKey());
+    }
+
+    @MessageMapping("/bulk-bank-transfers/create")
+    public void createBulk(BulkBankTransferDto bulkBankTransferDto,
+                           @Header(SimpMessageHeaderAccessor.SESSION_ID_HEADER) String sessionId) {
+        log.info("Create bulk bank transfer with payload {}", bulkBankTransferDto);
+
+        String bulkTransferId = CommandDispatcher.aggregateIdentifier("BulkBankTransfer",
+                                                                      bulkBankTransferDto.getIdempotencyKey());
+        CreateBulkBankTransferCommand command = new CreateBulkBankTransferCommand(bulkTransferId,
+                                                                                  bulkBankTransferDto.getSourceBankAccountId(),
+                                                                                  bulkBankTransferDto.getLegs());
+
+        commandDispatcher.dispatch(command, sessionId, bulkBankTransferDto.getIdempotencyKey());
     }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.commandhandling.gateway.CommandGateway;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.messaging.MetaData;
+import org.axonframework.samples.bank.command.AggregateVersionRecorder;
+import org.axonframework.samples.bank.command.DeduplicatingDispatchInterceptor;
+import org.axonframework.samples.bank.command.DuplicateCommandException;
+import org.axonframework.samples.bank.web.dto.CommandResultDto;
+import org.axonframework.samples.bank.web.dto.CommandResultDto.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import javax.annotation.PreDestroy;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+
+/**
+ * Sends commands on behalf of the STOMP controllers without blocking the inbound channel threads, and reports the
+ * outcome to the sending session on "/user/queue/command-results".
+ * <p>
+ * The number of commands in flight is bounded per node and per session. A command that does not fit in either window
+ * is rejected straight away with a REJECTED result, so under overload clients are told to back off instead of piling
+ * up threads waiting on the command bus.
+ * <p>
+ * An idempotency key supplied by the client travels in the command's meta data. A retry of a command that was already
+ * sent gets a DUPLICATE result instead of being executed again, while the key of a failed command is released so the
+ * client can retry it. The controllers derive the id of a new aggregate from the key, see
+ * {@link #aggregateIdentifier(String, String)}, so a retry that reaches another node, or comes after the window, runs
+ * into the existing aggregate instead of creating a second one.
+ * <p>
+ * The result of a succeeded command carries the versions the aggregates reached, so the client can wait for the query
+ * model to apply them instead of polling it.
+ */
+@Slf4j
+@Component
+public class CommandDispatcher implements ApplicationListener<SessionDisconnectEvent> {
+
+    public static final String RESULT_DESTINATION = "/queue/command-results";
+
+    private final CommandGateway commandGateway;
+    private final SimpMessageSendingOperations messagingTemplate;
+    private final DeduplicatingDispatchInterceptor deduplicatingDispatchInterceptor;
+    private final AggregateVersionRecorder aggregateVersionRecorder;
+    private final Semaphore nodeWindow;
+    private final int sessionWindowSize;
+    private final ConcurrentMap<String, AtomicInteger> inFlightPerSession = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    @Autowired
+    public CommandDispatcher(CommandGateway commandGateway, SimpMessageSendingOperations messagingTemplate,
+                             DeduplicatingDispatchInterceptor deduplicatingDispatchInterceptor,
+                             AggregateVersionRecorder aggregateVersionRecorder,
+                             @Value("${axonbank.command-dispatch.max-in-flight:1000}") int maxInFlight,
+                             @Value("${axonbank.command-dispatch.max-in-flight-per-session:50}")
+                                     int maxInFlightPerSession,
+                             @Value("${axonbank.command-dispatch.threads:0}") int threads) {
+        this.commandGateway = commandGateway;
+        this.messagingTemplate = messagingTemplate;
+        this.deduplicatingDispatchInterceptor = deduplicatingDispatchInterceptor;
+        this.aggregateVersionRecorder = aggregateVersionRecorder;
+        this.nodeWindow = new Semaphore(maxInFlight);
+        this.sessionWindowSize = maxInFlightPerSession;
+        this.executor = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                                                     new AxonThreadFactory("CommandDispatcher"));
+    }
+
+    /**
+     * Returns the id for a new aggregate of the given type: derived from the idempotency key when the client supplied
+     * one, random otherwise.
+     */
+    public static String aggregateIdentifier(String aggregateType, String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return UUID.randomUUID().toString();
+        }
+        return UUID.nameUUIDFromBytes((aggregateType + "/" + idempotencyKey).getBytes(StandardCharsets.UTF_8))
+                   .toString();
+    }
+
+    public void dispatch(Object command, String sessionId, String idempotencyKey) {
+        CommandMessage<?> commandMessage = asCommandMessage(command);
+        if (idempotencyKey != null) {
+            commandMessage = commandMessage.andMetaData(
+                    MetaData.with(DeduplicatingDispatchInterceptor.IDEMPOTENCY_KEY, idempotencyKey));
+        }
+        dispatch(commandMessage, sessionId);
+    }
+
+    private void dispatch(CommandMessage<?> command, String sessionId) {
+        AtomicInteger sessionInFlight = inFlightPerSession.computeIfAbsent(sessionId, id -> new AtomicInteger());
+        if (sessionInFlight.incrementAndGet() > sessionWindowSize) {
+            sessionInFlight.decrementAndGet();
+            reply(sessionId, command, Status.REJECTED, "Too many commands in progress, try again later");
+            return;
+        }
+        if (!nodeWindow.tryAcquire()) {
+            sessionInFlight.decrementAndGet();
+            reply(sessionId, command, Status.REJECTED, "Server busy, try again later");
+            return;
+        }
+        aggregateVersionRecorder.start(command.getIdentifier());
+        try {
+            executor.execute(() -> send(command).whenComplete((result, failure) -> {
+                nodeWindow.release();
+                sessionInFlight.decrementAndGet();
+                Map<String, Long> versions = aggregateVersionRecorder.finish(command.getIdentifier());
+                if (failure == null) {
+                    reply(sessionId, command, Status.SUCCEEDED, null, versions);
+                } else if (failure instanceof DuplicateCommandException) {
+                    reply(sessionId, command, Status.DUPLICATE, failure.getMessage());
+                } else {
+                    release(command);
+                    reply(sessionId, command, Status.FAILED, failure.getMessage());
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            nodeWindow.release();
+            sessionInFlight.decrementAndGet();
+            aggregateVersionRecorder.finish(command.getIdentifier());
+            reply(sessionId, command, Status.REJECTED, "Server shutting down");
+        }
+    }
+
+    private void release(CommandMessage<?> command) {
+        try {
+            deduplicatingDispatchInterceptor.release(command);
+        } catch (UncheckedIOException e) {
+            log.warn("Could not save the release of the idempotency key of {}", command.getCommandName(), e);
+        }
+    }
+
+    /**
+     * Dispatch interceptors, like bean validation, throw on the dispatching thread rather than failing the future.
+     */
+    private CompletableFuture<Object> send(CommandMessage<?> command) {
+        try {
+            return commandGateway.send(command);
+        } catch (RuntimeException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void reply(String sessionId, CommandMessage<?> command, Status status, String message) {
+        reply(sessionId, command, status, message, null);
+    }
+
+    private void reply(String sessionId, CommandMessage<?> command, Status status, String message,
+                       Map<String, Long> versions) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(sessionId);
+        headers.setLeaveMutable(true);
+        messagingTemplate.convertAndSendToUser(sessionId,
+                                               RESULT_DESTINATION,
+                                               new CommandResultDto(command.getPayloadType().getSimpleName(),
+                                                                    status,
+                                                                    message,
+                                                                    versions),
+                                               headers.getMessageHeaders());
+    }
+
+    @Override
+    public void onApplicationEvent(SessionDisconnectEvent event) {
+        inFlightPerSession.remove(event.getSessionId());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
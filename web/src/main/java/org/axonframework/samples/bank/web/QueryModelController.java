@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web;
+
+import org.axonframework.samples.bank.web.dto.RebuildProgressDto;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Starts a rebuild of the query model with a POST, and reports its progress on a GET.
+ */
+@RestController
+@RequestMapping("/query-model/rebuild")
+public class QueryModelController {
+
+    private final QueryModelRebuilder queryModelRebuilder;
+
+    @Autowired
+    public QueryModelController(QueryModelRebuilder queryModelRebuilder) {
+        this.queryModelRebuilder = queryModelRebuilder;
+    }
+
+    @PostMapping
+    public ResponseEntity<RebuildProgressDto> rebuild() {
+        HttpStatus status = queryModelRebuilder.start() ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT;
+        return new ResponseEntity<>(queryModelRebuilder.getProgress(), status);
+    }
+
+    @GetMapping
+    public RebuildProgressDto progress() {
+        return queryModelRebuilder.getProgress();
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.AxonThreadFactory;
+import org.axonframework.common.jpa.EntityManagerProvider;
+import org.axonframework.common.transaction.Transaction;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.config.EventHandlingConfiguration;
+import org.axonframework.eventhandling.EventHandlerInvoker;
+import org.axonframework.eventhandling.EventProcessor;
+import org.axonframework.eventhandling.PropagatingErrorHandler;
+import org.axonframework.eventhandling.SimpleEventHandlerInvoker;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventhandling.tokenstore.TokenStore;
+import org.axonframework.eventhandling.tokenstore.UnableToClaimTokenException;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.messaging.unitofwork.DefaultUnitOfWork;
+import org.axonframework.messaging.unitofwork.UnitOfWork;
+import org.axonframework.samples.bank.query.SegmentedTrackingEventProcessor;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountEntry;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountEventListener;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountRepository;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountSnapshot;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountStatisticsEventListener;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountStatisticsRepository;
+import org.axonframework.samples.bank.query.bankaccount.BankAccountViewCache;
+import org.axonframework.samples.bank.query.bankaccount.OpenBankTransferRepository;
+import org.axonframework.samples.bank.query.banktransfer.BankTransferEntry;
+import org.axonframework.samples.bank.query.banktransfer.BankTransferEventListener;
+import org.axonframework.samples.bank.query.banktransfer.BankTransferRepository;
+import org.axonframework.samples.bank.web.dto.RebuildProgressDto;
+import org.axonframework.samples.bank.web.dto.RebuildProgressDto.Status;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.JpaProperties;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Rebuilds the query model from the full event store, for instance after a change to the query entries.
+ * <p>
+ * The events are replayed into a copy of the query tables while readers keep using the live ones (see
+ * {@link QueryModelShadow}). One thread reads the event store and hands every event to the worker of its aggregate,
+ * partitioned the way the segments of the "query" processor are, so the events of one aggregate stay in order. The
+ * daily statistics combine the events of bank accounts and their transfers, so like on the first segment they are kept
+ * by the first worker, which is handed every event they handle. Each worker deserializes its own events and commits
+ * them in batches of {@code batchSize}, so memory use and transaction size do not grow with the event store. Once all
+ * events are applied, the copy replaces the live tables and the token of every segment is moved to the last event
+ * read, and the processor carries on from the rebuilt state.
+ * <p>
+ * The query model must be updated by a tracking processor, which is paused during the rebuild. Before anything is
+ * replayed, the rebuild claims the token of every segment and holds the claims until the copy is live, so no other node
+ * applies events to the query model meanwhile. The rebuild fails if another node still runs a segment.
+ */
+@Slf4j
+@Component
+public class QueryModelRebuilder {
+
+    private static final String PROCESSOR_NAME = "query";
+    private static final Object END_OF_EVENTS = new Object();
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final long PROGRESS_LOG_INTERVAL_MILLIS = 10_000;
+    // well within the claim timeout of the token store, 10 seconds by default
+    private static final long CLAIM_EXTENSION_INTERVAL_MILLIS = 1_000;
+
+    private final EventStorageEngine eventStorageEngine;
+    private final DataSource dataSource;
+    private final JpaProperties jpaProperties;
+    private final EntityManagerProvider entityManagerProvider;
+    private final TransactionManager transactionManager;
+    private final TokenStore tokenStore;
+    private final EventHandlingConfiguration eventHandlingConfiguration;
+    private final BankAccountViewCache bankAccountViewCache;
+    private final Optional<BankAccountSnapshot> bankAccountSnapshot;
+    private final int workerCount;
+    private final int batchSize;
+    private final ExecutorService executor;
+
+    private final AtomicLong appliedEvents = new AtomicLong();
+    private volatile Status status = Status.IDLE;
+    private volatile long totalEvents = -1;
+    private volatile long startTime;
+    private volatile String message;
+
+    @Autowired
+    public QueryModelRebuilder(EventStorageEngine eventStorageEngine, DataSource dataSource,
+                               JpaProperties jpaProperties, EntityManagerProvider entityManagerProvider,
+                               TransactionManager transactionManager, TokenStore tokenStore,
+                               EventHandlingConfiguration eventHandlingConfiguration,
+                               BankAccountViewCache bankAccountViewCache,
+                               Optional<BankAccountSnapshot> bankAccountSnapshot,
+                               @Value("${axonbank.query.rebuild.workers:0}") int workers,
+                               @Value("${axonbank.query.rebuild.batch-size:1000}") int batchSize) {
+        this.eventStorageEngine = eventStorageEngine;
+        this.dataSource = dataSource;
+        this.jpaProperties = jpaProperties;
+        this.entityManagerProvider = entityManagerProvider;
+        this.transactionManager = transactionManager;
+        this.tokenStore = tokenStore;
+        this.eventHandlingConfiguration = eventHandlingConfiguration;
+        this.bankAccountViewCache = bankAccountViewCache;
+        this.bankAccountSnapshot = bankAccountSnapshot;
+        this.workerCount = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.batchSize = Math.max(1, batchSize);
+        // the rebuild itself, the reader and the workers
+        this.executor = Executors.newFixedThreadPool(workerCount + 2, new AxonThreadFactory("QueryModelRebuild"));
+    }
+
+    /**
+     * Starts a rebuild in the background.
+     *
+     * @return false if a rebuild is already running, or if the query model is not updated by a tracking processor
+     */
+    public synchronized boolean start() {
+        if (status == Status.RUNNING) {
+            return false;
+        }
+        EventProcessor processor = eventHandlingConfiguration.getProcessor(PROCESSOR_NAME).orElse(null);
+        if (!(processor instanceof SegmentedTrackingEventProcessor)) {
+            status = Status.FAILED;
+            message = "The query model can only be rebuilt when it is updated by a tracking processor";
+            return false;
+        }
+        status = Status.RUNNING;
+        appliedEvents.set(0);
+        totalEvents = -1;
+        message = null;
+        startTime = System.currentTimeMillis();
+        executor.execute(() -> rebuild((SegmentedTrackingEventProcessor) processor));
+        return true;
+    }
+
+    public RebuildProgressDto getProgress() {
+        long applied = appliedEvents.get();
+        long total = totalEvents;
+        Long remainingSeconds = null;
+        long elapsedMillis = System.currentTimeMillis() - startTime;
+        if (status == Status.RUNNING && total >= applied && applied > 0) {
+            remainingSeconds = (total - applied) * elapsedMillis / applied / 1000;
+        }
+        return new RebuildProgressDto(status, applied, total, remainingSeconds, message);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void rebuild(SegmentedTrackingEventProcessor processor) {
+        processor.shutDown();
+        boolean restart = true;
+        try {
+            while (processor.activeProcessorThreads() > 0) {
+                Thread.sleep(10);
+            }
+            List<String> tokenNames = processor.getTokenNames();
+            claimTokens(tokenNames);
+            try (QueryModelShadow shadow = new QueryModelShadow(dataSource,
+                                                                jpaProperties.getHibernateProperties(dataSource),
+                                                                BankAccountEntry.class.getPackage().getName(),
+                                                                BankTransferEntry.class.getPackage().getName())) {
+                totalEvents = countEvents();
+                log.info("Rebuilding the query model from {} events on {} workers", totalEvents, workerCount);
+                TrackingToken lastToken = replay(shadow, tokenNames);
+                extendClaims(tokenNames);
+                try {
+                    shadow.replaceLiveTables(entityManagerProvider, transactionManager,
+                                             () -> storeTokens(tokenNames, lastToken));
+                } catch (Exception e) {
+                    // carrying on from the old tokens would apply events the rebuilt query model already holds
+                    restart = !shadow.isLive();
+                    throw e;
+                }
+            } finally {
+                releaseClaims(tokenNames);
+            }
+            // the rebuilt entries have new ids, which cached pages do not know about
+            bankAccountViewCache.clear();
+            bankAccountSnapshot.ifPresent(BankAccountSnapshot::verify);
+            status = Status.COMPLETED;
+            log.info("Rebuilt the query model from {} events in {} s", appliedEvents.get(),
+                     (System.currentTimeMillis() - startTime) / 1000);
+        } catch (Exception e) {
+            status = Status.FAILED;
+            message = e.getMessage();
+            if (restart) {
+                log.error("Rebuilding the query model failed, the query model is left as it was", e);
+            } else {
+                log.error("The rebuilt query model is live, but its tokens could not be stored. "
+                                  + "The processor stays stopped until the query model is rebuilt again", e);
+            }
+        } finally {
+            if (restart) {
+                processor.start();
+            }
+        }
+    }
+
+    /**
+     * Claims the token of every segment, or none of them if one is claimed by another node.
+     */
+    private void claimTokens(List<String> tokenNames) {
+        List<String> claimed = new ArrayList<>();
+        try {
+            for (String tokenName : tokenNames) {
+                transactionManager.executeInTransaction(() -> tokenStore.fetchToken(tokenName, 0));
+                claimed.add(tokenName);
+            }
+        } catch (UnableToClaimTokenException e) {
+            releaseClaims(claimed);
+            throw new IllegalStateException("Another node still runs a segment of the query model, "
+                                                    + "stop it before rebuilding the query model", e);
+        }
+    }
+
+    private void extendClaims(List<String> tokenNames) {
+        transactionManager.executeInTransaction(
+                () -> tokenNames.forEach(tokenName -> tokenStore.extendClaim(tokenName, 0)));
+    }
+
+    private void releaseClaims(List<String> tokenNames) {
+        try {
+            transactionManager.executeInTransaction(
+                    () -> tokenNames.forEach(tokenName -> tokenStore.releaseClaim(tokenName, 0)));
+        } catch (RuntimeException e) {
+            log.warn("Could not release the claims of the rebuild, they are free once they time out", e);
+        }
+    }
+
+    private void storeTokens(List<String> tokenNames, TrackingToken lastToken) {
+        if (lastToken != null) {
+            for (String tokenName : tokenNames) {
+                tokenStore.storeToken(lastToken, tokenName, 0);
+            }
+        }
+    }
+
+    private long countEvents() {
+        try {
+            return entityManagerProvider.getEntityManager()
+                                        .createQuery("SELECT COUNT(e) FROM DomainEventEntry e", Long.class)
+                                        .getSingleResult();
+        } catch (RuntimeException e) {
+            log.warn("Could not count the events, no remaining time will be reported", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Applies every event to the shadow tables.
+     *
+     * @return the token of the last event read, or null if the event store is empty
+     */
+    private TrackingToken replay(QueryModelShadow shadow, List<String> tokenNames) throws Exception {
+        EventHandlerInvoker segmented = new SimpleEventHandlerInvoker(
+                Arrays.asList(new BankAccountEventListener(shadow.repository(BankAccountRepository.class)),
+                              new BankTransferEventListener(shadow.repository(BankTransferRepository.class))),
+                PropagatingErrorHandler.INSTANCE);
+        EventHandlerInvoker statistics = new SimpleEventHandlerInvoker(
+                Collections.singletonList(new BankAccountStatisticsEventListener(
+                        shadow.repository(BankAccountStatisticsRepository.class),
+                        shadow.repository(OpenBankTransferRepository.class))),
+                PropagatingErrorHandler.INSTANCE);
+        AtomicReference<TrackingToken> lastToken = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch stopped = new CountDownLatch(workerCount);
+
+        List<BlockingQueue<Object>> queues = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+        }
+        for (int i = 0; i < workerCount; i++) {
+            int worker = i;
+            executor.execute(() -> {
+                try {
+                    work(worker, queues.get(worker), segmented, worker == 0 ? statistics : null,
+                         shadow.getTransactionManager(), failure);
+                } finally {
+                    stopped.countDown();
+                }
+            });
+        }
+        executor.execute(() -> read(queues, statistics, lastToken, failure));
+
+        long lastLog = System.currentTimeMillis();
+        while (!stopped.await(CLAIM_EXTENSION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            try {
+                extendClaims(tokenNames);
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+            if (System.currentTimeMillis() - lastLog > PROGRESS_LOG_INTERVAL_MILLIS) {
+                lastLog = System.currentTimeMillis();
+                RebuildProgressDto progress = getProgress();
+                log.info("Applied {} of {} events, about {} s left", progress.getAppliedEvents(),
+                         progress.getTotalEvents(), progress.getRemainingSeconds());
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Replaying the events failed", failure.get());
+        }
+        return lastToken.get();
+    }
+
+    /**
+     * Hands every event to the worker of its segment, and the events the statistics handle to the first worker too.
+     */
+    private void read(List<BlockingQueue<Object>> queues, EventHandlerInvoker statistics,
+                      AtomicReference<TrackingToken> lastToken, AtomicReference<Throwable> failure) {
+        try (Stream<? extends TrackedEventMessage<?>> events = eventStorageEngine.readEvents(null, false)) {
+            Iterator<? extends TrackedEventMessage<?>> iterator = events.iterator();
+            while (failure.get() == null && iterator.hasNext()) {
+                TrackedEventMessage<?> event = iterator.next();
+                int segment = SegmentedTrackingEventProcessor.segmentOf(event, workerCount);
+                queues.get(segment).put(event);
+                if (segment != 0 && statistics.hasHandler(event)) {
+                    queues.get(0).put(event);
+                }
+                lastToken.set(event.trackingToken());
+            }
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            for (BlockingQueue<Object> queue : queues) {
+                end(queue);
+            }
+        }
+    }
+
+    /**
+     * Applies the events of one worker in units of work of at most {@code batchSize} events, each committing its own
+     * shadow transaction. Keeps taking events after a failure, without applying them, so the reader never blocks.
+     */
+    private void work(int worker, BlockingQueue<Object> queue, EventHandlerInvoker segmented,
+                      EventHandlerInvoker statistics, TransactionManager shadowTransactionManager,
+                      AtomicReference<Throwable> failure) {
+        try {
+            List<TrackedEventMessage<?>> batch = new ArrayList<>(batchSize);
+            for (Object event = queue.take(); event != END_OF_EVENTS; event = queue.take()) {
+                if (failure.get() != null) {
+                    continue;
+                }
+                batch.add((TrackedEventMessage<?>) event);
+                if (batch.size() == batchSize) {
+                    apply(worker, batch, segmented, statistics, shadowTransactionManager);
+                    batch.clear();
+                }
+            }
+            if (failure.get() == null && !batch.isEmpty()) {
+                apply(worker, batch, segmented, statistics, shadowTransactionManager);
+            }
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+            drain(queue);
+        }
+    }
+
+    private void apply(int worker, List<TrackedEventMessage<?>> batch, EventHandlerInvoker segmented,
+                       EventHandlerInvoker statistics, TransactionManager shadowTransactionManager)
+            throws Exception {
+        UnitOfWork<?> unitOfWork = DefaultUnitOfWork.startAndGet(batch.get(0));
+        Transaction transaction = shadowTransactionManager.startTransaction();
+        unitOfWork.onCommit(u -> transaction.commit());
+        unitOfWork.onRollback(u -> transaction.rollback());
+        unitOfWork.executeWithResult(() -> {
+            for (TrackedEventMessage<?> event : batch) {
+                if (SegmentedTrackingEventProcessor.segmentOf(event, workerCount) == worker) {
+                    segmented.handle(event);
+                    appliedEvents.incrementAndGet();
+                }
+                if (statistics != null && statistics.hasHandler(event)) {
+                    statistics.handle(event);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static void drain(BlockingQueue<Object> queue) {
+        try {
+            while (queue.take() != END_OF_EVENTS) {
+                // the reader stops at the next event, after handing every worker the end of the events
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void end(BlockingQueue<Object> queue) {
+        try {
+            queue.put(END_OF_EVENTS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web;
+
+import lombok.extern.slf4j.Slf4j;
+import org.axonframework.common.jpa.EntityManagerProvider;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.spring.messaging.unitofwork.SpringTransactionManager;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.model.naming.Identifier;
+import org.hibernate.engine.jdbc.env.spi.JdbcEnvironment;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.Index;
+import org.hibernate.mapping.Table;
+import org.hibernate.mapping.UniqueKey;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+import org.springframework.boot.orm.jpa.hibernate.SpringPhysicalNamingStrategy;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * A copy of the query tables, named with the suffix {@value #SUFFIX}, that the query model is rebuilt into while
+ * readers keep using the live tables. The copy is created by Hibernate from the query entities, with its own entity
+ * manager factory, so it always matches them. Its indexes and constraints get the suffix as well, as some databases
+ * need those names to be unique across tables. Entries take their ids from the same sequence as the live tables.
+ * <p>
+ * On MySQL the copy replaces the live tables with a single RENAME TABLE statement, which is atomic. Other databases,
+ * like the embedded H2 one, have their live tables emptied and filled from the copy in one transaction instead.
+ * Closing the copy drops whatever is left of it.
+ */
+@Slf4j
+class QueryModelShadow implements AutoCloseable {
+
+    static final String SUFFIX = "_rebuild";
+
+    private final DataSource dataSource;
+    private final List<ShadowTable> tables = new ArrayList<>();
+    private final EntityManagerFactory entityManagerFactory;
+    private final JpaRepositoryFactory repositoryFactory;
+    private final TransactionManager transactionManager;
+    private volatile boolean live;
+
+    /**
+     * Creates the tables of the copy, or empties those left behind by a rebuild that did not finish.
+     *
+     * @param hibernateProperties the properties of the live entity manager factory
+     * @param packagesToScan      the packages of the query entities
+     */
+    QueryModelShadow(DataSource dataSource, Map<String, String> hibernateProperties, String... packagesToScan) {
+        this.dataSource = dataSource;
+        Map<String, Object> properties = new HashMap<>(hibernateProperties);
+        // only adds what is missing, so the id sequence shared with the live tables is left alone
+        properties.put("hibernate.hbm2ddl.auto", "update");
+        properties.put("hibernate.physical_naming_strategy", new ShadowNamingStrategy());
+        properties.put(EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER,
+                       (IntegratorProvider) () -> Collections.singletonList(new ShadowIntegrator()));
+        LocalContainerEntityManagerFactoryBean factoryBean = new LocalContainerEntityManagerFactoryBean();
+        factoryBean.setPersistenceUnitName("queryModelShadow");
+        factoryBean.setDataSource(dataSource);
+        factoryBean.setPackagesToScan(packagesToScan);
+        factoryBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factoryBean.setJpaPropertyMap(properties);
+        factoryBean.afterPropertiesSet();
+        this.entityManagerFactory = factoryBean.getObject();
+        EntityManager entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        this.repositoryFactory = new JpaRepositoryFactory(entityManager);
+        this.transactionManager = new SpringTransactionManager(new JpaTransactionManager(entityManagerFactory));
+        transactionManager.executeInTransaction(() -> tables.forEach(
+                table -> entityManager.createNativeQuery("DELETE FROM " + table.name).executeUpdate()));
+    }
+
+    /**
+     * Returns a repository of the given type that reads and writes the copy.
+     */
+    <T> T repository(Class<T> repositoryInterface) {
+        return repositoryFactory.getRepository(repositoryInterface);
+    }
+
+    /**
+     * The transaction manager to write the copy with.
+     */
+    TransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    /**
+     * Replaces the live tables by the copy. The given task runs first in the transaction that makes the copy live, or
+     * on MySQL, where RENAME TABLE commits by itself, in a transaction right after it.
+     */
+    void replaceLiveTables(EntityManagerProvider liveEntityManagerProvider,
+                           TransactionManager liveTransactionManager, Runnable task) throws SQLException {
+        if (isMySql()) {
+            renameToLiveTables();
+            liveTransactionManager.executeInTransaction(task);
+            try {
+                dropOldTables();
+            } catch (SQLException e) {
+                log.warn("Could not drop the tables the rebuilt query model replaced", e);
+            }
+        } else {
+            liveTransactionManager.executeInTransaction(() -> {
+                task.run();
+                EntityManager entityManager = liveEntityManagerProvider.getEntityManager();
+                for (ShadowTable table : tables) {
+                    String columns = String.join(", ", table.columns);
+                    entityManager.createNativeQuery("DELETE FROM " + table.liveName()).executeUpdate();
+                    entityManager.createNativeQuery("INSERT INTO " + table.liveName() + " (" + columns + ") SELECT "
+                                                            + columns + " FROM " + table.name).executeUpdate();
+                }
+            });
+            live = true;
+        }
+    }
+
+    /**
+     * Whether the copy has replaced the live tables, even if the task given to do so failed.
+     */
+    boolean isLive() {
+        return live;
+    }
+
+    @Override
+    public void close() {
+        try {
+            execute(tables.stream().map(table -> "DROP TABLE IF EXISTS " + table.name));
+        } catch (SQLException e) {
+            log.warn("Could not drop the tables the query model was rebuilt in", e);
+        } finally {
+            entityManagerFactory.close();
+        }
+    }
+
+    private boolean isMySql() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return "MySQL".equals(connection.getMetaData().getDatabaseProductName());
+        }
+    }
+
+    private void renameToLiveTables() throws SQLException {
+        String renames = tables.stream()
+                               .map(table -> table.liveName() + " TO " + table.liveName() + "_old, "
+                                       + table.name + " TO " + table.liveName())
+                               .collect(joining(", "));
+        // left behind if they could not be dropped after the last rebuild
+        execute(tables.stream().map(table -> "DROP TABLE IF EXISTS " + table.liveName() + "_old"));
+        execute(Stream.of("RENAME TABLE " + renames));
+        live = true;
+    }
+
+    private void dropOldTables() throws SQLException {
+        List<String> statements = new ArrayList<>();
+        statements.add("DROP TABLE " + tables.stream().map(table -> table.liveName() + "_old").collect(joining(", ")));
+        // index names only need to be unique per table on MySQL, so they get back the names of the entities
+        for (ShadowTable table : tables) {
+            for (String index : table.indexes) {
+                statements.add("ALTER TABLE " + table.liveName() + " RENAME INDEX " + index + SUFFIX + " TO " + index);
+            }
+        }
+        execute(statements.stream());
+    }
+
+    private void execute(Stream<String> statements) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (Iterator<String> iterator = statements.iterator(); iterator.hasNext(); ) {
+                statement.execute(iterator.next());
+            }
+        }
+    }
+
+    private static class ShadowTable {
+
+        private final String name;
+        private final List<String> columns = new ArrayList<>();
+        private final List<String> indexes = new ArrayList<>();
+
+        private ShadowTable(String name) {
+            this.name = name;
+        }
+
+        private String liveName() {
+            return name.substring(0, name.length() - SUFFIX.length());
+        }
+    }
+
+    private static class ShadowNamingStrategy extends SpringPhysicalNamingStrategy {
+
+        @Override
+        public Identifier toPhysicalTableName(Identifier name, JdbcEnvironment jdbcEnvironment) {
+            Identifier tableName = super.toPhysicalTableName(name, jdbcEnvironment);
+            return Identifier.toIdentifier(tableName.getText() + SUFFIX, tableName.isQuoted());
+        }
+    }
+
+    /**
+     * Records the tables of the copy, and renames their indexes and unique constraints before they are created.
+     */
+    private class ShadowIntegrator implements Integrator {
+
+        @Override
+        public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory,
+                              SessionFactoryServiceRegistry serviceRegistry) {
+            for (Table mapping : metadata.collectTableMappings()) {
+                ShadowTable table = new ShadowTable(mapping.getName());
+                for (Iterator<?> iterator = mapping.getColumnIterator(); iterator.hasNext(); ) {
+                    table.columns.add(((Column) iterator.next()).getName());
+                }
+                for (Iterator<Index> iterator = mapping.getIndexIterator(); iterator.hasNext(); ) {
+                    Index index = iterator.next();
+                    table.indexes.add(index.getName());
+                    index.setName(index.getName() + SUFFIX);
+                }
+                for (Iterator<UniqueKey> iterator = mapping.getUniqueKeyIterator(); iterator.hasNext(); ) {
+                    UniqueKey uniqueKey = iterator.next();
+                    table.indexes.add(uniqueKey.getName());
+                    uniqueKey.setName(uniqueKey.getName() + SUFFIX);
+                }
+                tables.add(table);
+            }
+        }
+
+        @Override
+        public void disintegrate(SessionFactoryImplementor sessionFactory,
+                                 SessionFactoryServiceRegistry serviceRegistry) {
+        }
+    }
+}
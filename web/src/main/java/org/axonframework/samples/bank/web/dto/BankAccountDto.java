@@ -22,4 +22,5 @@ import lombok.Value;
 public class BankAccountDto {
 
     private long overdraftLimit;
+    private String idempotencyKey;
 }
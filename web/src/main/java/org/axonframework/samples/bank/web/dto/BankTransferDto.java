@@ -26,4 +26,5 @@ public class BankTransferDto {
     private String sourceBankAccountId;
     private String destinationBankAccountId;
     private long amount;
+    private String idempotencyKey;
 }
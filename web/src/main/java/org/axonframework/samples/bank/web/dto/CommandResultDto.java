@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web.dto;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Outcome of a command, sent to the session that sent it. A succeeded command handled on this node lists the version
+ * each bank account or bank transfer reached, which can be awaited on the query side.
+ */
+@Value
+public class CommandResultDto {
+
+    public enum Status {
+        SUCCEEDED, FAILED, REJECTED, DUPLICATE
+    }
+
+    private String command;
+    private Status status;
+    private String message;
+    private Map<String, Long> versions;
+}
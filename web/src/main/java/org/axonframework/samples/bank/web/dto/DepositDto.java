@@ -23,4 +23,5 @@ public class DepositDto {
 
     private String bankAccountId;
     private long amount;
+    private String idempotencyKey;
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web.dto;
+
+import lombok.Value;
+
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * One page of a listing. The next page is requested with the id of the last entry, which is null on the last page.
+ */
+@Value
+public class PageDto<T> {
+
+    private List<T> entries;
+    private Long next;
+
+    /**
+     * Creates a page from entries fetched with one more than the page size, the extra entry only telling whether
+     * there is a next page.
+     */
+    public static <T> PageDto<T> of(List<T> fetched, int pageSize, ToLongFunction<T> idFunction) {
+        if (fetched.size() <= pageSize) {
+            return new PageDto<>(fetched, null);
+        }
+        List<T> entries = fetched.subList(0, pageSize);
+        return new PageDto<>(entries, idFunction.applyAsLong(entries.get(pageSize - 1)));
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web.dto;
+
+import lombok.Value;
+
+/**
+ * State of the last rebuild of the query model. The remaining time is estimated from the rate so far, and is null
+ * when it is not known.
+ */
+@Value
+public class RebuildProgressDto {
+
+    public enum Status {
+        IDLE, RUNNING, COMPLETED, FAILED
+    }
+
+    private Status status;
+    private long appliedEvents;
+    private long totalEvents;
+    private Long remainingSeconds;
+    private String message;
+}
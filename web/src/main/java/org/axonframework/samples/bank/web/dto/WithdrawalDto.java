@@ -23,4 +23,5 @@ public class WithdrawalDto {
 
     private String bankAccountId;
     private long amount;
+    private String idempotencyKey;
 }
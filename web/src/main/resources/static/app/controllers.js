@@ -2,10 +2,76 @@
 
 angular.module('axonBank')
     .controller('BankAccountsCtrl', function ($scope, $uibModal, BankAccountService) {
-        function updateBankAccounts(bankAccounts) {
-            $scope.bankAccounts = bankAccounts;
+        // Deltas arriving before the bank accounts are loaded are kept until they can be applied
+        var pendingDeltas = [];
+        // Latest deltas of bank accounts on pages not loaded yet
+        var laterDeltas = {};
+
+        function updateBankAccounts(page) {
+            $scope.bankAccounts = [];
+            addBankAccounts(page);
+            pendingDeltas.forEach(applyDelta);
+            pendingDeltas = [];
         }
 
+        function addBankAccounts(page) {
+            page.entries.forEach(function (bankAccount) {
+                var delta = laterDeltas[bankAccount.axonBankAccountId];
+                delete laterDeltas[bankAccount.axonBankAccountId];
+                $scope.bankAccounts.push(delta && delta.version > bankAccount.version ? delta : bankAccount);
+            });
+            $scope.nextBankAccounts = page.next;
+            if (page.next === null) {
+                // bank accounts created after the last page was read
+                angular.forEach(laterDeltas, function (bankAccount) {
+                    $scope.bankAccounts.push(bankAccount);
+                });
+                laterDeltas = {};
+            }
+        }
+
+        function applyDelta(bankAccount) {
+            if (!$scope.bankAccounts) {
+                pendingDeltas.push(bankAccount);
+                return;
+            }
+            for (var i = 0; i < $scope.bankAccounts.length; i++) {
+                if ($scope.bankAccounts[i].axonBankAccountId === bankAccount.axonBankAccountId) {
+                    if (bankAccount.version > $scope.bankAccounts[i].version) {
+                        $scope.bankAccounts[i] = bankAccount;
+                    }
+                    return;
+                }
+            }
+            if ($scope.nextBankAccounts === null) {
+                $scope.bankAccounts.push(bankAccount);
+            } else {
+                var previous = laterDeltas[bankAccount.axonBankAccountId];
+                if (!previous || bankAccount.version > previous.version) {
+                    laterDeltas[bankAccount.axonBankAccountId] = bankAccount;
+                }
+            }
+        }
+
+        $scope.loadMoreBankAccounts = function () {
+            BankAccountService.loadBankAccounts($scope.nextBankAccounts)
+                .then(addBankAccounts);
+        };
+
+        function applyDeltas(bankAccounts) {
+            bankAccounts.forEach(applyDelta);
+        }
+
+        function showCommandResult(commandResult) {
+            if (commandResult.status === 'FAILED' || commandResult.status === 'REJECTED') {
+                $scope.commandError = commandResult;
+            }
+        }
+
+        $scope.dismissCommandError = function () {
+            $scope.commandError = null;
+        };
+
         $scope.create = function () {
             $uibModal.open({
                 controller: 'CreateBankAccountModalCtrl',
@@ -79,15 +145,22 @@ angular.module('axonBank')
 
         BankAccountService.connect()
             .then(function () {
+                BankAccountService.subscribeToBankAccountDeltas()
+                    .then(function () {
+                        // do nothing
+                    }, function () {
+                        // do nothing
+                    }, applyDeltas);
+
                 BankAccountService.loadBankAccounts()
                     .then(updateBankAccounts);
 
-                BankAccountService.subscribeToBankAccountUpdates()
+                BankAccountService.subscribeToCommandResults()
                     .then(function () {
                         // do nothing
                     }, function () {
                         // do nothing
-                    }, updateBankAccounts)
+                    }, showCommandResult);
             });
     })
     .controller('CreateBankAccountModalCtrl', function ($uibModalInstance, $scope, BankAccountService) {
@@ -145,7 +218,16 @@ angular.module('axonBank')
     .controller('BankTransfersModalCtrl',
         function ($uibModalInstance, $scope, BankAccountService, bankAccountId, bankTransfers) {
             $scope.bankAccountId = bankAccountId;
-            $scope.bankTransfers = bankTransfers;
+            $scope.bankTransfers = bankTransfers.entries;
+            $scope.next = bankTransfers.next;
+
+            $scope.loadMore = function () {
+                BankAccountService.loadBankTransfers(bankAccountId, $scope.next)
+                    .then(function (page) {
+                        $scope.bankTransfers = $scope.bankTransfers.concat(page.entries);
+                        $scope.next = page.next;
+                    });
+            };
 
             $scope.close = function () {
                 $uibModalInstance.close();
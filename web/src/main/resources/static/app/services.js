@@ -5,6 +5,24 @@ angular.module('axonBank')
 
         var isConnected = false;
 
+        // Sending the same data again, like after a double click, reuses its key so the command is executed once
+        function withIdempotencyKey(data) {
+            if (!data.idempotencyKey) {
+                data.idempotencyKey = Date.now().toString(36) + '-' + Math.random().toString(36).substring(2);
+            }
+            return data;
+        }
+
+        // Subscriptions to "/app/..." are answered once, so the subscription is dropped when the answer arrives
+        function request(destination) {
+            return $q(function (resolve, reject) {
+                var subscription = $stomp.subscribe(destination, function (data) {
+                    subscription.unsubscribe();
+                    resolve(data);
+                });
+            });
+        }
+
         return {
             connect: function () {
                 return $q(function (resolve, reject) {
@@ -23,39 +41,39 @@ angular.module('axonBank')
                     }
                 });
             },
-            loadBankAccounts: function () {
-                return $q(function (resolve, reject) {
-                    $stomp.subscribe('/app/bank-accounts', function (data) {
-                        resolve(data);
-                    });
-                });
+            // Both return a page, pass its "next" to get the page after it
+            loadBankAccounts: function (after) {
+                return request('/app/bank-accounts' + (after ? '/after/' + after : ''));
             },
-            loadBankTransfers: function (bankAccountId) {
-                return $q(function (resolve, reject) {
-                    $stomp.subscribe('/app/bank-accounts/' + bankAccountId + '/bank-transfers', function (data) {
-                        resolve(data);
-                    });
+            loadBankTransfers: function (bankAccountId, after) {
+                return request('/app/bank-accounts/' + bankAccountId + '/bank-transfers' + (after ? '/after/' + after : ''));
+            },
+            subscribeToBankAccountDeltas: function () {
+                var deferred = $q.defer();
+                $stomp.subscribe('/topic/bank-accounts.deltas', function (data) {
+                    deferred.notify(data);
                 });
+                return deferred.promise;
             },
-            subscribeToBankAccountUpdates: function () {
+            subscribeToCommandResults: function () {
                 var deferred = $q.defer();
-                $stomp.subscribe('/topic/bank-accounts.updates', function (data) {
+                $stomp.subscribe('/user/queue/command-results', function (data) {
                     deferred.notify(data);
                 });
                 return deferred.promise;
             },
 
             createBankAccount: function (data) {
-                $stomp.send('/app/bank-accounts/create', data);
+                $stomp.send('/app/bank-accounts/create', withIdempotencyKey(data));
             },
             deposit: function (data) {
-                $stomp.send('/app/bank-accounts/deposit', data);
+                $stomp.send('/app/bank-accounts/deposit', withIdempotencyKey(data));
             },
             withdraw: function (data) {
-                $stomp.send('/app/bank-accounts/withdraw', data);
+                $stomp.send('/app/bank-accounts/withdraw', withIdempotencyKey(data));
             },
             transfer: function (data) {
-                $stomp.send('/app/bank-transfers/create', data);
+                $stomp.send('/app/bank-transfers/create', withIdempotencyKey(data));
             }
         };
     });
\ No newline at end of file
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.config;
+
+import org.axonframework.commandhandling.AggregateAnnotationCommandHandler;
+import org.axonframework.commandhandling.CommandCallback;
+import org.axonframework.commandhandling.CommandMessage;
+import org.axonframework.commandhandling.SimpleCommandBus;
+import org.axonframework.commandhandling.model.Repository;
+import org.axonframework.common.jdbc.DataSourceConnectionProvider;
+import org.axonframework.common.transaction.NoTransactionManager;
+import org.axonframework.eventsourcing.AggregateSnapshotter;
+import org.axonframework.eventsourcing.CachingEventSourcingRepository;
+import org.axonframework.eventsourcing.EventCountSnapshotTriggerDefinition;
+import org.axonframework.eventsourcing.EventSourcingRepository;
+import org.axonframework.eventsourcing.GenericAggregateFactory;
+import org.axonframework.eventsourcing.eventstore.EmbeddedEventStore;
+import org.axonframework.eventsourcing.eventstore.jdbc.HsqlEventTableFactory;
+import org.axonframework.eventsourcing.eventstore.jdbc.JdbcEventStorageEngine;
+import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.axonframework.samples.bank.command.BankAccount;
+import org.axonframework.samples.bank.command.LruCache;
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.axonframework.commandhandling.GenericCommandMessage.asCommandMessage;
+
+/**
+ * Measures how many deposits per second the SimpleCommandBus handles, dispatched to {@value #BANK_ACCOUNTS} bank
+ * accounts from {@value #THREADS} threads with an in-memory H2 database as JDBC event store. Once with neither an
+ * aggregate cache nor snapshots, and once with the shipped settings. Not a unit test; run the main method with the
+ * test classpath of the web module.
+ */
+public class CommandBusBenchmark {
+
+    private static final int BANK_ACCOUNTS = 100;
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 3;
+    private static final int[] DEPOSITS = {2_000, 10_000};
+
+    public static void main(String[] args) throws Exception {
+        for (int deposits : DEPOSITS) {
+            for (int round = 0; round < ROUNDS; round++) {
+                System.out.printf("%6d deposits %-22s %6d cmd/s%n", deposits, "no cache or snapshots",
+                                  run(false, deposits));
+                System.out.printf("%6d deposits %-22s %6d cmd/s%n", deposits, "shipped settings",
+                                  run(true, deposits));
+            }
+        }
+    }
+
+    private static long run(boolean shippedSettings, int deposits) throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:bench" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+        JdbcEventStorageEngine storageEngine =
+                new JdbcEventStorageEngine(new DataSourceConnectionProvider(dataSource),
+                                           NoTransactionManager.INSTANCE);
+        storageEngine.createSchema(HsqlEventTableFactory.INSTANCE);
+        EmbeddedEventStore eventStore = new EmbeddedEventStore(storageEngine);
+
+        GenericAggregateFactory<BankAccount> aggregateFactory = new GenericAggregateFactory<>(BankAccount.class);
+        Repository<BankAccount> repository;
+        if (shippedSettings) {
+            repository = new CachingEventSourcingRepository<>(
+                    aggregateFactory, eventStore, new LruCache(10_000),
+                    new EventCountSnapshotTriggerDefinition(new AggregateSnapshotter(eventStore, aggregateFactory),
+                                                            250));
+        } else {
+            repository = new EventSourcingRepository<>(aggregateFactory, eventStore);
+        }
+        SimpleCommandBus commandBus = new SimpleCommandBus();
+        new AggregateAnnotationCommandHandler<>(BankAccount.class, repository).subscribe(commandBus);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch created = new CountDownLatch(BANK_ACCOUNTS);
+        for (int i = 0; i < BANK_ACCOUNTS; i++) {
+            commandBus.dispatch(asCommandMessage(new CreateBankAccountCommand("bankAccount" + i, 0)),
+                                callback(created, failure));
+        }
+        created.await();
+
+        CountDownLatch done = new CountDownLatch(deposits);
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        for (int thread = 0; thread < THREADS; thread++) {
+            executor.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < deposits) {
+                    commandBus.dispatch(asCommandMessage(new DepositMoneyCommand("bankAccount" + i % BANK_ACCOUNTS,
+                                                                                 1)),
+                                        callback(done, failure));
+                }
+            });
+        }
+        done.await();
+        long rate = deposits * 1_000_000_000L / (System.nanoTime() - start);
+        executor.shutdown();
+        eventStore.shutDown();
+        if (failure.get() != null) {
+            throw new IllegalStateException("A command failed", failure.get());
+        }
+        return rate;
+    }
+
+    private static CommandCallback<Object, Object> callback(CountDownLatch latch, AtomicReference<Throwable> failure) {
+        return new CommandCallback<Object, Object>() {
+            @Override
+            public void onSuccess(CommandMessage<?> commandMessage, Object result) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(CommandMessage<?> commandMessage, Throwable cause) {
+                failure.compareAndSet(null, cause);
+                latch.countDown();
+            }
+        };
+    }
+}
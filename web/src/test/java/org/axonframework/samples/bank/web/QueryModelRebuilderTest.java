@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016. Axon Framework
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.axonframework.samples.bank.web;
+
+import org.axonframework.commandhandling.gateway.CommandGateway;
+import org.axonframework.common.jpa.EntityManagerProvider;
+import org.axonframework.common.transaction.TransactionManager;
+import org.axonframework.config.EventHandlingConfiguration;
+import org.axonframework.eventhandling.TrackedEventMessage;
+import org.axonframework.eventhandling.tokenstore.TokenStore;
+import org.axonframework.eventhandling.tokenstore.jpa.JpaTokenStore;
+import org.axonframework.eventsourcing.eventstore.EventStorageEngine;
+import org.axonframework.eventsourcing.eventstore.TrackingToken;
+import org.axonframework.samples.bank.api.bankaccount.command.CreateBankAccountCommand;
+import org.axonframework.samples.bank.api.bankaccount.command.DepositMoneyCommand;
+import org.axonframework.samples.bank.api.banktransfer.command.CreateBankTransferCommand;
+import org.axonframework.samples.bank.query.SegmentedTrackingEventProcessor;
+import org.axonframework.samples.bank.query.banktransfer.BankTransferEntry;
+import org.axonframework.samples.bank.query.banktransfer.BankTransferRepository;
+import org.axonframework.samples.bank.web.dto.RebuildProgressDto.Status;
+import org.axonframework.serialization.xml.XStreamSerializer;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.doAnswer;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {"eureka.client.enabled=false", "axonbank.query.rebuild.batch-size=2"})
+public class QueryModelRebuilderTest {
+
+    @Autowired
+    private QueryModelRebuilder rebuilder;
+    @Autowired
+    private CommandGateway commandGateway;
+    @Autowired
+    private EventHandlingConfiguration eventHandlingConfiguration;
+    @Autowired
+    private TokenStore tokenStore;
+    @Autowired
+    private EntityManagerProvider entityManagerProvider;
+    @Autowired
+    private TransactionManager transactionManager;
+    @Autowired
+    private BankTransferRepository bankTransferRepository;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @SpyBean
+    private EventStorageEngine eventStorageEngine;
+
+    @Test
+    public void testRebuildReplacesLiveTablesThatStayReadable() throws Exception {
+        commandGateway.sendAndWait(new CreateBankAccountCommand("A", 0));
+        commandGateway.sendAndWait(new CreateBankAccountCommand("B", 0));
+        for (int i = 0; i < 5; i++) {
+            commandGateway.sendAndWait(new DepositMoneyCommand("A", 20));
+        }
+        commandGateway.sendAndWait(new CreateBankTransferCommand("T", "A", "B", 30));
+        awaitTrue(() -> Long.valueOf(30).equals(balance("B"))
+                && bankTransferStatus("T") == BankTransferEntry.Status.COMPLETED);
+        // tells the live entries apart from the rebuilt ones
+        jdbcTemplate.update("UPDATE bank_account_entry SET balance = -1");
+
+        CountDownLatch replaying = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        doAnswer(invocation -> ((Stream<?>) invocation.callRealMethod()).peek(event -> {
+            replaying.countDown();
+            awaitQuietly(resume);
+        })).when(eventStorageEngine).readEvents(null, false);
+
+        assertTrue(rebuilder.start());
+        assertTrue(replaying.await(10, TimeUnit.SECONDS));
+        assertEquals(Status.RUNNING, rebuilder.getProgress().getStatus());
+        assertEquals(Long.valueOf(-1), balance("A"));
+        assertEquals(BankTransferEntry.Status.COMPLETED, bankTransferStatus("T"));
+        assertTrue(shadowTables().contains("BANK_ACCOUNT_ENTRY" + QueryModelShadow.SUFFIX.toUpperCase()));
+        List<String> shadowIndexes = jdbcTemplate.queryForList(
+                "SELECT index_name FROM information_schema.indexes WHERE table_name LIKE '%_REBUILD' "
+                        + "AND index_type_name <> 'PRIMARY KEY'", String.class);
+        assertFalse(shadowIndexes.isEmpty());
+        shadowIndexes.forEach(index -> assertTrue(index, index.contains(QueryModelShadow.SUFFIX.toUpperCase())));
+
+        resume.countDown();
+        awaitTrue(() -> rebuilder.getProgress().getStatus() != Status.RUNNING);
+        assertEquals(rebuilder.getProgress().getMessage(), Status.COMPLETED, rebuilder.getProgress().getStatus());
+        assertEquals(Long.valueOf(70), balance("A"));
+        assertEquals(Long.valueOf(30), balance("B"));
+        assertEquals(BankTransferEntry.Status.COMPLETED, bankTransferStatus("T"));
+        assertEquals(Collections.emptyList(), shadowTables());
+        TrackingToken lastToken;
+        try (Stream<? extends TrackedEventMessage<?>> events = eventStorageEngine.readEvents(null, false)) {
+            lastToken = events.reduce((first, second) -> second).map(TrackedEventMessage::trackingToken).orElse(null);
+        }
+        for (String tokenName : queryProcessor().getTokenNames()) {
+            assertEquals(lastToken, transactionManager.fetchInTransaction(() -> tokenStore.fetchToken(tokenName, 0)));
+        }
+
+        commandGateway.sendAndWait(new DepositMoneyCommand("A", 5));
+        awaitTrue(() -> Long.valueOf(75).equals(balance("A")));
+    }
+
+    @Test
+    public void testRebuildFailsWhileAnotherNodeRunsASegment() throws Exception {
+        SegmentedTrackingEventProcessor processor = queryProcessor();
+        processor.shutDown();
+        awaitTrue(() -> processor.activeProcessorThreads() == 0);
+        String tokenName = processor.getTokenNames().get(0);
+        TokenStore otherNode = new JpaTokenStore(entityManagerProvider, new XStreamSerializer(),
+                                                 Duration.ofMinutes(1), "otherNode");
+        transactionManager.executeInTransaction(() -> otherNode.fetchToken(tokenName, 0));
+        try {
+            assertTrue(rebuilder.start());
+            awaitTrue(() -> rebuilder.getProgress().getStatus() != Status.RUNNING);
+
+            assertEquals(Status.FAILED, rebuilder.getProgress().getStatus());
+            assertTrue(rebuilder.getProgress().getMessage().startsWith("Another node"));
+            assertEquals(Collections.emptyList(), shadowTables());
+        } finally {
+            transactionManager.executeInTransaction(() -> otherNode.releaseClaim(tokenName, 0));
+        }
+    }
+
+    private SegmentedTrackingEventProcessor queryProcessor() {
+        return (SegmentedTrackingEventProcessor) eventHandlingConfiguration.getProcessor("query").get();
+    }
+
+    private Long balance(String bankAccountId) {
+        List<Long> balances = jdbcTemplate.queryForList(
+                "SELECT balance FROM bank_account_entry WHERE axon_bank_account_id = ?", Long.class, bankAccountId);
+        return balances.isEmpty() ? null : balances.get(0);
+    }
+
+    private BankTransferEntry.Status bankTransferStatus(String bankTransferId) {
+        BankTransferEntry bankTransferEntry = bankTransferRepository.findOneByAxonBankTransferId(bankTransferId);
+        return bankTransferEntry == null ? null : bankTransferEntry.getStatus();
+    }
+
+    private List<String> shadowTables() {
+        return jdbcTemplate.queryForList(
+                "SELECT table_name FROM information_schema.tables WHERE table_name LIKE '%_REBUILD'", String.class);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}